@@ -0,0 +1,49 @@
+package com.max.vectormap;
+
+import android.os.Debug;
+import android.os.Environment;
+import android.test.AndroidTestCase;
+
+import java.io.File;
+
+/**
+ * Checks that updating the tile tree allocates nothing once the tree has been through a camera
+ * path, so that panning and zooming produce no garbage on the thread preparing frames. Needs the
+ * map data on external storage, like the app. Tiles are not loaded; nodes enter and leave the tree
+ * regardless.
+ */
+public class TileTreeAllocationTest extends AndroidTestCase {
+    private static final int FRAMES = 300;
+
+    private final int[] screenEdges = new int[4];
+
+    /** Pans back and forth while zooming across a layer boundary. */
+    private void update(TileCache tileCache, int frame) {
+        double t = 2 * Math.PI * frame / FRAMES;
+        float centerUtmX = (float) (20000 * Math.sin(t));
+        float centerUtmY = 6170000 - Constants.GLOBAL_OFS_Y + (float) (10000 * Math.cos(t));
+        float scaleFactor = (float) (12000 * Math.pow(2, Math.sin(2 * t)));
+        float f = CameraState.getCameraDistance(scaleFactor) / CameraState.NEAR_PLANE;
+        screenEdges[0] = (int) (centerUtmX - f * 0.6f);
+        screenEdges[1] = (int) (centerUtmY - f);
+        screenEdges[2] = (int) (centerUtmX + f * 0.6f);
+        screenEdges[3] = (int) (centerUtmY + f);
+        tileCache.getDrawOrder(screenEdges, scaleFactor, 1 / 60f);
+    }
+
+    public void testTreeUpdateDoesNotAllocate() {
+        TileLoader.setTriRoot(new File(Environment.getExternalStorageDirectory().getAbsolutePath(), "tris"));
+        TileCache tileCache = new TileCache();
+
+        // the first pass grows the node pool to what the path needs
+        for (int frame = 0; frame < FRAMES; ++frame)
+            update(tileCache, frame);
+
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        for (int frame = 0; frame < FRAMES; ++frame)
+            update(tileCache, frame);
+        Debug.stopAllocCounting();
+        assertEquals("Allocations while updating the tile tree", 0, Debug.getThreadAllocCount());
+    }
+}
@@ -0,0 +1,81 @@
+package com.max.vectormap;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+
+import java.nio.Buffer;
+
+/** {@link GL} calling the real GLES20 and GLES30 methods. */
+public class AndroidGL implements GL {
+    @Override public void glAttachShader(int program, int shader) { GLES20.glAttachShader(program, shader); }
+    @Override public void glBindBuffer(int target, int buffer) { GLES20.glBindBuffer(target, buffer); }
+    @Override public void glBindFramebuffer(int target, int framebuffer) { GLES20.glBindFramebuffer(target, framebuffer); }
+    @Override public void glBindRenderbuffer(int target, int renderbuffer) { GLES20.glBindRenderbuffer(target, renderbuffer); }
+    @Override public void glBindTexture(int target, int texture) { GLES20.glBindTexture(target, texture); }
+    @Override public void glBlendFunc(int sfactor, int dfactor) { GLES20.glBlendFunc(sfactor, dfactor); }
+    @Override public void glBufferData(int target, int size, Buffer data, int usage) { GLES20.glBufferData(target, size, data, usage); }
+    @Override public void glBufferSubData(int target, int offset, int size, Buffer data) { GLES20.glBufferSubData(target, offset, size, data); }
+    @Override public int glCheckFramebufferStatus(int target) { return GLES20.glCheckFramebufferStatus(target); }
+    @Override public void glClear(int mask) { GLES20.glClear(mask); }
+    @Override public void glClearColor(float red, float green, float blue, float alpha) { GLES20.glClearColor(red, green, blue, alpha); }
+    @Override public void glCompileShader(int shader) { GLES20.glCompileShader(shader); }
+    @Override public int glCreateProgram() { return GLES20.glCreateProgram(); }
+    @Override public int glCreateShader(int type) { return GLES20.glCreateShader(type); }
+    @Override public void glDeleteBuffers(int n, int[] buffers, int offset) { GLES20.glDeleteBuffers(n, buffers, offset); }
+    @Override public void glDeleteFramebuffers(int n, int[] framebuffers, int offset) { GLES20.glDeleteFramebuffers(n, framebuffers, offset); }
+    @Override public void glDeleteProgram(int program) { GLES20.glDeleteProgram(program); }
+    @Override public void glDeleteRenderbuffers(int n, int[] renderbuffers, int offset) { GLES20.glDeleteRenderbuffers(n, renderbuffers, offset); }
+    @Override public void glDeleteShader(int shader) { GLES20.glDeleteShader(shader); }
+    @Override public void glDeleteTextures(int n, int[] textures, int offset) { GLES20.glDeleteTextures(n, textures, offset); }
+    @Override public void glDisable(int cap) { GLES20.glDisable(cap); }
+    @Override public void glDisableVertexAttribArray(int index) { GLES20.glDisableVertexAttribArray(index); }
+    @Override public void glDrawArrays(int mode, int first, int count) { GLES20.glDrawArrays(mode, first, count); }
+    @Override public void glDrawElements(int mode, int count, int type, int offset) { GLES20.glDrawElements(mode, count, type, offset); }
+    @Override public void glDrawElements(int mode, int count, int type, Buffer indices) { GLES20.glDrawElements(mode, count, type, indices); }
+    @Override public void glEnable(int cap) { GLES20.glEnable(cap); }
+    @Override public void glEnableVertexAttribArray(int index) { GLES20.glEnableVertexAttribArray(index); }
+    @Override public void glFramebufferRenderbuffer(int target, int attachment, int renderbuffertarget, int renderbuffer) { GLES20.glFramebufferRenderbuffer(target, attachment, renderbuffertarget, renderbuffer); }
+    @Override public void glFramebufferTexture2D(int target, int attachment, int textarget, int texture, int level) { GLES20.glFramebufferTexture2D(target, attachment, textarget, texture, level); }
+    @Override public void glGenBuffers(int n, int[] buffers, int offset) { GLES20.glGenBuffers(n, buffers, offset); }
+    @Override public void glGenFramebuffers(int n, int[] framebuffers, int offset) { GLES20.glGenFramebuffers(n, framebuffers, offset); }
+    @Override public void glGenRenderbuffers(int n, int[] renderbuffers, int offset) { GLES20.glGenRenderbuffers(n, renderbuffers, offset); }
+    @Override public void glGenTextures(int n, int[] textures, int offset) { GLES20.glGenTextures(n, textures, offset); }
+    @Override public void glGenerateMipmap(int target) { GLES20.glGenerateMipmap(target); }
+    @Override public String glGetActiveAttrib(int program, int index, int[] size, int sizeOffset, int[] type, int typeOffset) { return GLES20.glGetActiveAttrib(program, index, size, sizeOffset, type, typeOffset); }
+    @Override public String glGetActiveUniform(int program, int index, int[] size, int sizeOffset, int[] type, int typeOffset) { return GLES20.glGetActiveUniform(program, index, size, sizeOffset, type, typeOffset); }
+    @Override public int glGetAttribLocation(int program, String name) { return GLES20.glGetAttribLocation(program, name); }
+    @Override public int glGetError() { return GLES20.glGetError(); }
+    @Override public void glGetIntegerv(int pname, int[] params, int offset) { GLES20.glGetIntegerv(pname, params, offset); }
+    @Override public String glGetProgramInfoLog(int program) { return GLES20.glGetProgramInfoLog(program); }
+    @Override public void glGetProgramiv(int program, int pname, int[] params, int offset) { GLES20.glGetProgramiv(program, pname, params, offset); }
+    @Override public String glGetShaderInfoLog(int shader) { return GLES20.glGetShaderInfoLog(shader); }
+    @Override public void glGetShaderiv(int shader, int pname, int[] params, int offset) { GLES20.glGetShaderiv(shader, pname, params, offset); }
+    @Override public String glGetString(int name) { return GLES20.glGetString(name); }
+    @Override public int glGetUniformLocation(int program, String name) { return GLES20.glGetUniformLocation(program, name); }
+    @Override public void glLinkProgram(int program) { GLES20.glLinkProgram(program); }
+    @Override public void glRenderbufferStorage(int target, int internalformat, int width, int height) { GLES20.glRenderbufferStorage(target, internalformat, width, height); }
+    @Override public void glShaderSource(int shader, String string) { GLES20.glShaderSource(shader, string); }
+    @Override public void glTexImage2D(int target, int level, int internalformat, int width, int height, int border, int format, int type, Buffer pixels) { GLES20.glTexImage2D(target, level, internalformat, width, height, border, format, type, pixels); }
+    @Override public void glTexParameteri(int target, int pname, int param) { GLES20.glTexParameteri(target, pname, param); }
+    @Override public void glUniform1f(int location, float x) { GLES20.glUniform1f(location, x); }
+    @Override public void glUniform1i(int location, int x) { GLES20.glUniform1i(location, x); }
+    @Override public void glUniform3f(int location, float x, float y, float z) { GLES20.glUniform3f(location, x, y, z); }
+    @Override public void glUniform4fv(int location, int count, float[] v, int offset) { GLES20.glUniform4fv(location, count, v, offset); }
+    @Override public void glUniformMatrix4fv(int location, int count, boolean transpose, float[] value, int offset) { GLES20.glUniformMatrix4fv(location, count, transpose, value, offset); }
+    @Override public void glUseProgram(int program) { GLES20.glUseProgram(program); }
+    @Override public void glVertexAttrib1f(int index, float x) { GLES20.glVertexAttrib1f(index, x); }
+    @Override public void glVertexAttribPointer(int index, int size, int type, boolean normalized, int stride, int offset) { GLES20.glVertexAttribPointer(index, size, type, normalized, stride, offset); }
+    @Override public void glVertexAttribPointer(int index, int size, int type, boolean normalized, int stride, Buffer ptr) { GLES20.glVertexAttribPointer(index, size, type, normalized, stride, ptr); }
+    @Override public void glViewport(int x, int y, int width, int height) { GLES20.glViewport(x, y, width, height); }
+    @Override public void glBindBufferRange(int target, int index, int buffer, int offset, int size) { GLES30.glBindBufferRange(target, index, buffer, offset, size); }
+    @Override public void glBindVertexArray(int array) { GLES30.glBindVertexArray(array); }
+    @Override public void glDeleteVertexArrays(int n, int[] arrays, int offset) { GLES30.glDeleteVertexArrays(n, arrays, offset); }
+    @Override public void glDrawArraysInstanced(int mode, int first, int count, int instanceCount) { GLES30.glDrawArraysInstanced(mode, first, count, instanceCount); }
+    @Override public void glGenVertexArrays(int n, int[] arrays, int offset) { GLES30.glGenVertexArrays(n, arrays, offset); }
+    @Override public void glGetProgramBinary(int program, int bufSize, int[] length, int lengthOffset, int[] binaryFormat, int binaryFormatOffset, Buffer binary) { GLES30.glGetProgramBinary(program, bufSize, length, lengthOffset, binaryFormat, binaryFormatOffset, binary); }
+    @Override public int glGetUniformBlockIndex(int program, String uniformBlockName) { return GLES30.glGetUniformBlockIndex(program, uniformBlockName); }
+    @Override public void glProgramBinary(int program, int binaryFormat, Buffer binary, int length) { GLES30.glProgramBinary(program, binaryFormat, binary, length); }
+    @Override public void glProgramParameteri(int program, int pname, int value) { GLES30.glProgramParameteri(program, pname, value); }
+    @Override public void glUniformBlockBinding(int program, int uniformBlockIndex, int uniformBlockBinding) { GLES30.glUniformBlockBinding(program, uniformBlockIndex, uniformBlockBinding); }
+    @Override public void glVertexAttribDivisor(int index, int divisor) { GLES30.glVertexAttribDivisor(index, divisor); }
+}
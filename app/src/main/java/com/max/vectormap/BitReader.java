@@ -14,6 +14,11 @@ public class BitReader {
         scratch = bitsLeft = 0;
     }
 
+    /** Starts over at the next int of the stream, e.g. after the stream moved on to another file. */
+    void reset() {
+        scratch = bitsLeft = 0;
+    }
+
     int read(int bits) throws IOException {
         if (bits > bitsLeft) {
             int v = (scratch & ((1 << bitsLeft) - 1)) << (bits - bitsLeft);
@@ -0,0 +1,199 @@
+package com.max.vectormap;
+
+import java.util.Arrays;
+
+/**
+ * Camera position shared between the UI thread, which moves it on touch events, and the render
+ * thread, which reads it once per frame. Uses a sequence lock instead of a monitor, so that neither
+ * thread ever blocks the other: the writer never waits, and a reader only retries if it raced with
+ * an update.
+ * <p>
+ * Each update carries the time of its touch event and the velocity estimated by the writer, so
+ * that the renderer can predict where the camera will be when the frame is presented, instead of
+ * showing where the last touch event left it, which lags the finger. Predictions fade out as input
+ * gets older, and a prediction that ran ahead of a slowing finger is corrected by gliding back
+ * over a few frames rather than jumping.
+ * <p>
+ * Only one thread may write.
+ */
+public class CameraState {
+    public static final float NEAR_PLANE = 0.01f;
+    public static final float FAR_PLANE = 16384;
+
+    /** Max time to predict the camera ahead by; a bit more than two frames. */
+    private static final long MAX_PREDICTION_NANOS = 40000000;
+    /** Time without input over which predictions fade out, the touch probably having stopped moving. */
+    private static final long STALE_NANOS = 50000000;
+    /** Part of a backwards step that is taken per frame, when a prediction turns out to have overshot. */
+    private static final float CORRECTION_RATE = 0.3f;
+    /** Distance below which the corrected camera snaps to the target, relative to the camera distance. */
+    private static final float SNAP_DISTANCE = 0.01f;
+
+    /**
+     * Camera position as read by the render thread, with the velocity to predict it by. Also keeps
+     * the previously shown camera, so must be reused for all frames.
+     */
+    public static class Snapshot {
+        public float centerUtmX, centerUtmY, scaleFactor;
+        /** utm per second, and log scale factor per second. */
+        float velocityX, velocityY, scaleVelocity;
+        /** Time of the touch event of the latest update. */
+        public long timeNanos;
+
+        /** Camera returned by the previous call to predict. */
+        private float shownX, shownY, shownLogScale;
+        private boolean shown = false;
+
+        /**
+         * Moves the position to where the camera is expected to be at the given presentation time.
+         * @param frameNanos Time of the current vsync, to judge how old the input is.
+         * @param presentNanos Time the frame is expected to be shown.
+         * @return True if the camera is still moving, so that more frames are needed.
+         */
+        public boolean predict(long frameNanos, long presentNanos) {
+            float weight = Math.max(0, Math.min(1, 1 - (frameNanos - timeNanos) / (float) STALE_NANOS));
+            float seconds = Math.max(-MAX_PREDICTION_NANOS, Math.min(MAX_PREDICTION_NANOS, presentNanos - timeNanos)) / 1e9f * weight;
+            float x = centerUtmX + velocityX * seconds;
+            float y = centerUtmY + velocityY * seconds;
+            float logScale = (float) Math.log(scaleFactor) + scaleVelocity * seconds;
+
+            boolean correcting = false;
+            if (shown) {
+                // A step against the direction of movement means the last prediction ran ahead of
+                // the finger; take it gradually. Per axis, which also covers a finger that stops.
+                float snap = SNAP_DISTANCE * getCameraDistance(scaleFactor);
+                if ((x - shownX) * velocityX < 0 || velocityX == 0 && Math.abs(x - shownX) > snap) {
+                    x = shownX + (x - shownX) * CORRECTION_RATE;
+                    correcting |= Math.abs(x - shownX) > snap * CORRECTION_RATE;
+                }
+                if ((y - shownY) * velocityY < 0 || velocityY == 0 && Math.abs(y - shownY) > snap) {
+                    y = shownY + (y - shownY) * CORRECTION_RATE;
+                    correcting |= Math.abs(y - shownY) > snap * CORRECTION_RATE;
+                }
+                if ((logScale - shownLogScale) * scaleVelocity < 0 || scaleVelocity == 0 && Math.abs(logScale - shownLogScale) > SNAP_DISTANCE) {
+                    logScale = shownLogScale + (logScale - shownLogScale) * CORRECTION_RATE;
+                    correcting |= Math.abs(logScale - shownLogScale) > SNAP_DISTANCE * CORRECTION_RATE;
+                }
+            }
+            shownX = centerUtmX = x;
+            shownY = centerUtmY = y;
+            shownLogScale = logScale;
+            shown = true;
+            scaleFactor = Math.max(Constants.MIN_ZOOM, Math.min(Constants.MAX_ZOOM, (float) Math.exp(logScale)));
+            return correcting || weight > 0 && (velocityX != 0 || velocityY != 0 || scaleVelocity != 0);
+        }
+    }
+
+    /** Odd while an update is being written. */
+    private volatile int sequence = 0;
+    // Data fields are volatile too, since Java 7 has no fences: plain reads could be reordered after
+    // the reader's final sequence check and go unnoticed when torn.
+    private volatile float centerUtmX, centerUtmY, scaleFactor;
+    private volatile float velocityX, velocityY, scaleVelocity;
+    private volatile long timeNanos;
+
+    public CameraState(float centerUtmX, float centerUtmY, float scaleFactor) {
+        this.centerUtmX = centerUtmX;
+        this.centerUtmY = centerUtmY;
+        this.scaleFactor = scaleFactor;
+    }
+
+    /** Latest center; for the writing thread, which sees its own updates right away. */
+    public float getCenterUtmX() {
+        return centerUtmX;
+    }
+
+    public float getCenterUtmY() {
+        return centerUtmY;
+    }
+
+    public float getScaleFactor() {
+        return scaleFactor;
+    }
+
+    /**
+     * Moves the camera. Call from the writing thread only.
+     * @param velocity utm per second in x and y, and log scale factor per second, e.g. from {@link TouchHistory}.
+     * @param timeNanos Time of the touch event causing the move, in the System.nanoTime time base.
+     */
+    public void set(float newCenterUtmX, float newCenterUtmY, float newScaleFactor, float[] velocity, long timeNanos) {
+        write(newCenterUtmX, newCenterUtmY, newScaleFactor, velocity[0], velocity[1], velocity[2], timeNanos);
+    }
+
+    /** Keeps the camera where it is, e.g. when the touch ends or starts. Call from the writing thread only. */
+    public void stop(long timeNanos) {
+        write(centerUtmX, centerUtmY, scaleFactor, 0, 0, 0, timeNanos);
+    }
+
+    private void write(float x, float y, float scale, float vx, float vy, float vs, long time) {
+        int seq = sequence;
+        sequence = seq + 1;
+        centerUtmX = x;
+        centerUtmY = y;
+        scaleFactor = scale;
+        velocityX = vx;
+        velocityY = vy;
+        scaleVelocity = vs;
+        timeNanos = time;
+        sequence = seq + 2;
+    }
+
+    /** Copies the latest update into the given snapshot. Never blocks; may be called from any thread. */
+    public void read(Snapshot out) {
+        while (true) {
+            int seq = sequence;
+            if ((seq & 1) == 0) {
+                out.centerUtmX = centerUtmX;
+                out.centerUtmY = centerUtmY;
+                out.scaleFactor = scaleFactor;
+                out.velocityX = velocityX;
+                out.velocityY = velocityY;
+                out.scaleVelocity = scaleVelocity;
+                out.timeNanos = timeNanos;
+                if (sequence == seq)
+                    return;
+            }
+            Thread.yield(); // raced with an update; the writer is done in a few instructions
+        }
+    }
+
+    /** Camera distance from the map plane at the given scale factor. */
+    public static float getCameraDistance(float scaleFactor) {
+        return 1000*1024 / scaleFactor;
+    }
+
+    /**
+     * Sets the given matrix to the projection and view of a camera looking straight down at the given
+     * center: the same as frustumM * setLookAtM, but without android.opengl.Matrix.
+     */
+    public static void getMVPMatrix(float[] m, float centerUtmX, float centerUtmY, float scaleFactor, float screenRatio) {
+        float distance = getCameraDistance(scaleFactor);
+        float a = NEAR_PLANE / screenRatio;
+        float b = NEAR_PLANE;
+        float c = -(FAR_PLANE + NEAR_PLANE) / (FAR_PLANE - NEAR_PLANE);
+        float d = -2 * FAR_PLANE * NEAR_PLANE / (FAR_PLANE - NEAR_PLANE);
+        Arrays.fill(m, 0);
+        m[0] = a;
+        m[5] = b;
+        m[10] = c;
+        m[11] = -1;
+        m[12] = -a * centerUtmX;
+        m[13] = -b * centerUtmY;
+        m[14] = -c * distance + d;
+        m[15] = distance;
+    }
+
+    /** Sets screenEdges to x0, y0, x1, y1 (utm coordinates) of the area seen by the given camera. */
+    public static void getScreenEdges(int[] screenEdges, float centerUtmX, float centerUtmY, float scaleFactor, float screenRatio) {
+        float f = getCameraDistance(scaleFactor) / NEAR_PLANE;
+        screenEdges[0] = (int)(centerUtmX - f * screenRatio + 0.5);
+        screenEdges[1] = (int)(centerUtmY - f + 0.5);
+        screenEdges[2] = (int)(centerUtmX + f * screenRatio + 0.5);
+        screenEdges[3] = (int)(centerUtmY + f + 0.5);
+    }
+
+    /** @return The utm distance covered by the given number of pixels at the given scale factor. */
+    public static float pixelToUtm(float pixel, float scaleFactor, int screenHeight) {
+        return pixel / screenHeight * 2 * getCameraDistance(scaleFactor) / NEAR_PLANE;
+    }
+}
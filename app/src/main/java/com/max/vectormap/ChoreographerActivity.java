@@ -1,25 +1,52 @@
 package com.max.vectormap;
 
 import android.os.Bundle;
+import android.os.Environment;
 import android.util.Log;
-import android.view.Choreographer;
+import android.view.Menu;
+import android.view.MenuItem;
 import android.view.MotionEvent;
 import android.view.ScaleGestureDetector;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
 import android.app.Activity;
+import android.app.ActivityManager;
 
-public class ChoreographerActivity extends Activity implements SurfaceHolder.Callback, Choreographer.FrameCallback {
+import java.io.File;
+
+public class ChoreographerActivity extends Activity implements SurfaceHolder.Callback {
     public static final String TAG = "Choreographer";
 
     // Rendering code runs on this thread.  The thread's life span is tied to the Surface.
     private ChoreographerRenderThread mRenderThread;
 
+    /** Menu items for toggling render options, indexed by ChoreographerRenderThread.OPTION_*. */
+    private static final int[] RENDER_OPTION_ITEMS = {R.id.option_depth_rejection, R.id.option_dithered_fade, R.id.option_debug_colors, R.id.option_dynamic_resolution, R.id.option_impostors, R.id.option_quality_governor};
+
+    /** Current render option values, indexed by ChoreographerRenderThread.OPTION_*. Kept here to survive surface recreation. */
+    private final boolean[] renderOptions = {true, false, false, true, false, true};
+
+    /** Whether frames should be rendered; passed on to the render thread. Only accessed from the UI thread. */
+    private boolean resumed = false;
+
+    /**
+     * Logs available system memory, which according to the below thread decides how much you can
+     * load into the GPU through OpenGL.
+     * http://stackoverflow.com/questions/16147224/proper-memory-management-in-opengl-on-android-devices
+     */
+    private void logAvailableMemory() {
+        ActivityManager activityManager = (ActivityManager) getSystemService(Activity.ACTIVITY_SERVICE);
+        ActivityManager.MemoryInfo mInfo = new ActivityManager.MemoryInfo ();
+        activityManager.getMemoryInfo(mInfo);
+        Log.v("Memory", "MB memory available: " + mInfo.availMem / 1024 / 1024);
+    }
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         Log.d(TAG, "ChoreographerActivity: onCreate");
 
-        Common.logAvailableMemory(this);
+        logAvailableMemory();
+        TileLoader.setTriRoot(new File(Environment.getExternalStorageDirectory().getAbsolutePath(), "tris"));
 
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
@@ -35,23 +62,45 @@ public class ChoreographerActivity extends Activity implements SurfaceHolder.Cal
     @Override
     protected void onPause() {
         super.onPause();
+        resumed = false;
 
-        // If the callback was posted, remove it.  This stops the notifications.  Ideally we
-        // would send a message to the thread letting it know, so when it wakes up it can
-        // reset its notion of when the previous Choreographer event arrived.
-        Log.d(TAG, "onPause unhooking choreographer");
-        Choreographer.getInstance().removeFrameCallback(this);
+        // stops the frame callbacks on the render thread
+        RenderHandler rh = mRenderThread == null ? null : mRenderThread.getHandler();
+        if (rh != null)
+            rh.sendSetPaused(true);
     }
 
     @Override
     protected void onResume() {
         super.onResume();
+        resumed = true;
 
         // If we already have a Surface, we just need to resume the frame notifications.
-        if (mRenderThread != null) {
-            Log.d(TAG, "onResume re-hooking choreographer");
-            Choreographer.getInstance().postFrameCallback(this);
+        RenderHandler rh = mRenderThread == null ? null : mRenderThread.getHandler();
+        if (rh != null)
+            rh.sendSetPaused(false);
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.menu_main, menu);
+        for (int option = 0; option < RENDER_OPTION_ITEMS.length; ++option)
+            menu.findItem(RENDER_OPTION_ITEMS[option]).setChecked(renderOptions[option]);
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        for (int option = 0; option < RENDER_OPTION_ITEMS.length; ++option) {
+            if (item.getItemId() == RENDER_OPTION_ITEMS[option]) {
+                item.setChecked(renderOptions[option] = !item.isChecked());
+                RenderHandler rh = mRenderThread == null ? null : mRenderThread.getHandler();
+                if (rh != null)
+                    rh.sendSetRenderOption(option, renderOptions[option]);
+                return true;
+            }
         }
+        return super.onOptionsItemSelected(item);
     }
 
     @Override
@@ -66,12 +115,13 @@ public class ChoreographerActivity extends Activity implements SurfaceHolder.Cal
 
         RenderHandler rh = mRenderThread.getHandler();
         if (rh != null) {
-            rh.sendSetRenderOption(true);
+            for (int option = 0; option < renderOptions.length; ++option)
+                rh.sendSetRenderOption(option, renderOptions[option]);
+            // frame callbacks start once the surface is prepared, unless paused
+            if (!resumed)
+                rh.sendSetPaused(true);
             rh.sendSurfaceCreated();
         }
-
-        // start the draw events
-        Choreographer.getInstance().postFrameCallback(this);
     }
 
     @Override
@@ -86,6 +136,7 @@ public class ChoreographerActivity extends Activity implements SurfaceHolder.Cal
 
         screenMidX = width * 0.5f;
         screenMidY = height * 0.5f;
+        screenHeight = height;
     }
 
     @Override
@@ -112,27 +163,21 @@ public class ChoreographerActivity extends Activity implements SurfaceHolder.Cal
         Log.d(TAG, "surfaceDestroyed complete");
     }
 
-    /*
-     * Choreographer callback, called near vsync.
-     *
-     * @see android.view.Choreographer.FrameCallback#doFrame(long)
-     */
-    @Override
-    public void doFrame(long frameTimeNanos) {
-        RenderHandler rh = mRenderThread.getHandler();
-        if (rh != null) {
-            Choreographer.getInstance().postFrameCallback(this);
-            rh.sendDoFrame(frameTimeNanos);
-        }
-    }
-
     float screenMidX, screenMidY;
+    int screenHeight;
+
+    private float pixelToUtm(float pixel, float scaleFactor) {
+        return CameraState.pixelToUtm(pixel, scaleFactor, screenHeight);
+    }
 
     enum ActionMode { NONE, PAN, ZOOM }
 
     private ScaleGestureDetector zoomDetector;
     private ActionMode actionMode = ActionMode.NONE;
     private float panPrevX, panPrevY;
+    /** Camera positions of the current gesture, to estimate its velocity for prediction. */
+    private final TouchHistory touchHistory = new TouchHistory();
+    private final float[] velocity = new float[3];
 
     @Override
     public boolean onTouchEvent(MotionEvent event) {
@@ -141,32 +186,46 @@ public class ChoreographerActivity extends Activity implements SurfaceHolder.Cal
                 panPrevX = event.getX();
                 panPrevY = event.getY();
                 actionMode = ActionMode.PAN;
+                touchHistory.clear();
+                mRenderThread.camera.stop(event.getEventTime() * 1000000);
                 break;
             case MotionEvent.ACTION_MOVE:
                 if (actionMode == ActionMode.PAN) {
-                    float dx = event.getX() - panPrevX;
-                    float dy = event.getY() - panPrevY;
-                    panPrevX = event.getX();
-                    panPrevY = event.getY();
-
-                    synchronized (mRenderThread.CAMERA_POSITION_LOCK) {
-                        mRenderThread.globalCenterUtmX -= mRenderThread.pixelToUtm(dx);
-                        mRenderThread.globalCenterUtmY += mRenderThread.pixelToUtm(dy);
+                    CameraState camera = mRenderThread.camera;
+                    float scaleFactor = camera.getScaleFactor();
+                    float centerUtmX = camera.getCenterUtmX(), centerUtmY = camera.getCenterUtmY();
+                    // the samples batched since the last event too, for their exact timing
+                    int historySize = event.getHistorySize();
+                    for (int h = 0; h <= historySize; ++h) {
+                        float x = h < historySize ? event.getHistoricalX(h) : event.getX();
+                        float y = h < historySize ? event.getHistoricalY(h) : event.getY();
+                        long timeMillis = h < historySize ? event.getHistoricalEventTime(h) : event.getEventTime();
+                        centerUtmX -= pixelToUtm(x - panPrevX, scaleFactor);
+                        centerUtmY += pixelToUtm(y - panPrevY, scaleFactor);
+                        panPrevX = x;
+                        panPrevY = y;
+                        touchHistory.add(timeMillis * 1000000, centerUtmX, centerUtmY, scaleFactor);
                     }
+                    touchHistory.getVelocity(velocity);
+                    camera.set(centerUtmX, centerUtmY, scaleFactor, velocity, event.getEventTime() * 1000000);
+                    mRenderThread.requestRender();
 
 //                    mapCenterUpdated();
 
 //                    Log.v("Touch", "dx="+dx+", dy="+dy+", x="+(mRenderer.centerUtmX+ VectorMapRenderer.GLOBAL_OFS_X)+", y="+(mRenderer.centerUtmY+ VectorMapRenderer.GLOBAL_OFS_Y)+", scale="+mRenderer.scaleFactor);
 
-//                    requestRender();
                 }
                 break;
             case MotionEvent.ACTION_POINTER_DOWN:
                 actionMode = ActionMode.ZOOM;
+                touchHistory.clear();
                 break;
             case MotionEvent.ACTION_UP:
             case MotionEvent.ACTION_POINTER_UP:
                 actionMode = ActionMode.NONE;
+                // no more movement to predict
+                mRenderThread.camera.stop(event.getEventTime() * 1000000);
+                mRenderThread.requestRender();
                 break;
         }
 
@@ -191,6 +250,7 @@ public class ChoreographerActivity extends Activity implements SurfaceHolder.Cal
         public boolean onScaleBegin(ScaleGestureDetector detector) {
             prevFocusX = detector.getFocusX();
             prevFocusY = detector.getFocusY();
+            touchHistory.clear();
             return true;
         }
 
@@ -198,24 +258,26 @@ public class ChoreographerActivity extends Activity implements SurfaceHolder.Cal
         public boolean onScale(ScaleGestureDetector detector) {
             float focusX = detector.getFocusX(), focusY = detector.getFocusY();
 
-            synchronized (mRenderThread.CAMERA_POSITION_LOCK) {
-                float oldScaleFactor = mRenderThread.globalScaleFactor;
-
-                mRenderThread.globalScaleFactor *= detector.getScaleFactor();
-                mRenderThread.globalScaleFactor = Math.max(Constants.MIN_ZOOM, Math.min(Constants.MAX_ZOOM, mRenderThread.globalScaleFactor));
+            CameraState camera = mRenderThread.camera;
+            float oldScaleFactor = camera.getScaleFactor();
+            float scaleFactor = oldScaleFactor * detector.getScaleFactor();
+            scaleFactor = Math.max(Constants.MIN_ZOOM, Math.min(Constants.MAX_ZOOM, scaleFactor));
 
-                // translate due to focus point moving and zoom due to pinch
-                float omScale = 1 - mRenderThread.globalScaleFactor / oldScaleFactor;
-                mRenderThread.globalCenterUtmX += mRenderThread.pixelToUtm((screenMidX - focusX) * omScale - focusX + prevFocusX);
-                mRenderThread.globalCenterUtmY -= mRenderThread.pixelToUtm((screenMidY - focusY) * omScale - focusY + prevFocusY);
+            // translate due to focus point moving and zoom due to pinch
+            float omScale = 1 - scaleFactor / oldScaleFactor;
+            float centerUtmX = camera.getCenterUtmX() + pixelToUtm((screenMidX - focusX) * omScale - focusX + prevFocusX, oldScaleFactor);
+            float centerUtmY = camera.getCenterUtmY() - pixelToUtm((screenMidY - focusY) * omScale - focusY + prevFocusY, oldScaleFactor);
+            long timeNanos = detector.getEventTime() * 1000000;
+            touchHistory.add(timeNanos, centerUtmX, centerUtmY, scaleFactor);
+            touchHistory.getVelocity(velocity);
+            camera.set(centerUtmX, centerUtmY, scaleFactor, velocity, timeNanos);
 
 //             mapCenterUpdated();
-            }
 
             prevFocusX = focusX;
             prevFocusY = focusY;
 
-//            requestRender();
+            mRenderThread.requestRender();
 
             return true;
         }
@@ -1,10 +1,13 @@
 package com.max.vectormap;
 
 import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 import android.opengl.GLES20;
-import android.opengl.Matrix;
+import android.opengl.GLUtils;
 import android.os.Looper;
 import android.util.Log;
+import android.view.Choreographer;
 import android.view.Surface;
 import android.view.SurfaceHolder;
 
@@ -12,18 +15,21 @@ import com.max.vectormap.gles.EglCore;
 import com.max.vectormap.gles.GlUtil;
 import com.max.vectormap.gles.WindowSurface;
 
+import java.io.File;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * This class handles all OpenGL rendering.
  * <p>
  * We use Choreographer to coordinate with the device vsync.  We deliver one frame
  * per vsync.  We can't actually know when the frame we render will be drawn, but at
- * least we get a consistent frame interval.
+ * least we get a consistent frame interval. The frame callbacks run on this thread's own
+ * Looper, so that frames neither wait for a message from the UI thread nor for UI thread jank.
  * <p>
  * Start the render thread after the Surface has been created.
  */
-public class ChoreographerRenderThread extends Thread {
+public class ChoreographerRenderThread extends Thread implements Choreographer.FrameCallback {
     // Object must be created on render thread to get correct Looper, but is used from
     // UI thread, so we need to declare it volatile to ensure the UI thread sees a fully
     // constructed object.
@@ -39,40 +45,116 @@ public class ChoreographerRenderThread extends Thread {
 
     // Previous frame time.
     private long mPrevTimeNanos;
+    /** Smoothed vsync interval, to predict when a frame will be shown. */
+    private float frameIntervalNanos = 16666667;
+    /**
+     * Frames between a vsync and the presentation of the camera read at it: one because draw lists
+     * are prepared a frame ahead, one for the swap to reach the display.
+     */
+    private static final int PRESENT_DELAY_FRAMES = 2;
 
     private final Context context;
 
     private TileCache tileCache;
 
-    private TextLayer textLayer;
+    /** Prepares the next frame's draw list while the current one is submitted. */
+    private final FramePreparer framePreparer;
+    /** Set when rendering stopped, so that the frame still being prepared is outdated. */
+    private boolean preparedFrameOutdated = false;
 
-    private final float[] mMVPMatrix = new float[16];
-    private final float[] mProjectionMatrix = new float[16];
-    private final float[] mViewMatrix = new float[16];
+    private TextLayer textLayer;
 
     private float screenRatio;
     private int screenWidth, screenHeight;
-    private float nearPlane = 0.01f;
 
     /**
-     * Used to synchronize access to the global camera position. Direct synchronized access is
-     * used instead of passing messages in order to reduce the overhead and ensure that the
-     * position is updated immediately.
+     * Camera position, moved by the UI thread. Read without locking once per frame, so that touch
+     * events never wait for the render thread and vice versa.
      */
-    public final Object CAMERA_POSITION_LOCK = new Object();
+    public final CameraState camera = new CameraState(400000 - Constants.GLOBAL_OFS_X, 6170000 - Constants.GLOBAL_OFS_Y, 4096);
 
-    public float globalCenterUtmX = 400000 - Constants.GLOBAL_OFS_X;
-    public float globalCenterUtmY = 6170000 - Constants.GLOBAL_OFS_Y;
-    public float globalScaleFactor = 4096;
+    private final CameraState.Snapshot cameraSnapshot = new CameraState.Snapshot();
 
-    // camera position specific to a single frame (thread safe), instance level to avoid passing
+    // camera position of the frame being drawn (thread safe), instance level to avoid passing
     // around to all methods using it
     private float frameCenterUtmX, frameCenterUtmY, frameScaleFactor;
 
-    private int glProgram;
+    /**
+     * Render option: draw tiles front to back with a per layer depth value and depth testing, so that
+     * coarser tiles hidden below finer ones are rejected before shading (reduces overdraw while
+     * both parent and child layers are drawn during layer transitions).
+     */
+    static final int OPTION_DEPTH_REJECTION = 0;
+
+    private boolean depthRejection = true;
+
+    /**
+     * Render option: cross-fade layers by discarding fragments against an ordered dither pattern
+     * instead of alpha blending, so that all tiles are drawn opaque.
+     */
+    static final int OPTION_DITHERED_FADE = 1;
+
+    private boolean ditheredFade = false;
+
+    /** Render option: color the map with the debug palette. Restyling only changes the palette uniform. */
+    static final int OPTION_DEBUG_COLORS = 2;
+
+    /**
+     * Render option: while the camera moves fast and frames are slow, render tiles at reduced
+     * resolution and upscale, instead of dropping frames.
+     */
+    static final int OPTION_DYNAMIC_RESOLUTION = 3;
+
+    private boolean dynamicResolutionEnabled = true;
+
+    private final DynamicResolution dynamicResolution = new DynamicResolution();
+
+    /** Render option: draw tiles that are small on screen as cached textures instead of triangles. */
+    static final int OPTION_IMPOSTORS = 4;
+
+    private boolean impostorsEnabled = false;
+
+    private ImpostorCache impostorCache;
+    /** Set when cached impostors no longer match what would be rendered, or are no longer needed. */
+    private boolean clearImpostors = false;
+
+    /**
+     * Render option: when a frame is predicted to miss its deadline, lower quality step by step
+     * (text, layer transitions, uploads) instead of dropping the frame.
+     */
+    static final int OPTION_QUALITY_GOVERNOR = 5;
+
+    private boolean qualityGovernorEnabled = true;
+
+    private final QualityGovernor qualityGovernor = new QualityGovernor();
+    /** QualityGovernor level of the current frame. */
+    private int quality = QualityGovernor.FULL_QUALITY;
+
+    /** RGBA color for each surface type. */
+    private float[] palette = Common.palette(Constants.COLORS_NEW);
+
+    private ShaderProgram glProgram;
+    /** Same as glProgram, but with the fragment shader compiled for dithered fading. */
+    private ShaderProgram ditherProgram;
+
+    private final GLState glState = new GLState(new AndroidGL());
+
+    /** Per tile blend and depth of the frame's render queue; only with GLES3, null otherwise. */
+    private TileUniforms tileUniforms;
+    private TileRenderer tileRenderer;
 
     private TextRenderer textRenderer = null;
 
+    /** Set when something changed that needs a new frame; the first frame is always rendered. */
+    private final AtomicBoolean renderRequested = new AtomicBoolean(true);
+    /** True while a Choreographer frame callback is posted; callbacks stop when a frame finds no request. */
+    private boolean frameCallbackPosted = false;
+    /** True while the activity is paused; no frames are rendered. */
+    private boolean paused = false;
+
+    /** Time from touch event to swapBuffers. */
+    private final LatencyStats inputLatency = new LatencyStats();
+
     /**
      * Pass in the SurfaceView's SurfaceHolder.  Note the Surface may not yet exist.
      * The context is needed to access resources.
@@ -80,8 +162,14 @@ public class ChoreographerRenderThread extends Thread {
     public ChoreographerRenderThread(SurfaceHolder holder, Context context) {
         mSurfaceHolder = holder;
         this.context = context;
-        tileCache = new TileCache(context);
-        textLayer = new TextLayer(context);
+        tileCache = new TileCache();
+        tileCache.setTileLoadedListener(new Runnable() {
+            @Override public void run() {
+                requestRender();
+            }
+        });
+        framePreparer = new FramePreparer(tileCache);
+        textLayer = new TextLayer(Common.readInputStream(context.getResources().openRawResource(R.raw.text_layer)));
     }
 
     /**
@@ -95,7 +183,10 @@ public class ChoreographerRenderThread extends Thread {
     public void run() {
         Looper.prepare();
         mHandler = new RenderHandler(this);
-        mEglCore = new EglCore(null, 0);
+        mEglCore = new EglCore(null, EglCore.FLAG_DEPTH_BUFFER | EglCore.FLAG_TRY_GLES3);
+        Log.d(ChoreographerActivity.TAG, "GLES version " + mEglCore.getGlVersion());
+        tileCache.startLoading(mEglCore.getGlVersion() >= 3);
+        framePreparer.start();
         synchronized (mStartLock) {
             mReady = true;
             mStartLock.notify();    // signal waitUntilReady()
@@ -104,6 +195,7 @@ public class ChoreographerRenderThread extends Thread {
         Looper.loop();
 
         Log.d(ChoreographerActivity.TAG, "looper quit");
+        framePreparer.quit();
         releaseGl();
         mEglCore.release();
 
@@ -133,6 +225,62 @@ public class ChoreographerRenderThread extends Thread {
         Looper.myLooper().quit();
     }
 
+    /**
+     * Requests that a new frame is rendered, e.g. since the camera moved or a tile was loaded.
+     * May be called from any thread.
+     */
+    public void requestRender() {
+        if (!renderRequested.getAndSet(true)) {
+            // frame callbacks may have stopped
+            RenderHandler handler = mHandler;
+            if (handler != null)
+                handler.sendStartFrames();
+        }
+    }
+
+    /** Starts the frame callbacks if they were stopped. (Called from RenderHandler.) */
+    void startFrameCallbacks() {
+        if (!frameCallbackPosted && !paused && mWindowSurface != null) {
+            Choreographer.getInstance().postFrameCallback(this);
+            frameCallbackPosted = true;
+        }
+    }
+
+    /** Stops or resumes rendering, when the activity is paused or resumed. (Called from RenderHandler.) */
+    void setPaused(boolean paused) {
+        Log.d(ChoreographerActivity.TAG, paused ? "pause, unhooking choreographer" : "resume, re-hooking choreographer");
+        this.paused = paused;
+        if (paused) {
+            Choreographer.getInstance().removeFrameCallback(this);
+            frameCallbackPosted = false;
+        } else {
+            mPrevTimeNanos = 0; // don't count the pause as animation time
+            requestRender();
+            startFrameCallbacks();
+        }
+    }
+
+    /** @return Moving average of the time from touch event to swapBuffers, in ms. May be called from any thread. */
+    public float getInputLatencyMs() {
+        return inputLatency.getAverageMs();
+    }
+
+    /**
+     * Choreographer callback, called near vsync on this thread.
+     *
+     * @see android.view.Choreographer.FrameCallback#doFrame(long)
+     */
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        if (renderRequested.getAndSet(false)) {
+            Choreographer.getInstance().postFrameCallback(this);
+            renderFrame(frameTimeNanos);
+        } else {
+            // idle; callbacks are started again by the next render request
+            frameCallbackPosted = false;
+        }
+    }
+
     /** Returns the render thread's Handler.  This may be called from any thread. */
     public RenderHandler getHandler() {
         return mHandler;
@@ -142,33 +290,84 @@ public class ChoreographerRenderThread extends Thread {
     void surfaceCreated() {
         Surface surface = mSurfaceHolder.getSurface();
         prepareGL(surface);
+        startFrameCallbacks();
     }
 
     /** Prepares window surface and GL state. */
     private void prepareGL(Surface surface) {
         Log.d(ChoreographerActivity.TAG, "prepareGL");
+        long startTime = System.nanoTime();
 
         mWindowSurface = new WindowSurface(mEglCore, surface, false);
         mWindowSurface.makeCurrent();
+        glState.setGlVersion(mEglCore.getGlVersion());
+        // program binaries need GLES3; on GLES2 all programs are compiled every time
+        ShaderHelper.setBinaryCache(glState.isGles3() ? new ProgramBinaryCache(glState.gl, new File(context.getCacheDir(), "programs")) : null);
 
-        textRenderer = new TextRenderer(context);
+        loadTilePrograms();
+        textRenderer = loadTextRenderer();
+        impostorCache = new ImpostorCache(context, glState, tileUniforms);
+        Log.i("PerfLog", "Programs and GL resources prepared in " + (System.nanoTime() - startTime) / 1000000 + " ms");
 
         float[] water = Common.rgb(Constants.COLORS_NEW[0]);
-        GLES20.glClearColor(water[0], water[1], water[2], 1.0f);
+        glState.gl.glClearColor(water[0], water[1], water[2], 1.0f);
 
-        GLES20.glDisable(GLES20.GL_CULL_FACE);
-        GLES20.glDisable(GLES20.GL_DEPTH_TEST);
+        glState.gl.glDisable(GLES20.GL_CULL_FACE);
+        glState.setDepthTest(false);
 
         // To test overdraw: use glBlendFunc(GLES20.GL_ONE, GLES20.GL_ONE) and half all RGB values!
-//        GLES20.glEnable(GLES20.GL_BLEND);
-//        GLES20.glBlendFunc(GLES20.GL_ONE, GLES20.GL_ONE);
-        GLES20.glDisable(GLES20.GL_BLEND);
-
-        String vertexShader = Common.readInputStream(context.getResources().openRawResource(R.raw.vertex_shader));
-        String fragmentShader = Common.readInputStream(context.getResources().openRawResource(R.raw.fragment_shader));
-        glProgram = ShaderHelper.createProgram(
-                ShaderHelper.loadShader(GLES20.GL_VERTEX_SHADER, vertexShader),
-                ShaderHelper.loadShader(GLES20.GL_FRAGMENT_SHADER, fragmentShader));
+//        glState.gl.glEnable(GLES20.GL_BLEND);
+//        glState.gl.glBlendFunc(GLES20.GL_ONE, GLES20.GL_ONE);
+        glState.setBlend(false);
+    }
+
+    /**
+     * Compiles the tile programs. With GLES3, the per tile data comes from a uniform buffer and the
+     * vertex attribute locations are fixed, so each tile keeps its setup in a vertex array object.
+     */
+    private void loadTilePrograms() {
+        boolean gles3 = glState.isGles3();
+        String version = gles3 ? ShaderHelper.GLES3_VERSION : "";
+        String vertexShader = version + "#define NR_SURFACE_TYPES " + Constants.NR_SURFACE_TYPES + "\n" +
+                Common.readInputStream(context.getResources().openRawResource(gles3 ? R.raw.vertex_shader_es3 : R.raw.vertex_shader));
+        String fragmentShader = Common.readInputStream(context.getResources().openRawResource(gles3 ? R.raw.fragment_shader_es3 : R.raw.fragment_shader));
+        glProgram = ShaderHelper.buildProgram(glState.gl, vertexShader, version + fragmentShader);
+        ditherProgram = ShaderHelper.buildProgram(glState.gl, vertexShader, version + "#define DITHERED_FADE\n" + fragmentShader);
+
+        if (gles3) {
+            tileUniforms = new TileUniforms(glState.gl, tileCache.MAX_DRAWN_TILES);
+            TileUniforms.attach(glState.gl, glProgram);
+            TileUniforms.attach(glState.gl, ditherProgram);
+        } else {
+            tileUniforms = null;
+        }
+        tileRenderer = new TileRenderer(glState, tileUniforms, tileCache.MAX_DRAWN_TILES);
+    }
+
+    /** Uploads the font bitmap to a texture and compiles the text programs. */
+    private TextRenderer loadTextRenderer() {
+        int[] textureHandle = new int[1];
+        glState.gl.glGenTextures(1, textureHandle, 0);
+        if (textureHandle[0] == 0)
+            throw new RuntimeException("Error loading texture.");
+
+        // TODO more compact format? 8 bit color + 8 bit alpha?
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inScaled = false; // No pre-scaling
+        Bitmap bitmap = BitmapFactory.decodeResource(context.getResources(), R.drawable.font_56_512_256, options);
+        int width = bitmap.getWidth(), height = bitmap.getHeight();
+        glState.bindTexture(textureHandle[0]);
+        glState.gl.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+        glState.gl.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+        GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, bitmap, 0);
+        bitmap.recycle();
+
+        boolean gles3 = glState.isGles3();
+        return new TextRenderer(glState, textureHandle[0], width, height,
+                Common.readInputStream(context.getResources().openRawResource(R.raw.vertex_shader_font_2d)),
+                Common.readInputStream(context.getResources().openRawResource(R.raw.fragment_shader_font)),
+                gles3 ? Common.readInputStream(context.getResources().openRawResource(R.raw.vertex_shader_font_instanced)) : null,
+                gles3 ? Common.readInputStream(context.getResources().openRawResource(R.raw.fragment_shader_font_es3)) : null);
     }
 
     /**
@@ -179,14 +378,13 @@ public class ChoreographerRenderThread extends Thread {
         Log.d(ChoreographerActivity.TAG, "surfaceChanged " + width + "x" + height);
 
         // Adjust the viewport based on geometry changes, such as screen rotation
-        GLES20.glViewport(0, 0, width, height);
+        glState.gl.glViewport(0, 0, width, height);
 
         screenRatio = (float) width / height;
         screenWidth = width;
         screenHeight = height;
-
-        // this projection matrix is applied to object coordinates in the onDrawFrame() method
-        Matrix.frustumM(mProjectionMatrix, 0, -screenRatio, screenRatio, -1f, 1f, nearPlane, 16384);
+        dynamicResolution.setSurfaceSize(glState, width, height);
+        requestRender();
 
         if (textRenderer != null)
             textRenderer.adjustForScreenSize(width, height);
@@ -200,6 +398,8 @@ public class ChoreographerRenderThread extends Thread {
     private void releaseGl() {
         GlUtil.checkGlError("releaseGl start");
 
+        framePreparer.drainAll(glState);
+
         if (mWindowSurface != null) {
             mWindowSurface.release();
             mWindowSurface = null;
@@ -209,16 +409,34 @@ public class ChoreographerRenderThread extends Thread {
         mEglCore.makeNothingCurrent();
     }
 
-    /** Option proof of concept. */
-    void setRenderOption(boolean option) { }
-
-    /** Handles the frame update.  Runs when Choreographer signals. */
-    void doFrame(long timeStampNanos) {
-        synchronized (CAMERA_POSITION_LOCK) {
-            frameCenterUtmX = globalCenterUtmX;
-            frameCenterUtmY = globalCenterUtmY;
-            frameScaleFactor = globalScaleFactor;
+    /** Sets one of the OPTION_* render options. (Called from RenderHandler.) */
+    void setRenderOption(int option, boolean enabled) {
+        Log.d(ChoreographerActivity.TAG, "setRenderOption " + option + " = " + enabled);
+        requestRender();
+        preparedFrameOutdated = true; // the render queue order depends on depth rejection
+        switch (option) {
+            case OPTION_DEPTH_REJECTION: depthRejection = enabled; break;
+            case OPTION_DITHERED_FADE: ditheredFade = enabled; break;
+            case OPTION_DYNAMIC_RESOLUTION: dynamicResolutionEnabled = enabled; break;
+            case OPTION_IMPOSTORS: impostorsEnabled = enabled; clearImpostors = !enabled; break;
+            case OPTION_QUALITY_GOVERNOR: qualityGovernorEnabled = enabled; break;
+            case OPTION_DEBUG_COLORS:
+                palette = Common.palette(enabled ? Constants.COLORS_DEBUG_INT : Constants.COLORS_NEW);
+                clearImpostors = true;
+                break;
+            default: throw new IllegalArgumentException("unknown render option " + option);
         }
+    }
+
+    /** Handles the frame update. */
+    private void renderFrame(long timeStampNanos) {
+        // camera as of when this frame will be shown rather than of the last touch event
+        camera.read(cameraSnapshot);
+        boolean cameraMoving = cameraSnapshot.predict(timeStampNanos,
+                timeStampNanos + (long) (PRESENT_DELAY_FRAMES * frameIntervalNanos));
+        frameCenterUtmX = cameraSnapshot.centerUtmX;
+        frameCenterUtmY = cameraSnapshot.centerUtmY;
+        frameScaleFactor = cameraSnapshot.scaleFactor;
 
         float elapsedSeconds = update(timeStampNanos);
 
@@ -227,22 +445,93 @@ public class ChoreographerRenderThread extends Thread {
         // not doing and wants to drop the clock frequencies -- we need to drop frames
         // to catch up.  The "timeStampNanos" value is based on the system monotonic
         // clock, as is System.nanoTime(), so we can compare the values directly.
-        long diff = (System.nanoTime() - timeStampNanos) / 1000000;
-        if (diff > 15) {
+        // With dynamic resolution enabled, late frames are rendered at reduced resolution instead,
+        // and with the quality governor, frames are only dropped once quality is already lowest.
+        long lateNanos = System.nanoTime() - timeStampNanos;
+        long diff = lateNanos / 1000000;
+        quality = qualityGovernorEnabled ? qualityGovernor.update(lateNanos, frameIntervalNanos) : QualityGovernor.FULL_QUALITY;
+        if (dynamicResolutionEnabled) {
+            float movedPixels = (Math.abs(frameCenterUtmX - prevFrameCenterUtmX) + Math.abs(frameCenterUtmY - prevFrameCenterUtmY)) / pixelToUtm(1);
+            dynamicResolution.update(movedPixels, frameScaleFactor / prevFrameScaleFactor - 1, lastFrameNanos / 1e6f, diff > 15);
+        } else if (diff > 15 && (!qualityGovernorEnabled || quality == QualityGovernor.CAPPED_UPLOADS)) {
             // too much, drop a frame
-            Log.d(ChoreographerActivity.TAG, "diff is " + diff + ", skipping render");
+            if (Constants.VERBOSE_LOGGING)
+                Log.d(ChoreographerActivity.TAG, "diff is " + diff + ", skipping render");
+            requestRender();
             return;
         }
-
-        draw(elapsedSeconds);
+        prevFrameCenterUtmX = frameCenterUtmX;
+        prevFrameCenterUtmY = frameCenterUtmY;
+        prevFrameScaleFactor = frameScaleFactor;
+
+        long frameStartNanos = System.nanoTime();
+        FramePreparer.DrawList drawList = nextDrawList(elapsedSeconds);
+        qualityGovernor.phaseDone(QualityGovernor.PHASE_PREPARE, System.nanoTime() - frameStartNanos);
+        draw(drawList);
+        long swapStartNanos = System.nanoTime();
+        // not counting the swap, which blocks on vsync and the buffer queue while the device keeps up
+        lastFrameNanos = swapStartNanos - frameStartNanos;
         mWindowSurface.swapBuffers();
+        long swapEndNanos = System.nanoTime();
+        qualityGovernor.phaseDone(QualityGovernor.PHASE_SWAP, swapEndNanos - swapStartNanos);
+        inputLatency.frameSubmitted(drawList.inputTimeNanos, swapEndNanos);
+        drawList.retireQueue.drain(glState);
+
+        // keep rendering while something is animating, the camera is predicted, the frame being
+        // prepared has a newer camera or quality is still lowered; otherwise go idle until the next request
+        boolean cameraAhead = drawList.centerUtmX != prevFrameCenterUtmX || drawList.centerUtmY != prevFrameCenterUtmY ||
+                drawList.scaleFactor != prevFrameScaleFactor;
+        if (drawList.animating || cameraAhead || cameraMoving || impostorsEnabled && impostorCache.hasRequests() ||
+                dynamicResolutionEnabled && dynamicResolution.isReduced() || quality != QualityGovernor.FULL_QUALITY) {
+            requestRender();
+        } else {
+            mPrevTimeNanos = 0; // don't count idle time as animation time in the next frame
+            preparedFrameOutdated = true;
+        }
     }
 
+    /**
+     * Takes the draw list prepared during the previous frame, and starts preparing the next one for
+     * the camera of this frame, so that preparation overlaps with drawing. The drawn frame thus lags
+     * one frame behind the camera, except when rendering (re)starts: then this frame's draw list is
+     * prepared first and waited for.
+     */
+    private FramePreparer.DrawList nextDrawList(float elapsedSeconds) {
+        CameraState.getScreenEdges(screenEdges, frameCenterUtmX, frameCenterUtmY, frameScaleFactor, screenRatio);
+        FramePreparer.DrawList drawList = framePreparer.take();
+        if (drawList != null && preparedFrameOutdated) {
+            // nothing of it will be drawn, but tiles evicted while preparing it must still be freed
+            drawList.retireQueue.drain(glState);
+            drawList = null;
+        }
+        if (drawList == null) {
+            framePreparer.prepare(frameCenterUtmX, frameCenterUtmY, frameScaleFactor, screenEdges, cameraSnapshot.timeNanos, elapsedSeconds, depthRejection, quality);
+            drawList = framePreparer.take();
+            elapsedSeconds = 0; // already applied to the tile blending
+        }
+        preparedFrameOutdated = false;
+        framePreparer.prepare(frameCenterUtmX, frameCenterUtmY, frameScaleFactor, screenEdges, cameraSnapshot.timeNanos, elapsedSeconds, depthRejection, quality);
+        return drawList;
+    }
+
+    /** Camera of the previous rendered frame, to measure camera speed. */
+    private float prevFrameCenterUtmX, prevFrameCenterUtmY, prevFrameScaleFactor = 1;
+    /** Time spent preparing and drawing the previous frame, up to its swap. */
+    private long lastFrameNanos;
+
     private long prevNanoTime = System.nanoTime();
     private long startOnDrawNanoTime;
 
+    private long prevStatsNanoTime = System.nanoTime();
+
     private void logFPS() {
         long time = System.nanoTime();
+        if (time - prevStatsNanoTime > Constants.ONE_SECOND_NANOS) {
+            glState.logStats();
+            inputLatency.logStats();
+            qualityGovernor.logStats();
+            prevStatsNanoTime = time;
+        }
         long fpsTime = time - prevNanoTime;
         long onDrawTime = time - startOnDrawNanoTime;
 //        textRenderer.drawText(String.format("FPS: %.1f, time: %.1f ms, ondraw: %.1f ms, tris: %d", 1e9 / fpsTime, fpsTime / 1e6, onDrawTime / 1e6, Tile.trisDrawn), 0, 0, 12);
@@ -251,22 +540,14 @@ public class ChoreographerRenderThread extends Thread {
     }
 
     float getCameraDistance() {
-        return 1000*1024 / frameScaleFactor;
+        return CameraState.getCameraDistance(frameScaleFactor);
     }
 
-    public final float pixelToUtm(float pixel) {
-        return pixel / screenHeight * 2 * getCameraDistance() / nearPlane;
+    private float pixelToUtm(float pixel) {
+        return CameraState.pixelToUtm(pixel, frameScaleFactor, screenHeight);
     }
 
     /** x0, y0, x1, y1 (utm coordinates) */
-    private void getScreenEdges(int[] screenEdges) {
-        float f = getCameraDistance() / nearPlane;
-        screenEdges[0] = (int)(frameCenterUtmX - f * screenRatio + 0.5);
-        screenEdges[1] = (int)(frameCenterUtmY - f + 0.5);
-        screenEdges[2] = (int)(frameCenterUtmX + f * screenRatio + 0.5);
-        screenEdges[3] = (int)(frameCenterUtmY + f + 0.5);
-    }
-
     private int[] screenEdges = new int[4];
 
     /**
@@ -290,6 +571,8 @@ public class ChoreographerRenderThread extends Thread {
                 Log.d(ChoreographerActivity.TAG, "Time delta too large: " +
                         (double) intervalNanos / Constants.ONE_SECOND_NANOS + " sec");
                 intervalNanos = 0;
+            } else if (intervalNanos > 5000000 && intervalNanos < 50000000) {
+                frameIntervalNanos += (intervalNanos - frameIntervalNanos) * 0.1f;
             }
         }
         mPrevTimeNanos = timeStampNanos;
@@ -299,47 +582,55 @@ public class ChoreographerRenderThread extends Thread {
         return elapsedSeconds;
     }
 
-    /** Draws the scene. */
-    private void draw(float elapsedSeconds) {
-        GlUtil.checkGlError("draw start");
+    /** Draws tiles that are small on screen from the impostor cache, once it has them. */
+    private final TileRenderer.TileSubstitute impostorSubstitute = new TileRenderer.TileSubstitute() {
+        @Override
+        public boolean draw(TileRenderer renderer, int tilePos, float depth, float blend) {
+            float tilePixels = Constants.TILE_SIZES[Common.getLayer(tilePos)] / pixelToUtm(1);
+            ImpostorCache.Impostor impostor = impostorCache.get(tilePos, tilePixels);
+            if (impostor == null)
+                return false;
+            renderer.flushMergedTiles();
+            impostorCache.draw(impostor, renderer.mvpMatrix, depth, blend);
+            return true;
+        }
+    };
+
+    /** Draws the scene, as prepared in the given draw list. */
+    private void draw(FramePreparer.DrawList drawList) {
+        GLHelper.checkGlError(glState.gl, "draw start");
 
         startOnDrawNanoTime = System.nanoTime();
+        frameCenterUtmX = drawList.centerUtmX;
+        frameCenterUtmY = drawList.centerUtmY;
+        frameScaleFactor = drawList.scaleFactor;
 
-        GLES20.glUseProgram(glProgram);
+        tileRenderer.setPalette(palette);
+        tileRenderer.setCamera(frameCenterUtmX, frameCenterUtmY, frameScaleFactor, screenRatio);
+        tileRenderer.useTileProgram(glProgram);
 
-        // Draw background color
-        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
-
-        Matrix.setLookAtM(mViewMatrix, 0, frameCenterUtmX, frameCenterUtmY, getCameraDistance(), frameCenterUtmX, frameCenterUtmY, 0f, 0f, 1.0f, 0.0f);
-        Matrix.multiplyMM(mMVPMatrix, 0, mProjectionMatrix, 0, mViewMatrix, 0);
-        int MVPMatrixHandle = GLES20.glGetUniformLocation(glProgram, "uMVPMatrix");
-        GLES20.glUniformMatrix4fv(MVPMatrixHandle, 1, false, mMVPMatrix, 0);
+        if (clearImpostors) {
+            impostorCache.clear();
+            clearImpostors = false;
+        }
+        // render impostors requested last frame before binding any other framebuffer; this changes the MVP matrix
+        if (impostorsEnabled && impostorCache.renderRequested(glProgram, tileCache, screenWidth, screenHeight))
+            tileRenderer.useTileProgram(glProgram);
 
-        int layer = Common.getLayerForScaleFactor(frameScaleFactor);
+        if (dynamicResolutionEnabled)
+            dynamicResolution.begin(glState);
 
-        getScreenEdges(screenEdges);
+        // Draw background color
+        glState.gl.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
 
-//        Log.v("View", "tx="+tx0+"-"+tx1+", ty="+ty0+"-"+ty1+", layer="+layer+", edges=["+(GLOBAL_OFS_X+screenEdges[0])+","+(GLOBAL_OFS_Y+screenEdges[1])+" - "+(GLOBAL_OFS_X+screenEdges[2])+","+(GLOBAL_OFS_Y+screenEdges[3])+"]");
 //        Log.v("TileCache", String.format("GPUx: %.0f kb", Tile.gpuBytes / 1024.0));
 //        Log.v("TileCache", "Free vertex/index buffers: " + Tile.getFreeVertexBufferCount() + " / " + Tile.getFreeIndexBufferCount());
 
-        tileCache.getDrawOrder(screenEdges, frameScaleFactor, elapsedSeconds);
+        tileRenderer.draw(drawList.renderQueue, drawList.screenEdges, ditheredFade ? ditherProgram : null, depthRejection,
+                impostorsEnabled ? impostorSubstitute : null);
 
-        tileCache.refreshForPosition(screenEdges, frameScaleFactor, layer);
-
-        Tile.trisDrawn = 0;
-
-        for (int k = 0; k < tileCache.nrDrawnTiles; ++k) {
-            if (tileCache.drawnBlendArray[k] < 1) {
-                GLES20.glEnable(GLES20.GL_BLEND);
-                GLES20.glBlendFunc(GLES20.GL_SRC_ALPHA, GLES20.GL_ONE_MINUS_SRC_ALPHA);
-            }
-
-            tileCache.get(tileCache.drawnTilePosArray[k], true).draw(glProgram, tileCache.drawnBlendArray[k]);
-
-            if (tileCache.drawnBlendArray[k] < 1)
-                GLES20.glDisable(GLES20.GL_BLEND);
-        }
+        if (dynamicResolutionEnabled)
+            dynamicResolution.end(glState);
 
 //        Log.v("View", "Triangles drawn: " + Tile.trisDrawn);
 
@@ -347,36 +638,17 @@ public class ChoreographerRenderThread extends Thread {
 
         logFPS();
 
-        for (TextString string : textLayer.strings) {
-            float f = getCameraDistance() / nearPlane;
-            float fx = ((string.x - Constants.GLOBAL_OFS_X) - frameCenterUtmX) / (f * screenRatio);
-            float fy = ((string.y - Constants.GLOBAL_OFS_Y) - frameCenterUtmY) / f;
-
-            float[] textColor = {1, 1, 1, 0};
-            if (string.category == 9) {
-                textColor[3] = 1;
-            } else if (string.category == 7) {
-                if (frameScaleFactor < 16000 && frameScaleFactor > 8000)
-                    textColor[3] = (frameScaleFactor-8000)/(16000-8000);
-                else if (frameScaleFactor >= 16000)
-                    textColor[3] = 1;
-            } else if (string.category == 8) {
-                if (frameScaleFactor < 8000 && frameScaleFactor > 4000)
-                    textColor[3] = (frameScaleFactor-4000)/(8000-4000);
-                else if (frameScaleFactor >= 8000)
-                    textColor[3] = 1;
-            } else {
-                if (frameScaleFactor < 24000 && frameScaleFactor > 16000)
-                    textColor[3] = (frameScaleFactor-16000)/(24000-16000);
-                else if (frameScaleFactor >= 24000)
-                    textColor[3] = 1;
-            }
-            if (textColor[3] > 0 && fx > -1 && fx < 1 && fy > -1 && fy < 1)
-                textRenderer.drawText(string.text, fx, fy, string.category == 9 ? 16 : 12, textColor);
+        long textStartNanos = System.nanoTime();
+        qualityGovernor.phaseDone(QualityGovernor.PHASE_TILES, textStartNanos - startOnDrawNanoTime);
+        if (QualityGovernor.drawsText(quality)) {
+            textRenderer.drawLabels(textLayer, frameCenterUtmX, frameCenterUtmY, frameScaleFactor, screenRatio);
+            qualityGovernor.phaseDone(QualityGovernor.PHASE_TEXT, System.nanoTime() - textStartNanos);
         }
 //        textRenderer.drawText(Tile.trisDrawn + " tris drawn", 0, 0, 12);
 
-        GlUtil.checkGlError("draw done");
+        glState.endFrame();
+
+        GLHelper.checkGlError(glState.gl, "draw done");
     }
 
     Random r = new Random();
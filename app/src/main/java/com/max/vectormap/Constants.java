@@ -7,6 +7,13 @@ public class Constants {
 
     public static final long ONE_SECOND_NANOS = 1000000000L;
 
+    /**
+     * Log every tile load and eviction, and other events that happen many times per second. Off by
+     * default, since building the messages allocates on paths that must not produce garbage; being a
+     * compile time constant, the disabled calls are left out of the build.
+     */
+    public static final boolean VERBOSE_LOGGING = false;
+
     /** 1 = 1 second to blend between layers; 2 = 0.5 seconds, etc. */
     public static final float LAYER_BLEND_SPEED = 3f;
 
@@ -0,0 +1,171 @@
+package com.max.vectormap;
+
+import android.opengl.GLES20;
+import android.util.Log;
+
+import com.max.vectormap.gles.Drawable2d;
+import com.max.vectormap.gles.GlUtil;
+import com.max.vectormap.gles.Texture2dProgram;
+
+/**
+ * Renders the tile layer into an offscreen framebuffer at reduced resolution while the camera moves
+ * fast and frames take too long, and upscales the result to the window. Returns to native resolution
+ * once the camera has been (almost) still for a few frames, when any upscaling blur would be visible.
+ * <p>
+ * The scale is picked from the measured frame time: one step down when frames are over budget,
+ * one step up when there is plenty of headroom. Framebuffers are created lazily, one per scale, and
+ * kept until the surface size changes, so that switching scale doesn't stall. Must only be used from
+ * the GL thread.
+ */
+public class DynamicResolution {
+    private static final float[] SCALES = {1, 0.75f, 0.5f};
+
+    /** Average frame time above which the resolution is lowered, and below which it's raised again. */
+    private static final float FRAME_BUDGET_MS = 14;
+    private static final float HEADROOM_MS = 9;
+    /** Weight of the latest frame time in the moving average. */
+    private static final float FRAME_TIME_WEIGHT = 0.2f;
+
+    /** Camera movement per frame that counts as moving fast, in pixels and as relative scale change. */
+    private static final float FAST_PAN_PIXELS = 6;
+    private static final float FAST_ZOOM = 0.01f;
+    /** Frames without fast movement before going back to native resolution. */
+    private static final int SETTLE_FRAMES = 6;
+
+    private final int[] framebuffers = new int[SCALES.length];
+    private final int[] textures = new int[SCALES.length];
+    private final int[] depthBuffers = new int[SCALES.length];
+
+    private int width, height;
+    /** Index into SCALES used for the current frame. */
+    private int level = 0;
+    private float avgFrameMs = 0;
+    private int stillFrames = SETTLE_FRAMES;
+
+    private Texture2dProgram blitProgram;
+    private final Drawable2d rectangle = new Drawable2d(Drawable2d.Prefab.FULL_RECTANGLE);
+
+    /** Must be called when the surface size changes. Releases all framebuffers. */
+    public void setSurfaceSize(GLState glState, int width, int height) {
+        release(glState);
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Records how the camera moved since the previous frame and how long the previous frame took,
+     * and picks the scale for the next frame.
+     * @param movedPixels Camera movement since the last frame, in screen pixels.
+     * @param scaleChange Relative change of the scale factor since the last frame.
+     * @param late True if the frame starts so late that it would otherwise have to be dropped.
+     */
+    public void update(float movedPixels, float scaleChange, float lastFrameMs, boolean late) {
+        avgFrameMs += (lastFrameMs - avgFrameMs) * FRAME_TIME_WEIGHT;
+
+        boolean movingFast = movedPixels > FAST_PAN_PIXELS || Math.abs(scaleChange) > FAST_ZOOM;
+        stillFrames = movingFast ? 0 : stillFrames + 1;
+
+        int prevLevel = level;
+        if (late) {
+            // render cheaply rather than dropping the frame
+            level = SCALES.length - 1;
+        } else if (stillFrames >= SETTLE_FRAMES) {
+            level = 0;
+        } else if (avgFrameMs > FRAME_BUDGET_MS && level < SCALES.length - 1) {
+            ++level;
+            avgFrameMs = FRAME_BUDGET_MS; // give the new scale a few frames to show its effect
+        } else if (avgFrameMs < HEADROOM_MS && level > 0) {
+            --level;
+            avgFrameMs = HEADROOM_MS;
+        }
+        if (level != prevLevel)
+            Log.v("PerfLog", "Render scale " + SCALES[level] + " (avg frame time " + avgFrameMs + " ms)");
+    }
+
+    /** @return True if rendering below native resolution, which needs more frames to get back to native. */
+    public boolean isReduced() {
+        return level != 0;
+    }
+
+    /**
+     * Redirects rendering to the framebuffer of the current scale, if below native resolution.
+     * Everything drawn until {@link #end} is upscaled to the window.
+     */
+    public void begin(GLState glState) {
+        if (level == 0)
+            return;
+
+        if (framebuffers[level] == 0)
+            createFramebuffer(glState, level);
+        glState.gl.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, framebuffers[level]);
+        glState.gl.glViewport(0, 0, getScaledWidth(level), getScaledHeight(level));
+    }
+
+    /** Switches back to the window and draws the upscaled framebuffer, if one was used. */
+    public void end(GLState glState) {
+        if (level == 0)
+            return;
+
+        glState.gl.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        glState.gl.glViewport(0, 0, width, height);
+        glState.gl.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT); // lets tiling GPUs skip loading the old contents
+
+        if (blitProgram == null)
+            blitProgram = new Texture2dProgram(Texture2dProgram.ProgramType.TEXTURE_2D);
+        glState.setBlend(false);
+        glState.bindVertexArray(0);
+        glState.bindArrayBuffer(0); // rectangle is drawn from client memory
+        blitProgram.draw(GlUtil.IDENTITY_MATRIX, rectangle.getVertexArray(), 0, rectangle.getVertexCount(),
+                rectangle.getCoordsPerVertex(), rectangle.getVertexStride(), GlUtil.IDENTITY_MATRIX,
+                rectangle.getTexCoordArray(), textures[level], rectangle.getTexCoordStride());
+        glState.invalidate(); // program, texture and vertex attributes were changed behind glState's back
+    }
+
+    private int getScaledWidth(int level) {
+        return Math.max(1, (int) (width * SCALES[level]));
+    }
+
+    private int getScaledHeight(int level) {
+        return Math.max(1, (int) (height * SCALES[level]));
+    }
+
+    private void createFramebuffer(GLState glState, int level) {
+        int w = getScaledWidth(level), h = getScaledHeight(level);
+
+        glState.gl.glGenTextures(1, textures, level);
+        glState.bindTexture(textures[level]);
+        glState.gl.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, w, h, 0, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+        glState.gl.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+        glState.gl.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+        glState.gl.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+        glState.gl.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+
+        // depth is needed for per layer depth rejection
+        glState.gl.glGenRenderbuffers(1, depthBuffers, level);
+        glState.gl.glBindRenderbuffer(GLES20.GL_RENDERBUFFER, depthBuffers[level]);
+        glState.gl.glRenderbufferStorage(GLES20.GL_RENDERBUFFER, GLES20.GL_DEPTH_COMPONENT16, w, h);
+        glState.gl.glBindRenderbuffer(GLES20.GL_RENDERBUFFER, 0);
+
+        glState.gl.glGenFramebuffers(1, framebuffers, level);
+        glState.gl.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, framebuffers[level]);
+        glState.gl.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0, GLES20.GL_TEXTURE_2D, textures[level], 0);
+        glState.gl.glFramebufferRenderbuffer(GLES20.GL_FRAMEBUFFER, GLES20.GL_DEPTH_ATTACHMENT, GLES20.GL_RENDERBUFFER, depthBuffers[level]);
+        int status = glState.gl.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER);
+        if (status != GLES20.GL_FRAMEBUFFER_COMPLETE)
+            throw new RuntimeException("Framebuffer not complete, status=" + status);
+
+        Log.d("PerfLog", "Created " + w + "x" + h + " framebuffer for render scale " + SCALES[level]);
+    }
+
+    /** Deletes all framebuffers; they are recreated when needed. Must be called in the GL thread. */
+    public void release(GLState glState) {
+        for (int k = 0; k < SCALES.length; ++k) {
+            if (framebuffers[k] == 0)
+                continue;
+            glState.gl.glDeleteFramebuffers(1, framebuffers, k);
+            glState.gl.glDeleteTextures(1, textures, k);
+            glState.gl.glDeleteRenderbuffers(1, depthBuffers, k);
+            framebuffers[k] = textures[k] = depthBuffers[k] = 0;
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package com.max.vectormap;
+
+import android.util.Log;
+
+/**
+ * Prepares frames on a worker thread: refreshes the tile tree and blending, plans which tiles to
+ * prefetch and evict, and builds the render queue, so that the GL thread only has to submit. While
+ * the GL thread submits one frame, the next one is prepared.
+ * <p>
+ * The two threads exchange {@link DrawList}s through a double buffer: the GL thread owns the list it
+ * last took until it takes the next one, and the worker only writes to the other one. The tile tree
+ * and eviction are only touched by the worker. Tiles evicted while preparing a frame are queued in
+ * that frame's retire queue and only freed by the GL thread after that frame is submitted, by which
+ * time no earlier frame that might still draw them is pending.
+ */
+public class FramePreparer implements Runnable {
+    /** Everything the GL thread needs to draw one frame. Not modified while owned by the GL thread. */
+    public static class DrawList {
+        /** Camera the frame was prepared for. */
+        public float centerUtmX, centerUtmY, scaleFactor;
+        /** x0, y0, x1, y1 (utm coordinates) */
+        public final int[] screenEdges = new int[4];
+        /** Time of the latest touch event reflected in the camera. */
+        public long inputTimeNanos;
+        float elapsedSeconds;
+        boolean frontToBack;
+        /** One of the QualityGovernor levels. */
+        int quality;
+
+        public final RenderQueue renderQueue;
+        /** True if tiles are still blending in or out, so that more frames are needed. */
+        public boolean animating;
+        /** Resources of tiles evicted while preparing; drain after the frame is submitted. */
+        public final RetireQueue retireQueue = new RetireQueue();
+
+        DrawList(int capacity) {
+            renderQueue = new RenderQueue(capacity);
+        }
+    }
+
+    private final TileCache tileCache;
+    private final DrawList[] drawLists;
+    /** Index of the draw list prepared next; the GL thread may own the other one. */
+    private int next = 0;
+    private boolean requested = false;
+    private boolean ready = false;
+    private boolean quit = false;
+    private final Thread thread;
+
+    public FramePreparer(TileCache tileCache) {
+        this.tileCache = tileCache;
+        drawLists = new DrawList[] {new DrawList(tileCache.MAX_DRAWN_TILES), new DrawList(tileCache.MAX_DRAWN_TILES)};
+        thread = new Thread(this, "FramePreparer");
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    /** Stops the worker thread, after it finished any frame being prepared. */
+    public void quit() {
+        synchronized (this) {
+            quit = true;
+            notifyAll();
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Starts preparing a frame for the given camera. Must not be called again before the frame was
+     * taken with {@link #take}. Call from the GL thread.
+     * @param inputTimeNanos Time of the latest touch event reflected in the camera.
+     * @param elapsedSeconds Time to advance blending animations by.
+     * @param frontToBack True if tiles will be drawn with per layer depth values and depth testing.
+     * @param quality One of the QualityGovernor levels, for the tile tree.
+     */
+    public synchronized void prepare(float centerUtmX, float centerUtmY, float scaleFactor, int[] screenEdges,
+                                     long inputTimeNanos, float elapsedSeconds, boolean frontToBack, int quality) {
+        if (requested)
+            throw new IllegalStateException("Previous frame not taken yet");
+        DrawList drawList = drawLists[next];
+        drawList.centerUtmX = centerUtmX;
+        drawList.centerUtmY = centerUtmY;
+        drawList.scaleFactor = scaleFactor;
+        System.arraycopy(screenEdges, 0, drawList.screenEdges, 0, 4);
+        drawList.inputTimeNanos = inputTimeNanos;
+        drawList.elapsedSeconds = elapsedSeconds;
+        drawList.frontToBack = frontToBack;
+        drawList.quality = quality;
+        requested = true;
+        ready = false;
+        notifyAll();
+    }
+
+    /**
+     * Waits for the frame started with {@link #prepare} and hands it to the GL thread, which owns it
+     * until the next call. Call from the GL thread.
+     * @return The prepared frame, or null if none was started.
+     */
+    public synchronized DrawList take() {
+        if (!requested)
+            return null;
+        while (!ready) {
+            try {
+                wait();
+            } catch (InterruptedException e) { /* not expected */ }
+        }
+        requested = false;
+        DrawList drawList = drawLists[next];
+        next = 1 - next;
+        return drawList;
+    }
+
+    /** Frees the resources retired by all draw lists. Call from the GL thread, after {@link #quit}. */
+    public void drainAll(GLState glState) {
+        for (DrawList drawList : drawLists)
+            drawList.retireQueue.drain(glState);
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            DrawList drawList;
+            synchronized (this) {
+                while (!quit && (!requested || ready)) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) { /* not expected */ }
+                }
+                if (quit)
+                    break;
+                drawList = drawLists[next];
+            }
+
+            int layer = Common.getLayerForScaleFactor(drawList.scaleFactor);
+            tileCache.getDrawOrder(drawList.screenEdges, drawList.scaleFactor, drawList.elapsedSeconds, drawList.quality);
+            tileCache.refreshForPosition(drawList.screenEdges, drawList.scaleFactor, layer, drawList.retireQueue);
+            // opaque tiles first, then blended ones, so that blending is toggled at most once
+            drawList.renderQueue.build(tileCache, drawList.frontToBack);
+            drawList.animating = tileCache.isAnimating();
+
+            synchronized (this) {
+                ready = true;
+                notifyAll();
+            }
+        }
+        Log.d("FramePreparer", "quit");
+    }
+}
@@ -0,0 +1,88 @@
+package com.max.vectormap;
+
+import java.nio.Buffer;
+
+/**
+ * The OpenGL ES calls made by the renderer, with the same names and parameters as the static
+ * methods of android.opengl.GLES20 and GLES30. Rendering code calls GL through an instance of this
+ * (usually {@link GLState#gl}) instead of the statics, so that it can run against
+ * {@link RecordingGL} off-device, e.g. to count draw calls and uploads per frame.
+ * <p>
+ * {@link AndroidGL} is the real implementation. The GLES3 calls must only be made when the
+ * context supports them (see {@link GLState#isGles3()}).
+ */
+public interface GL {
+    void glAttachShader(int program, int shader);
+    void glBindBuffer(int target, int buffer);
+    void glBindFramebuffer(int target, int framebuffer);
+    void glBindRenderbuffer(int target, int renderbuffer);
+    void glBindTexture(int target, int texture);
+    void glBlendFunc(int sfactor, int dfactor);
+    void glBufferData(int target, int size, Buffer data, int usage);
+    void glBufferSubData(int target, int offset, int size, Buffer data);
+    int glCheckFramebufferStatus(int target);
+    void glClear(int mask);
+    void glClearColor(float red, float green, float blue, float alpha);
+    void glCompileShader(int shader);
+    int glCreateProgram();
+    int glCreateShader(int type);
+    void glDeleteBuffers(int n, int[] buffers, int offset);
+    void glDeleteFramebuffers(int n, int[] framebuffers, int offset);
+    void glDeleteProgram(int program);
+    void glDeleteRenderbuffers(int n, int[] renderbuffers, int offset);
+    void glDeleteShader(int shader);
+    void glDeleteTextures(int n, int[] textures, int offset);
+    void glDisable(int cap);
+    void glDisableVertexAttribArray(int index);
+    void glDrawArrays(int mode, int first, int count);
+    void glDrawElements(int mode, int count, int type, int offset);
+    void glDrawElements(int mode, int count, int type, Buffer indices);
+    void glEnable(int cap);
+    void glEnableVertexAttribArray(int index);
+    void glFramebufferRenderbuffer(int target, int attachment, int renderbuffertarget, int renderbuffer);
+    void glFramebufferTexture2D(int target, int attachment, int textarget, int texture, int level);
+    void glGenBuffers(int n, int[] buffers, int offset);
+    void glGenFramebuffers(int n, int[] framebuffers, int offset);
+    void glGenRenderbuffers(int n, int[] renderbuffers, int offset);
+    void glGenTextures(int n, int[] textures, int offset);
+    void glGenerateMipmap(int target);
+    String glGetActiveAttrib(int program, int index, int[] size, int sizeOffset, int[] type, int typeOffset);
+    String glGetActiveUniform(int program, int index, int[] size, int sizeOffset, int[] type, int typeOffset);
+    int glGetAttribLocation(int program, String name);
+    int glGetError();
+    void glGetIntegerv(int pname, int[] params, int offset);
+    String glGetProgramInfoLog(int program);
+    void glGetProgramiv(int program, int pname, int[] params, int offset);
+    String glGetShaderInfoLog(int shader);
+    void glGetShaderiv(int shader, int pname, int[] params, int offset);
+    String glGetString(int name);
+    int glGetUniformLocation(int program, String name);
+    void glLinkProgram(int program);
+    void glRenderbufferStorage(int target, int internalformat, int width, int height);
+    void glShaderSource(int shader, String string);
+    void glTexImage2D(int target, int level, int internalformat, int width, int height, int border, int format, int type, Buffer pixels);
+    void glTexParameteri(int target, int pname, int param);
+    void glUniform1f(int location, float x);
+    void glUniform1i(int location, int x);
+    void glUniform3f(int location, float x, float y, float z);
+    void glUniform4fv(int location, int count, float[] v, int offset);
+    void glUniformMatrix4fv(int location, int count, boolean transpose, float[] value, int offset);
+    void glUseProgram(int program);
+    void glVertexAttrib1f(int index, float x);
+    void glVertexAttribPointer(int index, int size, int type, boolean normalized, int stride, int offset);
+    void glVertexAttribPointer(int index, int size, int type, boolean normalized, int stride, Buffer ptr);
+    void glViewport(int x, int y, int width, int height);
+
+    // GLES3 only
+    void glBindBufferRange(int target, int index, int buffer, int offset, int size);
+    void glBindVertexArray(int array);
+    void glDeleteVertexArrays(int n, int[] arrays, int offset);
+    void glDrawArraysInstanced(int mode, int first, int count, int instanceCount);
+    void glGenVertexArrays(int n, int[] arrays, int offset);
+    void glGetProgramBinary(int program, int bufSize, int[] length, int lengthOffset, int[] binaryFormat, int binaryFormatOffset, Buffer binary);
+    int glGetUniformBlockIndex(int program, String uniformBlockName);
+    void glProgramBinary(int program, int binaryFormat, Buffer binary, int length);
+    void glProgramParameteri(int program, int pname, int value);
+    void glUniformBlockBinding(int program, int uniformBlockIndex, int uniformBlockBinding);
+    void glVertexAttribDivisor(int index, int divisor);
+}
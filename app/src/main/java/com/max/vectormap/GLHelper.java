@@ -10,13 +10,21 @@ import java.nio.ShortBuffer;
 public class GLHelper {
 
     /**
-     * Utility method for debugging OpenGL calls.
+     * Utility method for debugging OpenGL calls. glGetError stalls the pipeline, so this is a no-op
+     * unless the build type enables CHECK_GL_ERRORS (only debug builds do).
      * @throws java.lang.RuntimeException If there's an error.
      */
-    public static void checkGlError() {
-        int error = GLES20.glGetError();
+    public static void checkGlError(GL gl) {
+        checkGlError(gl, null);
+    }
+
+    /** @see #checkGlError(GL) */
+    public static void checkGlError(GL gl, String op) {
+        if (!BuildConfig.CHECK_GL_ERRORS)
+            return;
+        int error = gl.glGetError();
         if (error != GLES20.GL_NO_ERROR)
-            throw new RuntimeException("GL Error " + error);
+            throw new RuntimeException((op == null ? "" : op + ": ") + "GL Error " + error);
     }
 
     /** @return GPU memory used in bytes. */
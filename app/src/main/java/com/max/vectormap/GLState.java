@@ -0,0 +1,220 @@
+package com.max.vectormap;
+
+import android.opengl.GLES20;
+import android.util.Log;
+
+/**
+ * Thin layer on top of {@link GL} that remembers the currently bound program, buffers, texture,
+ * blend state and enabled vertex attributes, and drops calls that would not change anything.
+ * <p>
+ * All GL state changes made during rendering should go through this class, otherwise the cached
+ * state goes stale. Call {@link #invalidate()} if state may have been changed behind its back
+ * (e.g. when a new GL context is made current). Must only be used from the GL thread.
+ * <p>
+ * With a GLES3 context, the element array buffer binding and the enabled vertex attributes are
+ * part of the bound vertex array object, so their cached state is forgotten when it changes.
+ * Code drawing without a vertex array object must bind vertex array 0 first.
+ */
+public class GLState {
+    private static final int UNKNOWN = -1;
+
+    /** GL used for all calls, by this class and by the code drawing with it. */
+    public final GL gl;
+
+    private boolean gles3;
+
+    private int program;
+    private int vertexArray;
+    private int arrayBuffer;
+    private int elementArrayBuffer;
+    private int texture;
+    private int blendEnabled;
+    private int blendSrc, blendDst;
+    private int depthTestEnabled;
+    /** Bit k set if vertex attribute array k is enabled. */
+    private int enabledAttribs;
+    private boolean enabledAttribsKnown;
+
+    /** State changing calls requested this frame, and how many of those were dropped as redundant. */
+    private int frameCalls, frameRedundantCalls;
+    /** Blend enable/disable calls actually issued this frame. */
+    private int frameBlendChanges;
+    /** Totals since the last call to {@link #logStats()}. */
+    private int totalCalls, totalRedundantCalls, totalBlendChanges, frames;
+    private int maxBlendChanges;
+
+    public GLState(GL gl) {
+        this.gl = gl;
+        invalidate();
+    }
+
+    /** Forget all cached state, forcing the next call of each kind to be issued. */
+    public void invalidate() {
+        program = vertexArray = arrayBuffer = elementArrayBuffer = texture = UNKNOWN;
+        blendEnabled = blendSrc = blendDst = UNKNOWN;
+        depthTestEnabled = UNKNOWN;
+        enabledAttribsKnown = false;
+    }
+
+    /** Must be called when a context is made current, with the GL version of the context. */
+    public void setGlVersion(int glVersion) {
+        gles3 = glVersion >= 3;
+        invalidate();
+    }
+
+    /** True if the current context supports GLES3, e.g. vertex array objects and uniform buffers. */
+    public boolean isGles3() {
+        return gles3;
+    }
+
+    /** Returns true if the call should be issued, and updates the call counters. */
+    private boolean changed(int current, int wanted) {
+        ++frameCalls;
+        if (current == wanted) {
+            ++frameRedundantCalls;
+            return false;
+        }
+        return true;
+    }
+
+    public void useProgram(ShaderProgram shaderProgram) {
+        if (changed(program, shaderProgram.handle))
+            gl.glUseProgram(program = shaderProgram.handle);
+    }
+
+    /** Binds a vertex array object. Does nothing without a GLES3 context, where only vertex array 0 exists. */
+    public void bindVertexArray(int array) {
+        if (!gles3)
+            return;
+        if (changed(vertexArray, array)) {
+            gl.glBindVertexArray(vertexArray = array);
+            elementArrayBuffer = UNKNOWN;
+            enabledAttribsKnown = false;
+        }
+    }
+
+    public void bindArrayBuffer(int buffer) {
+        if (changed(arrayBuffer, buffer))
+            gl.glBindBuffer(GLES20.GL_ARRAY_BUFFER, arrayBuffer = buffer);
+    }
+
+    public void bindElementArrayBuffer(int buffer) {
+        if (changed(elementArrayBuffer, buffer))
+            gl.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, elementArrayBuffer = buffer);
+    }
+
+    /** Binds a 2D texture to the currently active texture unit. Only texture unit 0 is used. */
+    public void bindTexture(int tex) {
+        if (changed(texture, tex))
+            gl.glBindTexture(GLES20.GL_TEXTURE_2D, texture = tex);
+    }
+
+    /** Enables or disables blending. When enabled, the blend function is set to src alpha / one minus src alpha. */
+    public void setBlend(boolean enabled) {
+        if (changed(blendEnabled, enabled ? 1 : 0)) {
+            blendEnabled = enabled ? 1 : 0;
+            ++frameBlendChanges;
+            if (enabled)
+                gl.glEnable(GLES20.GL_BLEND);
+            else
+                gl.glDisable(GLES20.GL_BLEND);
+        }
+        if (enabled)
+            blendFunc(GLES20.GL_SRC_ALPHA, GLES20.GL_ONE_MINUS_SRC_ALPHA);
+    }
+
+    private void blendFunc(int src, int dst) {
+        ++frameCalls;
+        if (src == blendSrc && dst == blendDst) {
+            ++frameRedundantCalls;
+            return;
+        }
+        gl.glBlendFunc(blendSrc = src, blendDst = dst);
+    }
+
+    public void setDepthTest(boolean enabled) {
+        if (changed(depthTestEnabled, enabled ? 1 : 0)) {
+            depthTestEnabled = enabled ? 1 : 0;
+            if (enabled)
+                gl.glEnable(GLES20.GL_DEPTH_TEST);
+            else
+                gl.glDisable(GLES20.GL_DEPTH_TEST);
+        }
+    }
+
+    public void enableVertexAttribArray(int index) {
+        ++frameCalls;
+        if (enabledAttribsKnown && (enabledAttribs & 1 << index) != 0) {
+            ++frameRedundantCalls;
+            return;
+        }
+        if (!enabledAttribsKnown) {
+            enabledAttribs = 0;
+            enabledAttribsKnown = true;
+        }
+        enabledAttribs |= 1 << index;
+        gl.glEnableVertexAttribArray(index);
+    }
+
+    public void disableVertexAttribArray(int index) {
+        ++frameCalls;
+        if (enabledAttribsKnown && (enabledAttribs & 1 << index) == 0) {
+            ++frameRedundantCalls;
+            return;
+        }
+        if (!enabledAttribsKnown) {
+            enabledAttribs = 0;
+            enabledAttribsKnown = true;
+        }
+        enabledAttribs &= ~(1 << index);
+        gl.glDisableVertexAttribArray(index);
+    }
+
+    /** Must be called after deleting buffers, since GL silently unbinds deleted buffers. */
+    public void buffersDeleted(int[] buffers, int offset, int count) {
+        for (int k = offset; k < offset + count; ++k) {
+            if (buffers[k] == arrayBuffer)
+                arrayBuffer = 0;
+            if (buffers[k] == elementArrayBuffer)
+                elementArrayBuffer = 0;
+        }
+    }
+
+    /** Must be called after deleting vertex arrays, since GL silently unbinds deleted vertex arrays. */
+    public void vertexArraysDeleted(int[] arrays, int offset, int count) {
+        for (int k = offset; k < offset + count; ++k) {
+            if (arrays[k] == vertexArray) {
+                vertexArray = 0;
+                elementArrayBuffer = UNKNOWN;
+                enabledAttribsKnown = false;
+            }
+        }
+    }
+
+    /** Must be called after deleting textures, since GL silently unbinds deleted textures. */
+    public void texturesDeleted(int[] textures, int offset, int count) {
+        for (int k = offset; k < offset + count; ++k)
+            if (textures[k] == texture)
+                texture = 0;
+    }
+
+    /** Call once per frame, after all drawing is done. */
+    public void endFrame() {
+        totalCalls += frameCalls;
+        totalRedundantCalls += frameRedundantCalls;
+        totalBlendChanges += frameBlendChanges;
+        maxBlendChanges = Math.max(maxBlendChanges, frameBlendChanges);
+        ++frames;
+        frameCalls = frameRedundantCalls = frameBlendChanges = 0;
+    }
+
+    /** Logs average state changes per frame since the last call, and resets the counters. */
+    public void logStats() {
+        if (frames == 0)
+            return;
+        Log.v("PerfLog", "GL state changes per frame: " + (totalCalls - totalRedundantCalls) / frames +
+                ", redundant (dropped): " + totalRedundantCalls / frames +
+                ", blend changes: " + (float) totalBlendChanges / frames + " (max " + maxBlendChanges + ")");
+        totalCalls = totalRedundantCalls = totalBlendChanges = maxBlendChanges = frames = 0;
+    }
+}
@@ -0,0 +1,235 @@
+package com.max.vectormap;
+
+import android.content.Context;
+import android.opengl.GLES20;
+import android.opengl.Matrix;
+import android.util.Log;
+
+import com.max.vectormap.gles.GlUtil;
+
+import java.nio.FloatBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of tiles rendered into textures (impostors), drawn as one textured quad per tile instead of
+ * rasterizing all triangles of the tile every frame. Only used for tiles that are small on screen,
+ * where vector detail is sub-pixel anyway.
+ * <p>
+ * The impostor resolution is the on-screen tile size rounded up to a power of two. When zooming
+ * crosses a power of two, the existing impostor is still drawn (mipmapped) while a new one is
+ * requested. Requested impostors are rendered a few per frame at the start of the next frames, and
+ * the least recently drawn impostors are evicted when the texture memory budget is exceeded.
+ * Must only be used from the GL thread.
+ */
+public class ImpostorCache {
+    private static final int MIN_SIZE = 64;
+    /** Tiles larger than this on screen (in pixels) are always drawn as vectors. */
+    private static final int MAX_SIZE = 512;
+    private static final int MAX_BYTES = 24 * 1024 * 1024;
+    private static final int MAX_RENDERS_PER_FRAME = 2;
+
+    static class Impostor {
+        final int tp;
+        final int size;
+        final int texture;
+
+        Impostor(int tp, int size, int texture) {
+            this.tp = tp;
+            this.size = size;
+            this.texture = texture;
+        }
+
+        /** Texture memory including mipmaps. */
+        int getBytes() {
+            return size * size * 4 * 4 / 3;
+        }
+    }
+
+    /** Impostors by tile position, least recently used first. */
+    private final LinkedHashMap<Integer, Impostor> impostors = new LinkedHashMap<>(64, 0.75f, true);
+    /** Requested impostor size by tile position, oldest request first. */
+    private final LinkedHashMap<Integer, Integer> requests = new LinkedHashMap<>();
+    private int bytes = 0;
+
+    private final GLState glState;
+    /** Per tile data of the GLES3 tile programs, null without GLES3. */
+    private final TileUniforms tileUniforms;
+    private final ShaderProgram program;
+    private final int[] framebuffer = new int[1];
+    private final int[] quadVbo = new int[1];
+
+    private final float[] projectionMatrix = new float[16];
+    private final int[] tileEdges = new int[4];
+
+    /**
+     * Must be created in the GL thread.
+     * @param tileUniforms Per tile data buffer of the tile programs if they are GLES3 programs, else null.
+     */
+    public ImpostorCache(Context context, GLState glState, TileUniforms tileUniforms) {
+        this.glState = glState;
+        this.tileUniforms = tileUniforms;
+
+        String vertexShader = Common.readInputStream(context.getResources().openRawResource(R.raw.vertex_shader_impostor));
+        String fragmentShader = Common.readInputStream(context.getResources().openRawResource(R.raw.fragment_shader_impostor));
+        program = ShaderHelper.buildProgram(glState.gl, vertexShader, fragmentShader);
+
+        glState.gl.glGenFramebuffers(1, framebuffer, 0);
+
+        // unit square as a triangle strip
+        FloatBuffer quad = GlUtil.createFloatBuffer(new float[] {0, 0, 1, 0, 0, 1, 1, 1});
+        glState.gl.glGenBuffers(1, quadVbo, 0);
+        glState.bindVertexArray(0);
+        glState.bindArrayBuffer(quadVbo[0]);
+        glState.gl.glBufferData(GLES20.GL_ARRAY_BUFFER, quad.capacity() * Constants.BYTES_IN_FLOAT, quad, GLES20.GL_STATIC_DRAW);
+    }
+
+    /**
+     * @param tilePixels Size of the tile on screen, in pixels.
+     * @return Impostor to draw instead of the tile, or null if the tile must be drawn as vectors.
+     * Requests a new impostor if there is none of the right size.
+     */
+    public Impostor get(int tp, float tilePixels) {
+        if (tilePixels > MAX_SIZE)
+            return null;
+
+        int size = MIN_SIZE;
+        while (size < tilePixels)
+            size *= 2;
+
+        Impostor impostor = impostors.get(tp);
+        if (impostor == null || impostor.size != size)
+            requests.put(tp, size);
+        // a too small impostor would look blurry; draw vectors until the new one is ready
+        return impostor != null && impostor.size * 2 >= size ? impostor : null;
+    }
+
+    /** @return True if there are impostors waiting to be rendered. */
+    public boolean hasRequests() {
+        return !requests.isEmpty();
+    }
+
+    /**
+     * Renders up to a few requested impostors, with the given tile program, whose palette must
+     * already be set. Changes the program's MVP matrix.
+     * @return True if anything was rendered.
+     */
+    public boolean renderRequested(ShaderProgram tileProgram, TileCache tileCache, int screenWidth, int screenHeight) {
+        int rendered = 0;
+        for (Iterator<Map.Entry<Integer, Integer>> it = requests.entrySet().iterator(); it.hasNext() && rendered < MAX_RENDERS_PER_FRAME; ) {
+            Map.Entry<Integer, Integer> request = it.next();
+            it.remove();
+            int tp = request.getKey();
+            Tile tile = tileCache.getLoaded(tp);
+            if (tile == null)
+                continue; // evicted meanwhile; will be requested again when drawn
+            render(tile, tp, request.getValue(), tileProgram);
+            ++rendered;
+        }
+        if (rendered == 0)
+            return false;
+
+        glState.gl.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        glState.gl.glViewport(0, 0, screenWidth, screenHeight);
+        return true;
+    }
+
+    private void render(Tile tile, int tp, int size, ShaderProgram tileProgram) {
+        long startTime = System.nanoTime();
+
+        Impostor old = impostors.remove(tp);
+        if (old != null)
+            delete(old);
+
+        int[] texture = new int[1];
+        glState.gl.glGenTextures(1, texture, 0);
+        glState.bindTexture(texture[0]);
+        glState.gl.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, size, size, 0, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+        glState.gl.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR_MIPMAP_LINEAR);
+        glState.gl.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+        glState.gl.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+        glState.gl.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+
+        glState.gl.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, framebuffer[0]);
+        glState.gl.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0, GLES20.GL_TEXTURE_2D, texture[0], 0);
+        glState.gl.glViewport(0, 0, size, size);
+        glState.gl.glClear(GLES20.GL_COLOR_BUFFER_BIT); // background shows where the tile has no triangles
+
+        getTileEdges(tp, tileEdges);
+        Matrix.orthoM(projectionMatrix, 0, tileEdges[0], tileEdges[2], tileEdges[1], tileEdges[3], -1, 1);
+        glState.useProgram(tileProgram);
+        glState.setBlend(false);
+        glState.setDepthTest(false);
+        glState.gl.glUniformMatrix4fv(tileProgram.getUniformLocation("uMVPMatrix"), 1, false, projectionMatrix, 0);
+        if (tileUniforms != null)
+            tileUniforms.bind(0); // opaque at depth 0
+        else
+            glState.gl.glUniform1f(tileProgram.getUniformLocation("uDepth"), 0);
+        tile.draw(glState, tileProgram, 1, tileEdges);
+
+        glState.bindTexture(texture[0]);
+        glState.gl.glGenerateMipmap(GLES20.GL_TEXTURE_2D);
+
+        Impostor impostor = new Impostor(tp, size, texture[0]);
+        impostors.put(tp, impostor);
+        bytes += impostor.getBytes();
+
+        // evict least recently drawn impostors, never the one just rendered
+        for (Iterator<Impostor> it = impostors.values().iterator(); bytes > MAX_BYTES && it.hasNext(); ) {
+            Impostor lru = it.next();
+            if (lru == impostor)
+                break;
+            it.remove();
+            delete(lru);
+        }
+
+        Log.v("PerfLog", "Rendered " + size + "x" + size + " impostor for tile " + Common.getTilePosStr(tp) + " in " +
+                (System.nanoTime() - startTime) / 1000 + " us, " + impostors.size() + " impostors, " + bytes / 1024 + " kb");
+    }
+
+    /** Tile edges (x0, y0, x1, y1) in the coordinates used by the tile vertices. */
+    private static void getTileEdges(int tp, int[] edges) {
+        int tileSize = Constants.TILE_SIZES[Common.getLayer(tp)];
+        edges[0] = Common.getTX(tp) * tileSize - Constants.GLOBAL_OFS_X;
+        edges[1] = Common.getTY(tp) * tileSize - Constants.GLOBAL_OFS_Y;
+        edges[2] = edges[0] + tileSize;
+        edges[3] = edges[1] + tileSize;
+    }
+
+    /** Draws the impostor as a quad covering its tile. */
+    public void draw(Impostor impostor, float[] mvpMatrix, float depth, float blend) {
+        glState.useProgram(program);
+        glState.bindVertexArray(0);
+        glState.bindArrayBuffer(quadVbo[0]);
+        int cornerHandle = program.getAttribLocation("aCorner");
+        glState.enableVertexAttribArray(cornerHandle);
+        glState.gl.glVertexAttribPointer(cornerHandle, 2, GLES20.GL_FLOAT, false, 0, 0);
+
+        getTileEdges(impostor.tp, tileEdges);
+        glState.gl.glUniformMatrix4fv(program.getUniformLocation("uMVPMatrix"), 1, false, mvpMatrix, 0);
+        glState.gl.glUniform3f(program.getUniformLocation("uTileRect"), tileEdges[0], tileEdges[1], tileEdges[2] - tileEdges[0]);
+        glState.gl.glUniform1f(program.getUniformLocation("uDepth"), depth);
+        glState.gl.glUniform1f(program.getUniformLocation("uBlend"), blend);
+        glState.bindTexture(impostor.texture);
+
+        glState.gl.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+    }
+
+    private final int[] deletedTexture = new int[1];
+
+    private void delete(Impostor impostor) {
+        deletedTexture[0] = impostor.texture;
+        glState.gl.glDeleteTextures(1, deletedTexture, 0);
+        glState.texturesDeleted(deletedTexture, 0, 1);
+        bytes -= impostor.getBytes();
+    }
+
+    /** Deletes all impostors, e.g. when the map style changes. */
+    public void clear() {
+        for (Impostor impostor : impostors.values())
+            delete(impostor);
+        impostors.clear();
+        requests.clear();
+    }
+}
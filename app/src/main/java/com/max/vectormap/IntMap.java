@@ -0,0 +1,56 @@
+package com.max.vectormap;
+
+import java.util.Arrays;
+
+/**
+ * Map from int keys to values in sorted parallel arrays, like {@link IntSet}, for lookups that must
+ * not box their keys. Putting and removing take linear time. Not thread safe.
+ */
+public class IntMap<V> {
+    private int[] keys;
+    private Object[] values;
+    private int size = 0;
+
+    public IntMap(int initialCapacity) {
+        keys = new int[Math.max(1, initialCapacity)];
+        values = new Object[keys.length];
+    }
+
+    /** @return The value of the given key, or null if there is none. */
+    @SuppressWarnings("unchecked")
+    public V get(int key) {
+        int k = Arrays.binarySearch(keys, 0, size, key);
+        return k >= 0 ? (V) values[k] : null;
+    }
+
+    public void put(int key, V value) {
+        int k = Arrays.binarySearch(keys, 0, size, key);
+        if (k >= 0) {
+            values[k] = value;
+            return;
+        }
+        k = -k - 1;
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            values = Arrays.copyOf(values, size * 2);
+        }
+        System.arraycopy(keys, k, keys, k + 1, size - k);
+        System.arraycopy(values, k, values, k + 1, size - k);
+        keys[k] = key;
+        values[k] = value;
+        ++size;
+    }
+
+    public void remove(int key) {
+        int k = Arrays.binarySearch(keys, 0, size, key);
+        if (k < 0)
+            return;
+        System.arraycopy(keys, k + 1, keys, k, size - k - 1);
+        System.arraycopy(values, k + 1, values, k, size - k - 1);
+        values[--size] = null;
+    }
+
+    public int size() {
+        return size;
+    }
+}
@@ -0,0 +1,73 @@
+package com.max.vectormap;
+
+import java.util.Arrays;
+
+/**
+ * Set of ints in a sorted array, for lookups that must not allocate (unlike a Set of Integer, which
+ * boxes every value outside the small Integer cache). Adding and removing take linear time, so only
+ * use for sets that change much less often than they are queried. Not thread safe.
+ */
+public class IntSet {
+    private int[] values;
+    private int size = 0;
+
+    public IntSet(int initialCapacity) {
+        values = new int[Math.max(1, initialCapacity)];
+    }
+
+    public boolean contains(int value) {
+        return Arrays.binarySearch(values, 0, size, value) >= 0;
+    }
+
+    /** @return True if the value was not in the set yet. */
+    public boolean add(int value) {
+        int k = Arrays.binarySearch(values, 0, size, value);
+        if (k >= 0)
+            return false;
+        k = -k - 1;
+        if (size == values.length) {
+            int[] newValues = new int[size * 2];
+            System.arraycopy(values, 0, newValues, 0, size);
+            values = newValues;
+        }
+        System.arraycopy(values, k, values, k + 1, size - k);
+        values[k] = value;
+        ++size;
+        return true;
+    }
+
+    /** @return True if the value was in the set. */
+    public boolean remove(int value) {
+        int k = Arrays.binarySearch(values, 0, size, value);
+        if (k < 0)
+            return false;
+        System.arraycopy(values, k + 1, values, k, size - k - 1);
+        --size;
+        return true;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    /** Replaces the contents with the first count values of the given array, in n log n time. */
+    public void set(int[] source, int count) {
+        if (count > values.length)
+            values = new int[count];
+        System.arraycopy(source, 0, values, 0, count);
+        Arrays.sort(values, 0, count);
+        size = 0;
+        for (int k = 0; k < count; ++k)
+            if (size == 0 || values[k] != values[size - 1])
+                values[size++] = values[k];
+    }
+
+    /** @return The value at the given index, in ascending order. */
+    public int get(int index) {
+        return values[index];
+    }
+
+    public int size() {
+        return size;
+    }
+}
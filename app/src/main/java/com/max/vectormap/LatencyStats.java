@@ -0,0 +1,47 @@
+package com.max.vectormap;
+
+import android.util.Log;
+
+/**
+ * Input latency: the time from a touch event until swapBuffers of the first frame showing it. Frames
+ * without new input don't count. Kept per logging interval, and as a moving average that may be
+ * read from any thread. Must otherwise only be used from the GL thread.
+ */
+public class LatencyStats {
+    /** Weight of the latest frame in the moving average. */
+    private static final float AVERAGE_WEIGHT = 0.1f;
+
+    private long lastInputNanos = 0;
+    private long totalNanos, maxNanos;
+    private int frames;
+    private volatile float averageMs;
+
+    /**
+     * Call after swapBuffers.
+     * @param inputNanos Time of the latest touch event included in the frame; 0 if there was none yet.
+     */
+    public void frameSubmitted(long inputNanos, long swapNanos) {
+        if (inputNanos == lastInputNanos)
+            return; // nothing new to show since the last frame
+        lastInputNanos = inputNanos;
+        long latencyNanos = swapNanos - inputNanos;
+        totalNanos += latencyNanos;
+        maxNanos = Math.max(maxNanos, latencyNanos);
+        ++frames;
+        averageMs += (latencyNanos / 1e6f - averageMs) * AVERAGE_WEIGHT;
+    }
+
+    /** @return Moving average of the input latency, in ms. */
+    public float getAverageMs() {
+        return averageMs;
+    }
+
+    /** Logs the average and max latency since the last call, and resets them. */
+    public void logStats() {
+        if (frames == 0)
+            return;
+        Log.v("PerfLog", String.format("Input latency: %.1f ms (max %.1f ms, %d frames)",
+                totalNanos / 1e6 / frames, maxNanos / 1e6, frames));
+        totalNanos = maxNanos = frames = 0;
+    }
+}
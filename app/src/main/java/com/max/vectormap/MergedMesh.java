@@ -0,0 +1,179 @@
+package com.max.vectormap;
+
+import android.opengl.GLES20;
+import android.util.Log;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One static vertex and index buffer holding the triangles of several tiles that are never unloaded
+ * (the top layer). Neighbouring tiles are stored after each other, so visible tiles drawn in tile
+ * position order end up as one contiguous index range and are drawn with a single call.
+ * <p>
+ * Only tiles with the surface type stored per vertex are merged, since their triangles form a single
+ * group. With short indices the number of vertices per mesh is limited, so a layer may need a few
+ * meshes; with a GLES3 context, 32 bit indices are used and the whole layer fits in one mesh.
+ * Each merged tile keeps its spatial chunks, now as index ranges within the mesh, so that per tile
+ * and per chunk visibility still works.
+ */
+public class MergedMesh {
+    private static final int MAX_SHORT_INDEX_VERTEX_COUNT = 65536;
+
+    private final int[] vbo = new int[1];
+    private final int[] ibo = new int[1];
+    /** Vertex array object, only used with GLES3. */
+    private final int[] vao = new int[1];
+
+    private final int vertexCount;
+    private final int indexCount;
+    /** GL_UNSIGNED_SHORT or GL_UNSIGNED_INT. */
+    private final int indexType;
+    private FloatBuffer vertexBuffer;
+    private Buffer indexBuffer;
+    private boolean loadedToGL = false;
+
+    /** Index ranges (start, end) added since the last flush. */
+    private final int[] ranges;
+    private int rangeCount = 0;
+
+    private MergedMesh(List<Tile> tiles, boolean intIndices) {
+        int vertexCount = 0, indexCount = 0;
+        for (Tile tile : tiles) {
+            vertexCount += tile.vertexCount;
+            indexCount += tile.indexCount;
+        }
+        this.vertexCount = vertexCount;
+        this.indexCount = indexCount;
+        vertexBuffer = ByteBuffer.allocateDirect(vertexCount * Tile.FLOATS_PER_VERTEX * Constants.BYTES_IN_FLOAT).order(ByteOrder.nativeOrder()).asFloatBuffer();
+        ShortBuffer shortIndices = null;
+        IntBuffer intIndexBuffer = null;
+        if (intIndices) {
+            indexType = GLES20.GL_UNSIGNED_INT;
+            indexBuffer = intIndexBuffer = ByteBuffer.allocateDirect(indexCount * Constants.BYTES_IN_INT).order(ByteOrder.nativeOrder()).asIntBuffer();
+        } else {
+            indexType = GLES20.GL_UNSIGNED_SHORT;
+            indexBuffer = shortIndices = ByteBuffer.allocateDirect(indexCount * Constants.BYTES_IN_SHORT).order(ByteOrder.nativeOrder()).asShortBuffer();
+        }
+        ranges = new int[tiles.size() * (Tile.NR_CHUNKS + 2)];
+
+        int vertexOffset = 0, indexOffset = 0;
+        for (Tile tile : tiles) {
+            // pooled buffers may be larger than the tile data
+            FloatBuffer tileVertices = tile.tmpVertexBuffer.buffer.duplicate();
+            tileVertices.limit(tile.vertexCount * Tile.FLOATS_PER_VERTEX);
+            vertexBuffer.put(tileVertices);
+            ShortBuffer tileIndices = tile.tmpIndexBuffer.buffer;
+            if (intIndices) {
+                for (int k = 0; k < tile.indexCount; ++k)
+                    intIndexBuffer.put((tileIndices.get(k) & 0xffff) + vertexOffset);
+            } else {
+                for (int k = 0; k < tile.indexCount; ++k)
+                    shortIndices.put((short) ((tileIndices.get(k) & 0xffff) + vertexOffset));
+            }
+            tile.tmpVertexBuffer.claimed = false;
+            tile.tmpIndexBuffer.claimed = false;
+            // not used again, and would keep the buffers from being freed when dropped from the pools
+            tile.tmpVertexBuffer = null;
+            tile.tmpIndexBuffer = null;
+
+            for (int c = 0; c < tile.chunkStart.length; ++c)
+                tile.chunkStart[c] += indexOffset;
+            tile.mesh = this;
+
+            vertexOffset += tile.vertexCount;
+            indexOffset += tile.indexCount;
+        }
+        vertexBuffer.position(0);
+        indexBuffer.position(0);
+    }
+
+    /**
+     * Merges the given tiles into as few meshes as possible, in the given order. Tiles that don't
+     * store the surface type per vertex are left alone. Must be called before any of the tiles are
+     * loaded to GL. This method is GL agnostic and does therefore not need to be called in the GL thread.
+     * @param intIndices Use 32 bit indices, which needs GLES3, instead of splitting at 64k vertices.
+     */
+    public static List<MergedMesh> merge(List<Tile> tiles, boolean intIndices) {
+        List<MergedMesh> meshes = new ArrayList<>();
+        List<Tile> meshTiles = new ArrayList<>();
+        int vertexCount = 0;
+        for (Tile tile : tiles) {
+            if (!tile.isTypePerVertex())
+                continue;
+            if (!intIndices && vertexCount + tile.vertexCount > MAX_SHORT_INDEX_VERTEX_COUNT) {
+                meshes.add(new MergedMesh(meshTiles, false));
+                meshTiles.clear();
+                vertexCount = 0;
+            }
+            meshTiles.add(tile);
+            vertexCount += tile.vertexCount;
+        }
+        if (!meshTiles.isEmpty())
+            meshes.add(new MergedMesh(meshTiles, intIndices));
+        return meshes;
+    }
+
+    /** Must be executed in GL thread. */
+    private void loadToGL(GLState glState) {
+        glState.bindVertexArray(0); // don't change the index buffer of any tile's vertex array
+        glState.gl.glGenBuffers(1, vbo, 0);
+        glState.gl.glGenBuffers(1, ibo, 0);
+        if (vbo[0] <= 0 || ibo[0] <= 0)
+            throw new RuntimeException("Buffer error: " + vbo[0] + ", " + ibo[0]);
+
+        int vertexBytes = vertexCount * Tile.FLOATS_PER_VERTEX * Constants.BYTES_IN_FLOAT;
+        glState.bindArrayBuffer(vbo[0]);
+        glState.gl.glBufferData(GLES20.GL_ARRAY_BUFFER, vertexBytes, vertexBuffer, GLES20.GL_STATIC_DRAW);
+
+        int indexBytes = indexCount * (indexType == GLES20.GL_UNSIGNED_INT ? Constants.BYTES_IN_INT : Constants.BYTES_IN_SHORT);
+        glState.bindElementArrayBuffer(ibo[0]);
+        glState.gl.glBufferData(GLES20.GL_ELEMENT_ARRAY_BUFFER, indexBytes, indexBuffer, GLES20.GL_STATIC_DRAW);
+
+        Tile.gpuBytes += vertexBytes + indexBytes;
+        Log.d("TileCache", "Loaded merged mesh to GL: " + vertexCount + " verts, " + indexCount / 3 + " tris");
+
+        vertexBuffer = null;
+        indexBuffer = null;
+        loadedToGL = true;
+    }
+
+    /**
+     * Queues the visible chunks of the given tile, which must be part of this mesh, for drawing with
+     * the next {@link #flush}. Ranges of tiles added after each other merge if they are adjacent.
+     */
+    public void add(Tile tile, int[] screenEdges) {
+        rangeCount = tile.getVisibleRanges(0, screenEdges, ranges, rangeCount);
+    }
+
+    /** Draws all ranges queued since the last flush with the given blend, if any. */
+    public void flush(GLState glState, ShaderProgram program, float blend) {
+        if (rangeCount == 0)
+            return;
+
+        if (!loadedToGL)
+            loadToGL(glState);
+
+        if (glState.isGles3()) {
+            if (vao[0] == 0)
+                vao[0] = Tile.createVertexArray(glState, program, vbo[0], ibo[0], true);
+            glState.bindVertexArray(vao[0]);
+        } else {
+            glState.bindArrayBuffer(vbo[0]);
+            glState.bindElementArrayBuffer(ibo[0]);
+            Tile.setVertexAttribs(glState, program, true);
+        }
+        int blendHandle = program.getUniformLocation("uBlend");
+        if (blendHandle != -1)
+            glState.gl.glUniform1f(blendHandle, blend);
+
+        Tile.drawRanges(glState.gl, ranges, rangeCount, indexType);
+        rangeCount = 0;
+    }
+}
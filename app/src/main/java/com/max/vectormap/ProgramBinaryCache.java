@@ -0,0 +1,126 @@
+package com.max.vectormap;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Disk cache of linked program binaries, so that shaders are only compiled on the first launch
+ * (and after driver updates) instead of on every surface creation.
+ * <p>
+ * Binaries are stored one file per program, named by a hash of the driver version, renderer and
+ * both shader sources, so a changed shader or driver simply misses the cache. A binary the driver
+ * rejects, or a file too short to hold one, is deleted and the program is compiled again. Files are
+ * written under a temporary name and then renamed, so that being killed while writing one doesn't
+ * leave a truncated file behind. Needs GLES3 (glGetProgramBinary; the OES
+ * extension has no Java binding). Must only be used from the GL thread.
+ */
+public class ProgramBinaryCache {
+    private final GL gl;
+    private final File dir;
+    /** Identifies the driver, since binaries are only valid for the driver that created them. */
+    private final String driverKey;
+
+    /** Must be created in the GL thread, with a current GLES3 context. */
+    public ProgramBinaryCache(GL gl, File dir) {
+        this.gl = gl;
+        this.dir = dir;
+        driverKey = gl.glGetString(GLES20.GL_VERSION) + "\n" + gl.glGetString(GLES20.GL_RENDERER);
+        if (!dir.isDirectory() && !dir.mkdirs())
+            Log.w("Shader", "Could not create program cache directory " + dir);
+    }
+
+    private File getFile(String vertexSource, String fragmentSource) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            digest.update((driverKey + "\n" + vertexSource + "\n" + fragmentSource).getBytes("UTF-8"));
+            StringBuilder name = new StringBuilder();
+            for (byte b : digest.digest())
+                name.append(String.format("%02x", b));
+            return new File(dir, name.append(".bin").toString());
+        } catch (NoSuchAlgorithmException | IOException e) {
+            throw new IllegalStateException("Error hashing shader source", e);
+        }
+    }
+
+    /** @return The cached program for the given sources, or null if there is none or the driver rejected it. */
+    public ShaderProgram load(String vertexSource, String fragmentSource) {
+        File file = getFile(vertexSource, fragmentSource);
+        if (!file.isFile())
+            return null;
+
+        ByteBuffer binary;
+        int format;
+        try (FileInputStream in = new FileInputStream(file)) {
+            FileChannel channel = in.getChannel();
+            if (channel.size() <= Constants.BYTES_IN_INT) {
+                Log.w("Shader", "Program binary " + file + " is truncated, recompiling");
+                file.delete();
+                return null;
+            }
+            ByteBuffer data = ByteBuffer.allocateDirect((int) channel.size()).order(ByteOrder.nativeOrder());
+            while (data.hasRemaining() && channel.read(data) >= 0) { }
+            data.flip();
+            format = data.getInt();
+            binary = data.slice();
+        } catch (IOException e) {
+            Log.w("Shader", "Error reading program binary " + file, e);
+            return null;
+        }
+
+        int program = gl.glCreateProgram();
+        gl.glProgramBinary(program, format, binary, binary.remaining());
+        int[] linkStatus = new int[1];
+        gl.glGetProgramiv(program, GLES20.GL_LINK_STATUS, linkStatus, 0);
+        if (linkStatus[0] == 0) {
+            Log.d("Shader", "Program binary rejected, recompiling");
+            gl.glDeleteProgram(program);
+            file.delete();
+            return null;
+        }
+        return new ShaderProgram(gl, program);
+    }
+
+    /** Stores the binary of the given program, which must be linked from the given sources. */
+    public void store(int program, String vertexSource, String fragmentSource) {
+        int[] length = new int[1];
+        gl.glGetProgramiv(program, GLES30.GL_PROGRAM_BINARY_LENGTH, length, 0);
+        if (length[0] <= 0)
+            return; // driver doesn't support any binary format
+
+        ByteBuffer data = ByteBuffer.allocateDirect(Constants.BYTES_IN_INT + length[0]).order(ByteOrder.nativeOrder());
+        data.position(Constants.BYTES_IN_INT);
+        ByteBuffer binary = data.slice();
+        int[] format = new int[1];
+        gl.glGetProgramBinary(program, length[0], length, 0, format, 0, binary);
+        data.putInt(0, format[0]);
+        data.position(0);
+        data.limit(Constants.BYTES_IN_INT + length[0]);
+
+        File file = getFile(vertexSource, fragmentSource);
+        File tmpFile = new File(dir, file.getName() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmpFile)) {
+            FileChannel channel = out.getChannel();
+            while (data.hasRemaining())
+                channel.write(data);
+        } catch (IOException e) {
+            Log.w("Shader", "Error writing program binary " + tmpFile, e);
+            tmpFile.delete();
+            return;
+        }
+        if (!tmpFile.renameTo(file)) {
+            Log.w("Shader", "Error renaming program binary " + tmpFile + " to " + file);
+            tmpFile.delete();
+        }
+    }
+}
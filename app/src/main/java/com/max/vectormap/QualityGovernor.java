@@ -0,0 +1,149 @@
+package com.max.vectormap;
+
+import android.util.Log;
+
+/**
+ * Lowers rendering quality step by step when a frame is predicted to miss its vsync deadline, and
+ * restores it once there is headroom again, instead of dropping whole frames. The prediction is how
+ * late the frame starts plus the moving averages of the time spent in each phase of a frame, except
+ * the buffer swap: it mostly waits for vsync and a free buffer, and that wait runs into the next
+ * frame only if it makes the frame start late, which is counted already.
+ * <p>
+ * Levels are cumulative, cheapest visible loss first: skip text labels, shorten layer transitions,
+ * hold the coarser layer instead of blending in the finer one, and cap the number of tiles uploaded
+ * to GL per frame. Tile tree levels take effect through the draw list prepared with them. Every level
+ * change is logged with the phase times that caused it. Must only be used from the GL thread; the
+ * static level queries may be used from any thread.
+ */
+public class QualityGovernor {
+    public static final int FULL_QUALITY = 0;
+    public static final int NO_TEXT = 1;
+    public static final int FAST_BLEND = 2;
+    public static final int HOLD_COARSER_LAYER = 3;
+    public static final int CAPPED_UPLOADS = 4;
+    private static final String[] LEVEL_NAMES = {"full", "no text", "fast blend", "hold coarser layer", "capped uploads"};
+
+    /** Phases of a frame, each timed separately. */
+    public static final int PHASE_PREPARE = 0;
+    public static final int PHASE_TILES = 1;
+    public static final int PHASE_TEXT = 2;
+    /** Only logged, not part of the prediction. */
+    public static final int PHASE_SWAP = 3;
+    private static final int NR_PHASES = 4;
+
+    /** Part of the frame interval a frame may take; the rest is margin for the compositor. */
+    private static final float BUDGET = 0.85f;
+    /** Part of the frame interval below which the predicted frame time has enough headroom to raise quality. */
+    private static final float HEADROOM = 0.6f;
+    /** Frames with headroom before raising quality by one level. */
+    private static final int RESTORE_FRAMES = 30;
+    /** Frames after lowering quality before lowering it further, to let the effect show. */
+    private static final int SETTLE_FRAMES = 4;
+    /** Weight of the latest frame in the phase time moving averages. */
+    private static final float PHASE_TIME_WEIGHT = 0.2f;
+
+    /** Layer blending speedup with {@link #FAST_BLEND}. */
+    private static final float FAST_BLEND_FACTOR = 3;
+    /** Tiles that may be uploaded to GL per frame with {@link #CAPPED_UPLOADS}. */
+    private static final int MAX_CAPPED_UPLOADS = 1;
+
+    private int level = FULL_QUALITY;
+    private final float[] phaseMs = new float[NR_PHASES];
+    private int headroomFrames = 0;
+    private int settleFrames = 0;
+
+    // for logStats
+    private final int[] levelFrames = new int[LEVEL_NAMES.length];
+    private int levelChanges = 0;
+
+    public static boolean drawsText(int level) {
+        return level < NO_TEXT;
+    }
+
+    /** @return Factor to speed up layer blending by. */
+    public static float getBlendSpeedFactor(int level) {
+        return level >= FAST_BLEND ? FAST_BLEND_FACTOR : 1;
+    }
+
+    /** @return True if finer tiles should not start blending in over a fully drawn coarser tile. */
+    public static boolean holdsCoarserLayer(int level) {
+        return level >= HOLD_COARSER_LAYER;
+    }
+
+    /** @return Max number of tiles to start drawing per frame that are not uploaded to GL yet. */
+    public static int getMaxUploads(int level) {
+        return level >= CAPPED_UPLOADS ? MAX_CAPPED_UPLOADS : Integer.MAX_VALUE;
+    }
+
+    /** Records the time spent in one of the PHASE_* phases of the current frame. */
+    public void phaseDone(int phase, long nanos) {
+        phaseMs[phase] += (nanos / 1e6f - phaseMs[phase]) * PHASE_TIME_WEIGHT;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * Predicts the time of the frame about to be rendered and picks its quality level. Call once per
+     * frame, at its start.
+     * @param lateNanos Time since the frame's vsync.
+     * @param frameIntervalNanos Time between vsyncs.
+     * @return The quality level for this frame.
+     */
+    public int update(long lateNanos, float frameIntervalNanos) {
+        float intervalMs = frameIntervalNanos / 1e6f;
+        float predictedMs = predictMs(level, lateNanos);
+        if (settleFrames > 0)
+            --settleFrames;
+
+        if (predictedMs > intervalMs * BUDGET) {
+            headroomFrames = 0;
+            if (level < CAPPED_UPLOADS && settleFrames == 0) {
+                setLevel(level + 1, predictedMs, intervalMs, lateNanos);
+                settleFrames = SETTLE_FRAMES;
+            }
+        } else if (level > FULL_QUALITY && predictMs(level - 1, lateNanos) < intervalMs * HEADROOM) {
+            if (++headroomFrames >= RESTORE_FRAMES) {
+                setLevel(level - 1, predictedMs, intervalMs, lateNanos);
+                headroomFrames = 0;
+            }
+        } else {
+            headroomFrames = 0;
+        }
+        ++levelFrames[level];
+        return level;
+    }
+
+    /** Text is the only phase that is skipped entirely; its average is kept from when it was last drawn. */
+    private float predictMs(int level, long lateNanos) {
+        float ms = lateNanos / 1e6f + phaseMs[PHASE_PREPARE] + phaseMs[PHASE_TILES];
+        return drawsText(level) ? ms + phaseMs[PHASE_TEXT] : ms;
+    }
+
+    private void setLevel(int newLevel, float predictedMs, float intervalMs, long lateNanos) {
+        Log.v("PerfLog", String.format("Quality %s -> %s: predicted %.1f ms of %.1f ms (late %.1f, prepare %.1f, tiles %.1f, text %.1f, swap %.1f)",
+                LEVEL_NAMES[level], LEVEL_NAMES[newLevel], predictedMs, intervalMs, lateNanos / 1e6f,
+                phaseMs[PHASE_PREPARE], phaseMs[PHASE_TILES], phaseMs[PHASE_TEXT], phaseMs[PHASE_SWAP]));
+        level = newLevel;
+        ++levelChanges;
+    }
+
+    /** Logs the frames rendered at each level since the last call, and resets the counts. */
+    public void logStats() {
+        int frames = 0;
+        for (int count : levelFrames)
+            frames += count;
+        if (levelFrames[FULL_QUALITY] < frames) { // nothing to report while at full quality
+            StringBuilder sb = new StringBuilder("Quality levels:");
+            for (int k = 0; k < LEVEL_NAMES.length; ++k)
+                if (levelFrames[k] > 0)
+                    sb.append(String.format(" %s %d%%,", LEVEL_NAMES[k], levelFrames[k] * 100 / frames));
+            sb.append(String.format(" %d changes in %d frames", levelChanges, frames));
+            Log.v("PerfLog", sb.toString());
+        }
+        for (int k = 0; k < LEVEL_NAMES.length; ++k)
+            levelFrames[k] = 0;
+        levelChanges = 0;
+    }
+}
@@ -0,0 +1,339 @@
+package com.max.vectormap;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+
+import java.nio.Buffer;
+import java.nio.CharBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Fake {@link GL} that draws nothing, but counts what a real GL would have to do: draw calls,
+ * triangles, state changes and uploaded bytes, plus the size of every buffer object. Optionally
+ * logs every call. Only uses GL constants, so it runs on a plain JVM.
+ * <p>
+ * Calls are only turned into strings when logging them, and bound buffers and buffer sizes are
+ * tracked without boxing, so that drawing allocates nothing and allocation tests can use this
+ * instead of a real GL.
+ * <p>
+ * Shader sources are scanned for attribute and uniform declarations, so that {@link ShaderProgram}
+ * finds the same names as with a real driver. Compiling and linking always succeeds. No program
+ * binary formats are supported: programs loaded from a binary fail to link, like with a driver that
+ * rejects the binary. Counters accumulate until {@link #resetCounters()}, e.g. once per frame to
+ * check per frame budgets.
+ */
+public class RecordingGL implements GL {
+    private static final Pattern ATTRIBUTE = Pattern.compile(
+            "^\\s*(?:layout\\s*\\(\\s*location\\s*=\\s*(\\d+)\\s*\\)\\s*)?(?:attribute|in)\\s+(?:\\w+\\s+)?\\w+\\s+(\\w+)\\s*;", Pattern.MULTILINE);
+    private static final Pattern UNIFORM = Pattern.compile(
+            "^\\s*uniform\\s+(?:\\w+\\s+)?\\w+\\s+(\\w+)\\s*(?:\\[[^\\]]*\\])?\\s*;", Pattern.MULTILINE);
+
+    private final StringBuilder log;
+    private int nextName = 1;
+
+    private int drawCalls, triangles, stateChanges, uniformCalls, uploadedBytes;
+
+    /** Size in bytes of each buffer object, by name; 0 for deleted buffers and other objects. */
+    private int[] bufferSizes = new int[64];
+    /** Buffer bound to each target that was bound so far; there are only a few targets. */
+    private int[] boundTargets = new int[0], boundBuffers = new int[0];
+
+    private final Map<Integer, String> shaderSources = new HashMap<>();
+    private final Map<Integer, Integer> shaderTypes = new HashMap<>();
+
+    private static class Program {
+        final List<Integer> shaders = new ArrayList<>();
+        final List<String> attribs = new ArrayList<>();
+        final List<Integer> attribLocations = new ArrayList<>();
+        final List<String> uniforms = new ArrayList<>();
+        String sources = "";
+        boolean linked;
+    }
+
+    private final Map<Integer, Program> programs = new HashMap<>();
+
+    /** @param logCalls Keep a log of all calls, see {@link #getLog()}. */
+    public RecordingGL(boolean logCalls) {
+        log = logCalls ? new StringBuilder() : null;
+    }
+
+    public int getDrawCalls() { return drawCalls; }
+    public int getTriangles() { return triangles; }
+    /** Binds, enables/disables, program changes and vertex attribute setup. */
+    public int getStateChanges() { return stateChanges; }
+    public int getUniformCalls() { return uniformCalls; }
+    /** Bytes passed to glBufferData, glBufferSubData and glTexImage2D. */
+    public int getUploadedBytes() { return uploadedBytes; }
+
+    /** @return Total size of all buffer objects that currently exist. */
+    public int getBufferBytes() {
+        int bytes = 0;
+        for (int size : bufferSizes)
+            bytes += size;
+        return bytes;
+    }
+
+    public void resetCounters() {
+        drawCalls = triangles = stateChanges = uniformCalls = uploadedBytes = 0;
+    }
+
+    /** @return All calls since creation, one per line, or null if not logging calls. */
+    public String getLog() {
+        return log == null ? null : log.toString();
+    }
+
+    private void record(String call) {
+        if (log != null)
+            log.append(call).append('\n');
+    }
+
+    private void gen(int n, int[] names, int offset) {
+        for (int k = offset; k < offset + n; ++k)
+            names[k] = nextName++;
+    }
+
+    private void bindBuffer(int target, int buffer) {
+        for (int k = 0; k < boundTargets.length; ++k) {
+            if (boundTargets[k] == target) {
+                boundBuffers[k] = buffer;
+                return;
+            }
+        }
+        boundTargets = Arrays.copyOf(boundTargets, boundTargets.length + 1);
+        boundBuffers = Arrays.copyOf(boundBuffers, boundBuffers.length + 1);
+        boundTargets[boundTargets.length - 1] = target;
+        boundBuffers[boundBuffers.length - 1] = buffer;
+    }
+
+    private int getBoundBuffer(int target) {
+        for (int k = 0; k < boundTargets.length; ++k)
+            if (boundTargets[k] == target)
+                return boundBuffers[k];
+        return 0;
+    }
+
+    private void draw(int mode, int count, int instances) {
+        ++drawCalls;
+        if (mode == GLES20.GL_TRIANGLES)
+            triangles += count / 3 * instances;
+        else if (mode == GLES20.GL_TRIANGLE_STRIP)
+            triangles += Math.max(0, count - 2) * instances;
+    }
+
+    // buffers
+
+    @Override public void glGenBuffers(int n, int[] buffers, int offset) {
+        gen(n, buffers, offset);
+        if (nextName > bufferSizes.length)
+            bufferSizes = Arrays.copyOf(bufferSizes, Math.max(nextName, bufferSizes.length * 2));
+        if (log != null) record("glGenBuffers " + n);
+    }
+    @Override public void glBindBuffer(int target, int buffer) {
+        bindBuffer(target, buffer);
+        ++stateChanges;
+        if (log != null) record("glBindBuffer " + target + " " + buffer);
+    }
+    @Override public void glBindBufferRange(int target, int index, int buffer, int offset, int size) {
+        bindBuffer(target, buffer);
+        ++stateChanges;
+        if (log != null) record("glBindBufferRange " + target + " " + index + " " + buffer + " " + offset + " " + size);
+    }
+    @Override public void glBufferData(int target, int size, Buffer data, int usage) {
+        int buffer = getBoundBuffer(target);
+        if (buffer != 0)
+            bufferSizes[buffer] = size;
+        if (data != null)
+            uploadedBytes += size;
+        if (log != null) record("glBufferData " + target + " " + size);
+    }
+    @Override public void glBufferSubData(int target, int offset, int size, Buffer data) {
+        uploadedBytes += size;
+        if (log != null) record("glBufferSubData " + target + " " + offset + " " + size);
+    }
+    @Override public void glDeleteBuffers(int n, int[] buffers, int offset) {
+        for (int k = offset; k < offset + n; ++k)
+            if (buffers[k] > 0 && buffers[k] < bufferSizes.length)
+                bufferSizes[buffers[k]] = 0;
+        if (log != null) record("glDeleteBuffers " + n);
+    }
+
+    // vertex arrays and attributes
+
+    @Override public void glGenVertexArrays(int n, int[] arrays, int offset) { gen(n, arrays, offset); if (log != null) record("glGenVertexArrays " + n); }
+    @Override public void glBindVertexArray(int array) { ++stateChanges; if (log != null) record("glBindVertexArray " + array); }
+    @Override public void glDeleteVertexArrays(int n, int[] arrays, int offset) { if (log != null) record("glDeleteVertexArrays " + n); }
+    @Override public void glEnableVertexAttribArray(int index) { ++stateChanges; if (log != null) record("glEnableVertexAttribArray " + index); }
+    @Override public void glDisableVertexAttribArray(int index) { ++stateChanges; if (log != null) record("glDisableVertexAttribArray " + index); }
+    @Override public void glVertexAttribPointer(int index, int size, int type, boolean normalized, int stride, int offset) {
+        ++stateChanges;
+        if (log != null) record("glVertexAttribPointer " + index + " " + size + " " + stride + " " + offset);
+    }
+    @Override public void glVertexAttribPointer(int index, int size, int type, boolean normalized, int stride, Buffer ptr) {
+        ++stateChanges;
+        uploadedBytes += ptr.remaining() * bytesPerElement(ptr); // client memory is copied on every draw; approximate
+        if (log != null) record("glVertexAttribPointer " + index + " " + size + " " + stride + " (client memory)");
+    }
+    /** @return Size in bytes of one element of the given buffer, which is what its remaining() counts. */
+    private static int bytesPerElement(Buffer buffer) {
+        if (buffer instanceof FloatBuffer || buffer instanceof IntBuffer)
+            return 4;
+        if (buffer instanceof ShortBuffer || buffer instanceof CharBuffer)
+            return 2;
+        return 1;
+    }
+    @Override public void glVertexAttribDivisor(int index, int divisor) { ++stateChanges; if (log != null) record("glVertexAttribDivisor " + index + " " + divisor); }
+    @Override public void glVertexAttrib1f(int index, float x) { ++stateChanges; if (log != null) record("glVertexAttrib1f " + index + " " + x); }
+
+    // drawing
+
+    @Override public void glDrawArrays(int mode, int first, int count) { draw(mode, count, 1); if (log != null) record("glDrawArrays " + mode + " " + first + " " + count); }
+    @Override public void glDrawArraysInstanced(int mode, int first, int count, int instanceCount) {
+        draw(mode, count, instanceCount);
+        if (log != null) record("glDrawArraysInstanced " + mode + " " + first + " " + count + " " + instanceCount);
+    }
+    @Override public void glDrawElements(int mode, int count, int type, int offset) { draw(mode, count, 1); if (log != null) record("glDrawElements " + mode + " " + count + " " + offset); }
+    @Override public void glDrawElements(int mode, int count, int type, Buffer indices) {
+        draw(mode, count, 1);
+        if (log != null) record("glDrawElements " + mode + " " + count + " (client memory)");
+    }
+    @Override public void glClear(int mask) { if (log != null) record("glClear " + mask); }
+    @Override public void glClearColor(float red, float green, float blue, float alpha) { if (log != null) record("glClearColor"); }
+    @Override public void glViewport(int x, int y, int width, int height) { ++stateChanges; if (log != null) record("glViewport " + width + "x" + height); }
+
+    // fixed function state
+
+    @Override public void glEnable(int cap) { ++stateChanges; if (log != null) record("glEnable " + cap); }
+    @Override public void glDisable(int cap) { ++stateChanges; if (log != null) record("glDisable " + cap); }
+    @Override public void glBlendFunc(int sfactor, int dfactor) { ++stateChanges; if (log != null) record("glBlendFunc " + sfactor + " " + dfactor); }
+
+    // shaders and programs
+
+    @Override public int glCreateShader(int type) {
+        int shader = nextName++;
+        shaderTypes.put(shader, type);
+        if (log != null) record("glCreateShader " + type);
+        return shader;
+    }
+    @Override public void glShaderSource(int shader, String string) { shaderSources.put(shader, string); }
+    @Override public void glCompileShader(int shader) { if (log != null) record("glCompileShader " + shader); }
+    @Override public void glGetShaderiv(int shader, int pname, int[] params, int offset) { params[offset] = pname == GLES20.GL_COMPILE_STATUS ? 1 : 0; }
+    @Override public String glGetShaderInfoLog(int shader) { return ""; }
+    @Override public void glDeleteShader(int shader) { if (log != null) record("glDeleteShader " + shader); }
+
+    @Override public int glCreateProgram() {
+        int program = nextName++;
+        programs.put(program, new Program());
+        if (log != null) record("glCreateProgram");
+        return program;
+    }
+    @Override public void glAttachShader(int program, int shader) { programs.get(program).shaders.add(shader); }
+    @Override public void glProgramParameteri(int program, int pname, int value) { }
+
+    @Override public void glLinkProgram(int program) {
+        Program p = programs.get(program);
+        for (int shader : p.shaders) {
+            String source = shaderSources.get(shader);
+            p.sources += source;
+            if (shaderTypes.get(shader) == GLES20.GL_VERTEX_SHADER) {
+                for (Matcher m = ATTRIBUTE.matcher(source); m.find(); ) {
+                    p.attribs.add(m.group(2));
+                    p.attribLocations.add(m.group(1) != null ? Integer.parseInt(m.group(1)) : p.attribs.size() - 1);
+                }
+            }
+            for (Matcher m = UNIFORM.matcher(source); m.find(); )
+                if (!p.uniforms.contains(m.group(1)))
+                    p.uniforms.add(m.group(1));
+        }
+        p.linked = true;
+        if (log != null) record("glLinkProgram " + program);
+    }
+
+    @Override public void glGetProgramiv(int program, int pname, int[] params, int offset) {
+        Program p = programs.get(program);
+        switch (pname) {
+            case GLES20.GL_LINK_STATUS: params[offset] = p.linked ? 1 : 0; break;
+            case GLES20.GL_ACTIVE_ATTRIBUTES: params[offset] = p.attribs.size(); break;
+            case GLES20.GL_ACTIVE_UNIFORMS: params[offset] = p.uniforms.size(); break;
+            default: params[offset] = 0; break; // e.g. GL_PROGRAM_BINARY_LENGTH: no binary formats
+        }
+    }
+    @Override public String glGetProgramInfoLog(int program) { return ""; }
+    @Override public String glGetActiveAttrib(int program, int index, int[] size, int sizeOffset, int[] type, int typeOffset) {
+        size[sizeOffset] = 1;
+        return programs.get(program).attribs.get(index);
+    }
+    @Override public String glGetActiveUniform(int program, int index, int[] size, int sizeOffset, int[] type, int typeOffset) {
+        size[sizeOffset] = 1;
+        return programs.get(program).uniforms.get(index);
+    }
+    @Override public int glGetAttribLocation(int program, String name) {
+        Program p = programs.get(program);
+        int index = p.attribs.indexOf(name);
+        return index < 0 ? -1 : p.attribLocations.get(index);
+    }
+    @Override public int glGetUniformLocation(int program, String name) { return programs.get(program).uniforms.indexOf(name); }
+    @Override public int glGetUniformBlockIndex(int program, String uniformBlockName) {
+        return programs.get(program).sources.contains("uniform " + uniformBlockName) ? 0 : GLES30.GL_INVALID_INDEX;
+    }
+    @Override public void glUniformBlockBinding(int program, int uniformBlockIndex, int uniformBlockBinding) { }
+    @Override public void glUseProgram(int program) { ++stateChanges; if (log != null) record("glUseProgram " + program); }
+    @Override public void glDeleteProgram(int program) { programs.remove(program); if (log != null) record("glDeleteProgram " + program); }
+    @Override public void glGetProgramBinary(int program, int bufSize, int[] length, int lengthOffset, int[] binaryFormat, int binaryFormatOffset, Buffer binary) {
+        length[lengthOffset] = 0;
+    }
+    @Override public void glProgramBinary(int program, int binaryFormat, Buffer binary, int length) {
+        // no binary format is valid, so the program stays unlinked, as the GL spec says for a rejected binary
+        if (log != null) record("glProgramBinary " + program + " " + binaryFormat + " " + length);
+    }
+
+    // uniforms
+
+    @Override public void glUniform1f(int location, float x) { ++uniformCalls; if (log != null) record("glUniform1f " + location + " " + x); }
+    @Override public void glUniform1i(int location, int x) { ++uniformCalls; if (log != null) record("glUniform1i " + location + " " + x); }
+    @Override public void glUniform3f(int location, float x, float y, float z) { ++uniformCalls; if (log != null) record("glUniform3f " + location); }
+    @Override public void glUniform4fv(int location, int count, float[] v, int offset) { ++uniformCalls; if (log != null) record("glUniform4fv " + location + " " + count); }
+    @Override public void glUniformMatrix4fv(int location, int count, boolean transpose, float[] value, int offset) {
+        ++uniformCalls;
+        if (log != null) record("glUniformMatrix4fv " + location);
+    }
+
+    // textures and framebuffers
+
+    @Override public void glGenTextures(int n, int[] textures, int offset) { gen(n, textures, offset); if (log != null) record("glGenTextures " + n); }
+    @Override public void glBindTexture(int target, int texture) { ++stateChanges; if (log != null) record("glBindTexture " + texture); }
+    @Override public void glTexImage2D(int target, int level, int internalformat, int width, int height, int border, int format, int type, Buffer pixels) {
+        if (pixels != null)
+            uploadedBytes += width * height * 4;
+        if (log != null) record("glTexImage2D " + width + "x" + height);
+    }
+    @Override public void glTexParameteri(int target, int pname, int param) { }
+    @Override public void glGenerateMipmap(int target) { if (log != null) record("glGenerateMipmap"); }
+    @Override public void glDeleteTextures(int n, int[] textures, int offset) { if (log != null) record("glDeleteTextures " + n); }
+    @Override public void glGenFramebuffers(int n, int[] framebuffers, int offset) { gen(n, framebuffers, offset); if (log != null) record("glGenFramebuffers " + n); }
+    @Override public void glBindFramebuffer(int target, int framebuffer) { ++stateChanges; if (log != null) record("glBindFramebuffer " + framebuffer); }
+    @Override public void glFramebufferTexture2D(int target, int attachment, int textarget, int texture, int level) { }
+    @Override public void glFramebufferRenderbuffer(int target, int attachment, int renderbuffertarget, int renderbuffer) { }
+    @Override public int glCheckFramebufferStatus(int target) { return GLES20.GL_FRAMEBUFFER_COMPLETE; }
+    @Override public void glDeleteFramebuffers(int n, int[] framebuffers, int offset) { if (log != null) record("glDeleteFramebuffers " + n); }
+    @Override public void glGenRenderbuffers(int n, int[] renderbuffers, int offset) { gen(n, renderbuffers, offset); }
+    @Override public void glBindRenderbuffer(int target, int renderbuffer) { ++stateChanges; }
+    @Override public void glRenderbufferStorage(int target, int internalformat, int width, int height) { }
+    @Override public void glDeleteRenderbuffers(int n, int[] renderbuffers, int offset) { }
+
+    // queries
+
+    @Override public int glGetError() { return GLES20.GL_NO_ERROR; }
+    @Override public String glGetString(int name) { return "RecordingGL"; }
+    @Override public void glGetIntegerv(int pname, int[] params, int offset) {
+        params[offset] = pname == GLES30.GL_UNIFORM_BUFFER_OFFSET_ALIGNMENT ? 16 : 0;
+    }
+}
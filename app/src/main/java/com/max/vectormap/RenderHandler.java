@@ -15,8 +15,9 @@ import java.lang.ref.WeakReference;
 public class RenderHandler extends Handler {
     private static final int MSG_SURFACE_CREATED = 0;
     private static final int MSG_SURFACE_CHANGED = 1;
-    private static final int MSG_DO_FRAME = 2;
+    private static final int MSG_START_FRAMES = 2;
     private static final int MSG_OPTION = 3;
+    private static final int MSG_PAUSED = 4;
     private static final int MSG_SHUTDOWN = 5;
 
     // This shouldn't need to be a weak ref, since we'll go away when the Looper quits,
@@ -38,14 +39,19 @@ public class RenderHandler extends Handler {
         sendMessage(obtainMessage(MSG_SURFACE_CHANGED, width, height));
     }
 
-    /** Sends the "do frame" message, forwarding the Choreographer event. */
-    public void sendDoFrame(long frameTimeNanos) {
-        sendMessage(obtainMessage(MSG_DO_FRAME, (int) (frameTimeNanos >> 32), (int) frameTimeNanos));
+    /** Sends the "start frames" message, which restarts the frame callbacks if they stopped. May be called from any thread. */
+    public void sendStartFrames() {
+        sendMessage(obtainMessage(MSG_START_FRAMES));
     }
 
-    /** Sends a new value for some render option. */
-    public void sendSetRenderOption(boolean option) {
-        sendMessage(obtainMessage(MSG_OPTION, option ? 1:0, 0));
+    /** Sends whether the activity is paused, which stops and resumes frame callbacks. */
+    public void sendSetPaused(boolean paused) {
+        sendMessage(obtainMessage(MSG_PAUSED, paused ? 1:0, 0));
+    }
+
+    /** Sends a new value for some render option (one of the ChoreographerRenderThread.OPTION_* constants). */
+    public void sendSetRenderOption(int option, boolean enabled) {
+        sendMessage(obtainMessage(MSG_OPTION, option, enabled ? 1:0));
     }
 
     /** Sends the "shutdown" message, which tells the render thread to halt. */
@@ -71,12 +77,14 @@ public class RenderHandler extends Handler {
             case MSG_SURFACE_CHANGED:
                 renderThread.surfaceChanged(msg.arg1, msg.arg2);
                 break;
-            case MSG_DO_FRAME:
-                long timestamp = (((long) msg.arg1) << 32) | (((long) msg.arg2) & 0xffffffffL);
-                renderThread.doFrame(timestamp);
+            case MSG_START_FRAMES:
+                renderThread.startFrameCallbacks();
                 break;
             case MSG_OPTION:
-                renderThread.setRenderOption(msg.arg1 != 0);
+                renderThread.setRenderOption(msg.arg1, msg.arg2 != 0);
+                break;
+            case MSG_PAUSED:
+                renderThread.setPaused(msg.arg1 != 0);
                 break;
             case MSG_SHUTDOWN:
                 renderThread.shutdown();
@@ -0,0 +1,77 @@
+package com.max.vectormap;
+
+import java.util.Arrays;
+
+/**
+ * Orders the tiles to draw in a frame so that GL state changes are minimized: all opaque tiles
+ * are drawn first with blending disabled, then all blended tiles with blending enabled.
+ * <p>
+ * Opaque tiles are sorted coarsest layer first (so that opaque children are still drawn on top of
+ * partially overdrawn opaque parents), then by tile position, which groups tiles by vertex buffer.
+ * Blended tiles, and opaque tiles with a blended ancestor, keep their tile tree order, since
+ * overlapping tiles in that group must be drawn parent first to look the same as before.
+ * <p>
+ * When drawing with a per layer depth value and depth testing, opaque tiles are instead sorted
+ * front to back (finest layer first), so that the parts of coarser tiles hidden below opaque
+ * children are rejected by the depth test before being shaded. The depth test also takes care of
+ * hiding blended parents below opaque children, so all opaque tiles go in the opaque pass.
+ */
+public class RenderQueue {
+    private static final int INDEX_BITS = 8;
+    private static final int TILE_POS_BITS = 32;
+
+    private final long[] keys;
+
+    public final int[] tilePos;
+    public final float[] blend;
+    /** The tiles themselves, so that drawing doesn't depend on tiles still being in the cache. */
+    public final Tile[] tiles;
+
+    /** Total number of tiles in the queue. */
+    public int size;
+    /** Index of the first tile of the blended pass; tiles from here on are drawn with blending enabled. */
+    public int firstBlended;
+
+    public RenderQueue(int capacity) {
+        if (capacity > 1 << INDEX_BITS)
+            throw new IllegalArgumentException("Max capacity is " + (1 << INDEX_BITS) + ", got " + capacity);
+        keys = new long[capacity];
+        tilePos = new int[capacity];
+        blend = new float[capacity];
+        tiles = new Tile[capacity];
+    }
+
+    /**
+     * Builds the queue from the draw order of the tile cache (in tree order).
+     * @param frontToBack True if tiles will be drawn with per layer depth values and depth testing.
+     */
+    public void build(TileCache tileCache, boolean frontToBack) {
+        size = tileCache.nrDrawnTiles;
+        firstBlended = 0;
+
+        for (int k = 0; k < size; ++k) {
+            long key;
+            if (tileCache.drawnBlendArray[k] < 1 || tileCache.drawnUnderBlendedArray[k] && !frontToBack) {
+                // blended pass, tree order
+                key = 1L << TILE_POS_BITS + INDEX_BITS + 3 | k;
+            } else {
+                int tp = tileCache.drawnTilePosArray[k];
+                long layerKey = frontToBack ? Common.getLayer(tp) : Constants.TOP_LAYER - Common.getLayer(tp);
+                key = layerKey << TILE_POS_BITS + INDEX_BITS | (tp & 0xffffffffL) << INDEX_BITS | k;
+                ++firstBlended;
+            }
+            keys[k] = key;
+        }
+
+        Arrays.sort(keys, 0, size);
+
+        for (int k = 0; k < size; ++k) {
+            int idx = (int)(keys[k] & (1 << INDEX_BITS) - 1);
+            tilePos[k] = tileCache.drawnTilePosArray[idx];
+            blend[k] = tileCache.drawnBlendArray[idx];
+            tiles[k] = tileCache.drawnTileArray[idx];
+        }
+        // don't keep evicted tiles reachable
+        Arrays.fill(tiles, size, tiles.length, null);
+    }
+}
@@ -0,0 +1,74 @@
+package com.max.vectormap;
+
+import java.nio.Buffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Resources of evicted tiles, waiting to be freed at the end of the frame. Eviction happens while
+ * the frame is being prepared, so instead of deleting GL objects one tile at a time in the middle
+ * of drawing, all buffers and vertex arrays retired during a frame are deleted with one call each
+ * after the frame is submitted. Staging buffers of tiles that never reached the GPU are returned
+ * to the pool at the same point, so the loading thread can't be handed one that is still in use.
+ * <p>
+ * Tiles are retired by the thread preparing the frame and drained by the GL thread, which also
+ * decides what a tile holds, since only the GL thread uploads tiles. Not thread safe; the queue is
+ * handed over between the threads together with its frame.
+ */
+public class RetireQueue {
+    private int[] buffers = new int[64];
+    private int bufferCount = 0;
+    private int[] vertexArrays = new int[32];
+    private int vertexArrayCount = 0;
+    private final List<Tile> tiles = new ArrayList<>();
+    private final List<Tile.ClaimableBuffer<? extends Buffer>> staging = new ArrayList<>();
+    /** GPU memory held by the retired buffers. */
+    private int retiredGpuBytes = 0;
+
+    /** Queues an evicted tile, to free whatever it holds when the queue is drained. */
+    void retire(Tile tile) {
+        tiles.add(tile);
+    }
+
+    /** Queues the buffers, and optionally the vertex array (if not 0), of a tile for deletion. */
+    void retireGL(int vbo, int ibo, int vao, int gpuBytes) {
+        if (bufferCount + 2 > buffers.length)
+            buffers = Arrays.copyOf(buffers, buffers.length * 2);
+        buffers[bufferCount++] = vbo;
+        buffers[bufferCount++] = ibo;
+        if (vao != 0) {
+            if (vertexArrayCount == vertexArrays.length)
+                vertexArrays = Arrays.copyOf(vertexArrays, vertexArrays.length * 2);
+            vertexArrays[vertexArrayCount++] = vao;
+        }
+        retiredGpuBytes += gpuBytes;
+    }
+
+    /** Queues a staging buffer to be returned to its pool. */
+    void retireStaging(Tile.ClaimableBuffer<? extends Buffer> buffer) {
+        staging.add(buffer);
+    }
+
+    /** Deletes everything retired since the last call. Call once per frame, after the frame is submitted. */
+    public void drain(GLState glState) {
+        for (int k = 0; k < tiles.size(); ++k)
+            tiles.get(k).delete(this);
+        tiles.clear();
+        if (vertexArrayCount > 0) {
+            glState.gl.glDeleteVertexArrays(vertexArrayCount, vertexArrays, 0);
+            glState.vertexArraysDeleted(vertexArrays, 0, vertexArrayCount);
+            vertexArrayCount = 0;
+        }
+        if (bufferCount > 0) {
+            glState.gl.glDeleteBuffers(bufferCount, buffers, 0);
+            glState.buffersDeleted(buffers, 0, bufferCount);
+            bufferCount = 0;
+            Tile.gpuBytes -= retiredGpuBytes;
+            retiredGpuBytes = 0;
+        }
+        for (int k = 0; k < staging.size(); ++k)
+            staging.get(k).claimed = false;
+        staging.clear();
+    }
+}
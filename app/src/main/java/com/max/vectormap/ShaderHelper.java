@@ -1,25 +1,61 @@
 package com.max.vectormap;
 
 import android.opengl.GLES20;
+import android.opengl.GLES30;
 import android.util.Log;
 
 public class ShaderHelper {
+    /** Must start the source of GLES3 shaders (the *_es3 resources), before any #define. */
+    public static final String GLES3_VERSION = "#version 300 es\n";
+
+    /** Cache of linked programs used by {@link #buildProgram}, or null to always compile. */
+    private static ProgramBinaryCache binaryCache;
+
+    /** Sets the program binary cache, which needs GLES3, or null to always compile. Call from the GL thread. */
+    public static void setBinaryCache(ProgramBinaryCache cache) {
+        binaryCache = cache;
+    }
+
+    /**
+     * Loads the program with the given shader sources from the program binary cache, or compiles
+     * and links it and stores it in the cache.
+     * @return The linked program, with all attribute and uniform locations cached.
+     */
+    public static ShaderProgram buildProgram(GL gl, String vertexSource, String fragmentSource) {
+        ProgramBinaryCache cache = binaryCache;
+        if (cache != null) {
+            ShaderProgram program = cache.load(vertexSource, fragmentSource);
+            if (program != null)
+                return program;
+        }
+
+        int vertexShader = loadShader(gl, GLES20.GL_VERTEX_SHADER, vertexSource);
+        int fragmentShader = loadShader(gl, GLES20.GL_FRAGMENT_SHADER, fragmentSource);
+        int program = linkProgram(gl, vertexShader, fragmentShader, cache != null);
+        // only flagged for deletion, they are freed with the program
+        gl.glDeleteShader(vertexShader);
+        gl.glDeleteShader(fragmentShader);
+        if (cache != null)
+            cache.store(program, vertexSource, fragmentSource);
+        return new ShaderProgram(gl, program);
+    }
+
     /**
      * Helper function to load a shader.
      * @return An OpenGL handle to the shader.
      */
-    public static int loadShader(int shaderType, String shaderSource) {
-        int shader = GLES20.glCreateShader(shaderType);
+    public static int loadShader(GL gl, int shaderType, String shaderSource) {
+        int shader = gl.glCreateShader(shaderType);
 
-        GLES20.glShaderSource(shader, shaderSource);
-        GLES20.glCompileShader(shader);
+        gl.glShaderSource(shader, shaderSource);
+        gl.glCompileShader(shader);
 
         int[] compileStatus = new int[1];
-        GLES20.glGetShaderiv(shader, GLES20.GL_COMPILE_STATUS, compileStatus, 0);
+        gl.glGetShaderiv(shader, GLES20.GL_COMPILE_STATUS, compileStatus, 0);
 
         if (compileStatus[0] == 0) {
-            Log.e("Shader", "Error compiling shader: " + GLES20.glGetShaderInfoLog(shader));
-            GLES20.glDeleteShader(shader);
+            Log.e("Shader", "Error compiling shader: " + gl.glGetShaderInfoLog(shader));
+            gl.glDeleteShader(shader);
             throw new RuntimeException("Error compiling shader");
         }
 
@@ -27,22 +63,25 @@ public class ShaderHelper {
     }
 
     /**
-     * Helper function to compile and link a program.
-     * @return An OpenGL handle to the program.
+     * Helper function to link a program.
+     * @param retrievable Hint that the program binary will be retrieved; needs GLES3.
+     * @return An OpenGL handle to the linked program.
      */
-    public static int createProgram(int vertexShader, int fragmentShader) {
-        int program = GLES20.glCreateProgram();
+    private static int linkProgram(GL gl, int vertexShader, int fragmentShader, boolean retrievable) {
+        int program = gl.glCreateProgram();
 
-        GLES20.glAttachShader(program, vertexShader);
-        GLES20.glAttachShader(program, fragmentShader);
-        GLES20.glLinkProgram(program);
+        gl.glAttachShader(program, vertexShader);
+        gl.glAttachShader(program, fragmentShader);
+        if (retrievable)
+            gl.glProgramParameteri(program, GLES30.GL_PROGRAM_BINARY_RETRIEVABLE_HINT, GLES20.GL_TRUE);
+        gl.glLinkProgram(program);
 
         int[] linkStatus = new int[1];
-        GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, linkStatus, 0);
+        gl.glGetProgramiv(program, GLES20.GL_LINK_STATUS, linkStatus, 0);
 
         if (linkStatus[0] == 0) {
-            Log.e("Shader", "Error linking program: " + GLES20.glGetProgramInfoLog(program));
-            GLES20.glDeleteProgram(program);
+            Log.e("Shader", "Error linking program: " + gl.glGetProgramInfoLog(program));
+            gl.glDeleteProgram(program);
             throw new RuntimeException("Error linking program");
         }
 
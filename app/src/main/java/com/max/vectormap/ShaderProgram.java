@@ -0,0 +1,56 @@
+package com.max.vectormap;
+
+import android.opengl.GLES20;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A linked GL program together with the locations of all its active attributes and uniforms.
+ * Locations are queried once at link time, so drawing code never needs to call
+ * glGetAttribLocation / glGetUniformLocation.
+ */
+public class ShaderProgram {
+    public final int handle;
+
+    private final Map<String, Integer> attribLocations = new HashMap<>();
+    private final Map<String, Integer> uniformLocations = new HashMap<>();
+
+    ShaderProgram(GL gl, int handle) {
+        this.handle = handle;
+
+        int[] count = new int[1];
+        int[] size = new int[1];
+        int[] type = new int[1];
+
+        gl.glGetProgramiv(handle, GLES20.GL_ACTIVE_ATTRIBUTES, count, 0);
+        for (int k = 0; k < count[0]; ++k) {
+            String name = gl.glGetActiveAttrib(handle, k, size, 0, type, 0);
+            attribLocations.put(name, gl.glGetAttribLocation(handle, name));
+        }
+
+        gl.glGetProgramiv(handle, GLES20.GL_ACTIVE_UNIFORMS, count, 0);
+        for (int k = 0; k < count[0]; ++k) {
+            String name = stripArraySuffix(gl.glGetActiveUniform(handle, k, size, 0, type, 0));
+            uniformLocations.put(name, gl.glGetUniformLocation(handle, name));
+        }
+    }
+
+    /** Uniform arrays are reported as e.g. "uPalette[0]"; we look them up by their base name. */
+    private static String stripArraySuffix(String name) {
+        int bracket = name.indexOf('[');
+        return bracket < 0 ? name : name.substring(0, bracket);
+    }
+
+    /** @return Location of the given attribute, or -1 if it's not an active attribute of this program. */
+    public int getAttribLocation(String name) {
+        Integer location = attribLocations.get(name);
+        return location == null ? -1 : location;
+    }
+
+    /** @return Location of the given uniform, or -1 if it's not an active uniform of this program. */
+    public int getUniformLocation(String name) {
+        Integer location = uniformLocations.get(name);
+        return location == null ? -1 : location;
+    }
+}
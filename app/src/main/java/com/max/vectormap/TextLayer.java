@@ -1,16 +1,13 @@
 package com.max.vectormap;
 
-import android.content.Context;
-import android.util.Log;
-
 import java.util.ArrayList;
 import java.util.List;
 
 public class TextLayer {
     public List<TextString> strings = new ArrayList<>();
 
-    public TextLayer(Context context) {
-        String textData = Common.readInputStream(context.getResources().openRawResource(R.raw.text_layer));
+    /** @param textData One label per line: text|x|y|category|offset|spacing|angle */
+    public TextLayer(String textData) {
         String[] rows = textData.split("\\n");
         for (String row : rows) {
             String[] cols = row.split("\\|");
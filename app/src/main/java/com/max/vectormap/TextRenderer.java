@@ -1,16 +1,21 @@
 package com.max.vectormap;
 
-import android.content.Context;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.opengl.GLES20;
-import android.opengl.GLUtils;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 import java.nio.ShortBuffer;
-
+import java.util.Arrays;
+
+/**
+ * Draws text from a font texture. With a GLES3 context, each glyph is one instance of a unit quad,
+ * so only 8 floats per glyph are uploaded and the whole string is drawn with one instanced call.
+ * Otherwise each glyph is expanded into 4 vertices and 6 indices.
+ * <p>
+ * The font texture and shader sources are loaded by the caller, so that drawing doesn't depend on
+ * Android resources.
+ */
 public class TextRenderer {
     private static final String ALPHABET = "|{}Å@ÄÖå$/\\äö()Q[]j#!&?ABCDEFGHIJKLMNOPRSTUVWXYZbdfhiklt%0123456789;gpqy+:acemnorsuvwxz<>=\"'*^,~.-_`";
     private static final int[] CHAR_POS = {1,1,11,62,11,-43, 12,1,37,58,4,-41, 38,1,63,58,3,-41, 64,1,90,57,1,-51, 91,1,147,55,2,-41, 148,1,174,53,1,-47, 175,1,201,53,2,-47,
@@ -30,49 +35,73 @@ public class TextRenderer {
             391,199,410,220,2,-40, 411,199,421,220,2,-40, 422,199,444,220,0,-39, 445,199,483,219,11,-40, 484,199,497,216,2,-9, 1,239,43,254,4,-22,
             44,239,57,253,2,-9, 58,239,83,251,1,-21, 84,239,117,250,0,7, 118,239,131,250,8,-42};
 
-    private int textureWidth, textureHeight; // will be powers of 2
+    private final int textureWidth, textureHeight; // will be powers of 2
 //    private static final int FORMAT = GLES20.GL_RGBA;
 //    private static final int BYTES_PER_PIXEL = 4;   // RGBA
 
-    private int fontTextureHandle;
+    private final int fontTextureHandle;
 
-    private int fontProgram;
+    private final ShaderProgram fontProgram;
 
-    /** Scaling factors to make the text look the same regardless of screen orientation. */
-    public float xScale = 1, yScale = 1;
-
-    public TextRenderer(Context context) {
-        loadTexture(context, R.drawable.font_56_512_256);
-    }
+    /** Program, vertex array and buffers of the instanced path, only used with GLES3. */
+    private ShaderProgram instancedProgram;
+    private final int[] instancedVao = new int[1];
+    /** Unit quad corners (static), and glyph rectangles and texture rectangles (per draw). */
+    private final int[] instancedVbos = new int[2];
+    private FloatBuffer glyphBuffer;
 
-    void loadTexture(Context context, int resourceId) {
-        int[] textureHandle = new int[1];
+    /** Floats per glyph instance: screen rectangle (x, y, width, height) and texture rectangle (x0, y0, x1, y1). */
+    private static final int FLOATS_PER_GLYPH = 8;
 
-        // TODO more compact format? 8 bit color + 8 bit alpha?
+    private final GLState glState;
 
-        GLES20.glGenTextures(1, textureHandle, 0);
-
-        if (textureHandle[0] == 0)
-            throw new RuntimeException("Error loading texture.");
-        fontTextureHandle = textureHandle[0];
-
-        BitmapFactory.Options options = new BitmapFactory.Options();
-        options.inScaled = false; // No pre-scaling
+    /** Scaling factors to make the text look the same regardless of screen orientation. */
+    public float xScale = 1, yScale = 1;
 
-        Bitmap bitmap = BitmapFactory.decodeResource(context.getResources(), resourceId, options);
-        textureWidth = bitmap.getWidth();
-        textureHeight = bitmap.getHeight();
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureHandle[0]);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
-        GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, bitmap, 0);
-        bitmap.recycle();
+    /**
+     * @param fontTextureHandle Texture holding the font bitmap, of the given size in pixels.
+     * @param vertexShader Source of the font program.
+     * @param instancedVertexShader Source of the instanced font program, without version line; only
+     *                              used with GLES3, may be null otherwise.
+     */
+    public TextRenderer(GLState glState, int fontTextureHandle, int textureWidth, int textureHeight,
+                        String vertexShader, String fragmentShader, String instancedVertexShader, String instancedFragmentShader) {
+        this.glState = glState;
+        this.fontTextureHandle = fontTextureHandle;
+        this.textureWidth = textureWidth;
+        this.textureHeight = textureHeight;
+        fontProgram = ShaderHelper.buildProgram(glState.gl, vertexShader, fragmentShader);
+
+        if (glState.isGles3())
+            prepareInstanced(instancedVertexShader, instancedFragmentShader);
+    }
 
-        String vertexShader = Common.readInputStream(context.getResources().openRawResource(R.raw.vertex_shader_font_2d));
-        String fragmentShader = Common.readInputStream(context.getResources().openRawResource(R.raw.fragment_shader_font));
-        fontProgram = ShaderHelper.createProgram(
-                ShaderHelper.loadShader(GLES20.GL_VERTEX_SHADER, vertexShader),
-                ShaderHelper.loadShader(GLES20.GL_FRAGMENT_SHADER, fragmentShader));
+    private void prepareInstanced(String vertexShader, String fragmentShader) {
+        instancedProgram = ShaderHelper.buildProgram(glState.gl, ShaderHelper.GLES3_VERSION + vertexShader, ShaderHelper.GLES3_VERSION + fragmentShader);
+
+        glState.gl.glGenVertexArrays(1, instancedVao, 0);
+        glState.gl.glGenBuffers(2, instancedVbos, 0);
+        glState.bindVertexArray(instancedVao[0]);
+
+        // triangle strip: top left, bottom left, top right, bottom right
+        FloatBuffer corners = ByteBuffer.allocateDirect(8 * Constants.BYTES_IN_FLOAT).order(ByteOrder.nativeOrder()).asFloatBuffer();
+        corners.put(new float[] {0, 0, 0, 1, 1, 0, 1, 1}).flip();
+        glState.bindArrayBuffer(instancedVbos[0]);
+        glState.gl.glBufferData(GLES20.GL_ARRAY_BUFFER, corners.capacity() * Constants.BYTES_IN_FLOAT, corners, GLES20.GL_STATIC_DRAW);
+        glState.enableVertexAttribArray(0);
+        glState.gl.glVertexAttribPointer(0, 2, GLES20.GL_FLOAT, false, 0, 0);
+
+        // locations 1 and 2 advance once per glyph instead of once per vertex
+        int stride = FLOATS_PER_GLYPH * Constants.BYTES_IN_FLOAT;
+        glState.bindArrayBuffer(instancedVbos[1]);
+        glState.enableVertexAttribArray(1);
+        glState.gl.glVertexAttribPointer(1, 4, GLES20.GL_FLOAT, false, stride, 0);
+        glState.gl.glVertexAttribDivisor(1, 1);
+        glState.enableVertexAttribArray(2);
+        glState.gl.glVertexAttribPointer(2, 4, GLES20.GL_FLOAT, false, stride, 4 * Constants.BYTES_IN_FLOAT);
+        glState.gl.glVertexAttribDivisor(2, 1);
+
+        glState.bindVertexArray(0);
     }
 
     static final int COORDS_PER_VERTEX = 3;
@@ -87,12 +116,28 @@ public class TextRenderer {
     private FloatBuffer texCoordsBuffer;
     private ShortBuffer drawListBuffer;
 
+    /** Grows the glyph arrays and buffers to fit the given number of characters; they are reused for all texts. */
+    private void allocateGlyphs(int length) {
+        vertexCoords = new float[length * 4 * COORDS_PER_VERTEX];
+        texCoords = new float[length * 4 * TEX_COORDS_PER_VERTEX];
+        drawOrder = new short[length * 6];
+        vertexBuffer = ByteBuffer.allocateDirect(vertexCoords.length * Constants.BYTES_IN_FLOAT).order(ByteOrder.nativeOrder()).asFloatBuffer();
+        texCoordsBuffer = ByteBuffer.allocateDirect(texCoords.length * Constants.BYTES_IN_FLOAT).order(ByteOrder.nativeOrder()).asFloatBuffer();
+        drawListBuffer = ByteBuffer.allocateDirect(drawOrder.length * Constants.BYTES_IN_SHORT).order(ByteOrder.nativeOrder()).asShortBuffer();
+    }
+
     /** x/y range -1 to 1, with (-1,1) is top left corner */
     public void drawText(String text, float x, float y, float size, float[] color) {
+        if (instancedProgram != null) {
+            drawTextInstanced(text, x, y, size, color);
+            return;
+        }
+        glState.bindVertexArray(0);
+
         // order: top left, bottom left, bottom right, top right
-        vertexCoords = new float[text.length() * 4 * COORDS_PER_VERTEX];
-        texCoords = new float[text.length() * 4 * TEX_COORDS_PER_VERTEX];
-        drawOrder = new short[text.length() * 6];
+        int length = text.length();
+        if (drawOrder == null || drawOrder.length < length * 6)
+            allocateGlyphs(length);
 
 //        float vx = -0.98f, vy = 0.93f;
         float vx = x, vy = y;
@@ -100,6 +145,7 @@ public class TextRenderer {
             int ch = text.charAt(k);
             int chIdx = ALPHABET.indexOf(ch) * 6;
             if (chIdx < 0) {
+                Arrays.fill(vertexCoords, k*12, k*12+12, 0); // empty quad, instead of one of a previous text
                 vx += size * xScale * 0.0018f;
                 continue;
             }
@@ -138,55 +184,117 @@ public class TextRenderer {
             vx += chWidth;
         }
 
-        // initialize vertex byte buffer for shape coordinates
-        ByteBuffer bb = ByteBuffer.allocateDirect(vertexCoords.length * Constants.BYTES_IN_FLOAT);
-        bb.order(ByteOrder.nativeOrder());
-        vertexBuffer = bb.asFloatBuffer();
-        vertexBuffer.put(vertexCoords);
-        vertexBuffer.position(0);
+        vertexBuffer.put(vertexCoords, 0, length * 4 * COORDS_PER_VERTEX).position(0);
+        texCoordsBuffer.put(texCoords, 0, length * 4 * TEX_COORDS_PER_VERTEX).position(0);
+        drawListBuffer.put(drawOrder, 0, length * 6).position(0);
 
-        // initialize texture byte buffer
-        ByteBuffer tbb = ByteBuffer.allocateDirect(texCoords.length * Constants.BYTES_IN_FLOAT);
-        tbb.order(ByteOrder.nativeOrder());
-        texCoordsBuffer = tbb.asFloatBuffer();
-        texCoordsBuffer.put(texCoords);
-        texCoordsBuffer.position(0);
+        glState.useProgram(fontProgram);
+        glState.setBlend(true);
 
-        // initialize byte buffer for the draw list
-        ByteBuffer dlb = ByteBuffer.allocateDirect(drawOrder.length * Constants.BYTES_IN_SHORT);
-        dlb.order(ByteOrder.nativeOrder());
-        drawListBuffer = dlb.asShortBuffer();
-        drawListBuffer.put(drawOrder);
-        drawListBuffer.position(0);
+        int textureHandle = fontProgram.getUniformLocation("uTexture");
+        int texCoordinateHandle = fontProgram.getAttribLocation("aTexCoordinate");
 
-        GLES20.glUseProgram(fontProgram);
+        glState.bindTexture(fontTextureHandle);
+        glState.gl.glUniform1i(textureHandle, 0);
 
-        GLES20.glEnable(GLES20.GL_BLEND);
-        GLES20.glBlendFunc(GLES20.GL_SRC_ALPHA, GLES20.GL_ONE_MINUS_SRC_ALPHA);
+        // vertex data is passed from client memory, so no buffer may be bound
+        glState.bindArrayBuffer(0);
+        glState.bindElementArrayBuffer(0);
 
-        int textureHandle = GLES20.glGetUniformLocation(fontProgram, "uTexture");
-        int texCoordinateHandle = GLES20.glGetAttribLocation(fontProgram, "aTexCoordinate");
+        int positionHandle = fontProgram.getAttribLocation("vPosition");
+        glState.enableVertexAttribArray(positionHandle);
+        glState.gl.glVertexAttribPointer(positionHandle, COORDS_PER_VERTEX, GLES20.GL_FLOAT, false, 0, vertexBuffer);
 
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, fontTextureHandle);
-        GLES20.glUniform1i(textureHandle, 0);
+        glState.gl.glVertexAttribPointer(texCoordinateHandle, TEX_COORDS_PER_VERTEX, GLES20.GL_FLOAT, false, 0, texCoordsBuffer);
+        glState.enableVertexAttribArray(texCoordinateHandle);
 
-        int positionHandle = GLES20.glGetAttribLocation(fontProgram, "vPosition");
-        GLES20.glEnableVertexAttribArray(positionHandle);
-        GLES20.glVertexAttribPointer(positionHandle, COORDS_PER_VERTEX, GLES20.GL_FLOAT, false, 0, vertexBuffer);
+        int mColorHandle = fontProgram.getUniformLocation("vColor");
+        glState.gl.glUniform4fv(mColorHandle, 1, color, 0);
 
-        GLES20.glVertexAttribPointer(texCoordinateHandle, TEX_COORDS_PER_VERTEX, GLES20.GL_FLOAT, false, 0, texCoordsBuffer);
-        GLES20.glEnableVertexAttribArray(texCoordinateHandle);
+//        glState.gl.glDrawArrays(GLES20.GL_TRIANGLES, 0, 36);
+        glState.gl.glDrawElements(
+                GLES20.GL_TRIANGLES, length * 6,
+                GLES20.GL_UNSIGNED_SHORT, drawListBuffer);
+    }
 
-        int mColorHandle = GLES20.glGetUniformLocation(fontProgram, "vColor");
-        GLES20.glUniform4fv(mColorHandle, 1, color, 0);
+    private void drawTextInstanced(String text, float x, float y, float size, float[] color) {
+        if (glyphBuffer == null || glyphBuffer.capacity() < text.length() * FLOATS_PER_GLYPH)
+            glyphBuffer = ByteBuffer.allocateDirect(text.length() * FLOATS_PER_GLYPH * Constants.BYTES_IN_FLOAT)
+                    .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        glyphBuffer.clear();
 
-//        GLES20.glDrawArrays(GLES20.GL_TRIANGLES, 0, 36);
-        GLES20.glDrawElements(
-                GLES20.GL_TRIANGLES, drawOrder.length,
-                GLES20.GL_UNSIGNED_SHORT, drawListBuffer);
+        int glyphCount = 0;
+        float vx = x;
+        for (int k = 0; k < text.length(); ++k) {
+            int chIdx = ALPHABET.indexOf(text.charAt(k)) * 6;
+            if (chIdx < 0) {
+                vx += size * xScale * 0.0018f;
+                continue;
+            }
 
-        GLES20.glDisable(GLES20.GL_BLEND);
+            float chWidth = size * xScale * 0.0001f * (CHAR_POS[chIdx + 2] - CHAR_POS[chIdx]);
+            float chHeight = size * yScale * 0.0001f * (CHAR_POS[chIdx + 3] - CHAR_POS[chIdx + 1]);
+            float chXOfs = size * xScale * 0.0001f * CHAR_POS[chIdx + 4];
+            float chYOfs = - size * yScale * 0.0001f * CHAR_POS[chIdx + 5];
+
+            glyphBuffer.put(vx + chXOfs).put(y + chYOfs).put(chWidth).put(chHeight);
+            glyphBuffer.put((float) CHAR_POS[chIdx] / textureWidth).put((float) CHAR_POS[chIdx + 1] / textureHeight);
+            glyphBuffer.put((float) CHAR_POS[chIdx + 2] / textureWidth).put((float) CHAR_POS[chIdx + 3] / textureHeight);
+            ++glyphCount;
+
+            vx += chWidth;
+        }
+        if (glyphCount == 0)
+            return;
+        glyphBuffer.flip();
+
+        glState.useProgram(instancedProgram);
+        glState.setBlend(true);
+        glState.bindTexture(fontTextureHandle);
+        glState.gl.glUniform1i(instancedProgram.getUniformLocation("uTexture"), 0);
+        glState.gl.glUniform4fv(instancedProgram.getUniformLocation("vColor"), 1, color, 0);
+
+        glState.bindVertexArray(instancedVao[0]);
+        glState.bindArrayBuffer(instancedVbos[1]);
+        // orphan the previous contents instead of waiting for draws still using them
+        glState.gl.glBufferData(GLES20.GL_ARRAY_BUFFER, glyphCount * FLOATS_PER_GLYPH * Constants.BYTES_IN_FLOAT, glyphBuffer, GLES20.GL_STREAM_DRAW);
+        glState.gl.glDrawArraysInstanced(GLES20.GL_TRIANGLE_STRIP, 0, 4, glyphCount);
+    }
+
+    /** Color of the label being drawn; white, with an alpha depending on the label category and zoom. */
+    private final float[] textColor = {1, 1, 1, 0};
+
+    /** Draws the labels of the given layer that are on screen and shown at the given camera's zoom. */
+    public void drawLabels(TextLayer textLayer, float centerUtmX, float centerUtmY, float scaleFactor, float screenRatio) {
+        float f = CameraState.getCameraDistance(scaleFactor) / CameraState.NEAR_PLANE;
+        // indexed rather than for-each, which would allocate an iterator every frame
+        for (int k = 0; k < textLayer.strings.size(); ++k) {
+            TextString string = textLayer.strings.get(k);
+            float fx = ((string.x - Constants.GLOBAL_OFS_X) - centerUtmX) / (f * screenRatio);
+            float fy = ((string.y - Constants.GLOBAL_OFS_Y) - centerUtmY) / f;
+
+            textColor[3] = 0;
+            if (string.category == 9) {
+                textColor[3] = 1;
+            } else if (string.category == 7) {
+                if (scaleFactor < 16000 && scaleFactor > 8000)
+                    textColor[3] = (scaleFactor-8000)/(16000-8000);
+                else if (scaleFactor >= 16000)
+                    textColor[3] = 1;
+            } else if (string.category == 8) {
+                if (scaleFactor < 8000 && scaleFactor > 4000)
+                    textColor[3] = (scaleFactor-4000)/(8000-4000);
+                else if (scaleFactor >= 8000)
+                    textColor[3] = 1;
+            } else {
+                if (scaleFactor < 24000 && scaleFactor > 16000)
+                    textColor[3] = (scaleFactor-16000)/(24000-16000);
+                else if (scaleFactor >= 24000)
+                    textColor[3] = 1;
+            }
+            if (textColor[3] > 0 && fx > -1 && fx < 1 && fy > -1 && fy < 1)
+                drawText(string.text, fx, fy, string.category == 9 ? 16 : 12, textColor);
+        }
     }
 
     public void adjustForScreenSize(int width, int height) {
@@ -7,14 +7,25 @@ import java.nio.FloatBuffer;
 import java.nio.ShortBuffer;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
 
 import android.opengl.GLES20;
 import android.util.Log;
-import android.util.Pair;
 
 /**
  * Class responsible for rendering a tile consisting of many triangles.
+ * <p>
+ * All triangles are stored in one vertex and one index buffer. Each vertex carries the index of its
+ * surface type, which the vertex shader uses to look up the color in a palette uniform, so a tile is
+ * normally drawn with a single draw call. Vertices shared by several surface types are duplicated for
+ * this. For the few tiles where that would exceed the number of vertices that can be indexed with
+ * shorts, the vertices are not duplicated and the triangles are instead grouped by surface type and
+ * drawn one group at a time with a constant surface type attribute.
+ * <p>
+ * Tiles that are never unloaded can instead be part of a {@link MergedMesh}, in which case the
+ * tile only knows its index ranges within the mesh buffers.
+ * <p>
+ * With a GLES3 context, the buffers and vertex attribute setup are captured in a vertex array
+ * object when the tile is first drawn, so drawing only binds it.
  */
 public class Tile {
 
@@ -22,26 +33,51 @@ public class Tile {
     final int size;
     final int tx, ty;
 
-    /** Bytes currently loaded into GPU memory. */
+    /** Bytes currently loaded into GPU memory. Only changed in the GL thread. */
     public static int gpuBytes = 0;
 
     private int tileGpuBytes;
 
-    private boolean loadedToGL = false;
+    /** Volatile since frame preparation checks it on another thread, to budget uploads. */
+    private volatile boolean loadedToGL = false;
+
+    /** Merged mesh holding the triangles of this tile, or null if the tile has its own buffers. */
+    public MergedMesh mesh;
 
     final int[] vbo = new int[1];
+    final int[] ibo = new int[1];
+    /** Vertex array object, only used with GLES3; 0 until first drawn. */
+    final int[] vao = new int[1];
 
-    // per surface type data
-    private final int[] ibo;
-    private final int vertexCount;
-    private final int[] indexCount;
-    private final float[][] color;
+    final int vertexCount;
+    final int indexCount;
+
+    /**
+     * Surface type of each group of triangles, or a single -1 if the surface type is stored per vertex.
+     */
+    private final int[] groupTypes;
+
+    /**
+     * The triangles of each group are sorted into a grid of spatial chunks, so that only chunks
+     * intersecting the screen need to be drawn. Start index of each chunk of each group (plus one past
+     * the end), and bounding box of each chunk of each group (x0, y0, x1, y1).
+     */
+    final int[] chunkStart;
+    private final float[] chunkBounds;
+
+    /** Log2 of number of chunks per tile side. */
+    static final int CHUNK_GRID_SHIFT = 2;
+    static final int NR_CHUNKS = 1 << 2*CHUNK_GRID_SHIFT;
 
     private static final int COORDS_PER_VERTEX = 2;
+    /** x, y, surface type */
+    static final int FLOATS_PER_VERTEX = 3;
+    private static final int STRIDE = FLOATS_PER_VERTEX * Constants.BYTES_IN_FLOAT;
 
     static class ClaimableBuffer<B extends Buffer> {
         B buffer;
-        boolean claimed;
+        /** Set by the loading thread while holding the pool lock, cleared by the GL thread. */
+        volatile boolean claimed;
 
         ClaimableBuffer(B buffer, boolean claimed) {
             this.buffer = buffer;
@@ -50,7 +86,7 @@ public class Tile {
     }
 
     ClaimableBuffer<FloatBuffer> tmpVertexBuffer;
-    ClaimableBuffer<ShortBuffer>[] tmpIndexBuffers;
+    ClaimableBuffer<ShortBuffer> tmpIndexBuffer;
 
     static List<ClaimableBuffer<FloatBuffer>> vertexBuffers = new ArrayList<>();
     static List<ClaimableBuffer<ShortBuffer>> indexBuffers = new ArrayList<>();
@@ -110,70 +146,82 @@ public class Tile {
         }
     }
 
+    /** Unclaimed buffers kept in each staging pool by {@link #trimStagingBuffers}, for the tiles loaded on demand. */
+    private static final int KEPT_STAGING_BUFFERS = 4;
+
     /**
-     * Puts data in appropriate buffers for future loading to GL. This method is GL agnostic and
-     * does therefore not need to be called in the GL thread.
+     * Drops all but the largest few unclaimed staging buffers of both pools, so that their direct
+     * memory can be freed, e.g. after the top layer preload claimed one pair per tile at once.
+     */
+    static void trimStagingBuffers() {
+        synchronized (VERTEX_BUFFER_LOCK) {
+            trim(vertexBuffers, "vertex");
+        }
+        synchronized (INDEX_BUFFER_LOCK) {
+            trim(indexBuffers, "index");
+        }
+    }
+
+    /** Must be called holding the lock of the given pool, which is sorted by capacity. */
+    private static <B extends Buffer> void trim(List<ClaimableBuffer<B>> buffers, String name) {
+        int kept = 0, dropped = 0;
+        for (int k = buffers.size() - 1; k >= 0; --k) {
+            if (buffers.get(k).claimed || kept++ < KEPT_STAGING_BUFFERS)
+                continue;
+            buffers.remove(k);
+            ++dropped;
+        }
+        Log.d("TileCache", "Dropped " + dropped + " " + name + " buffers, " + buffers.size() + " left");
+    }
+
+    /**
+     * Takes over the given claimed staging buffers, already filled with the tile's vertices and
+     * indices, for future loading to GL. This method is GL agnostic and does therefore not need to be
+     * called in the GL thread.
      * NOTE: This method is accessed by multiple threads (loading thread and GL thread).
      */
-    public Tile(int size, int tx, int ty, float[] verts, int vertexCount, Map<Integer, Pair<short[], Integer>> trisByType) {
+    public Tile(int size, int tx, int ty, ClaimableBuffer<FloatBuffer> vertexBuffer, int vertexCount,
+                ClaimableBuffer<ShortBuffer> indexBuffer, int indexCount, int[] groupTypes, int[] chunkStart, float[] chunkBounds) {
         this.size = size;
         this.tx = tx;
         this.ty = ty;
-
         this.vertexCount = vertexCount;
+        this.indexCount = indexCount;
+        this.groupTypes = groupTypes;
+        this.chunkStart = chunkStart;
+        this.chunkBounds = chunkBounds;
 
-        tmpVertexBuffer = getFreeVertexBuffer(vertexCount * 2);
-        tmpVertexBuffer.buffer.put(verts, 0, vertexCount * 2).position(0);
-
-        ibo = new int[trisByType.size()];
-        color = new float[trisByType.size()][];
-        indexCount = new int[trisByType.size()];
-        tmpIndexBuffers = new ClaimableBuffer[trisByType.size()];
-
-        // create an index array for each surface type (color)
-        int type = 0;
-        for (Map.Entry<Integer, Pair<short[], Integer>> tris : trisByType.entrySet()) {
-            indexCount[type] = tris.getValue().second;
-
-            color[type] = Common.rgb(Constants.COLORS_NEW[tris.getKey()]);
-//          color[0]/=2; color[1]/=2; color[2]/=2; // for testing overdraw
-
-            tmpIndexBuffers[type] = getFreeIndexBuffer(indexCount[type]);
-            tmpIndexBuffers[type].buffer.put(tris.getValue().first, 0, indexCount[type]).position(0);
+        tmpVertexBuffer = vertexBuffer;
+        tmpIndexBuffer = indexBuffer;
 
-            ++type;
-        }
-
-        Log.i("PerfLog", String.format("Loaded %d tris, %d verts", vertexCount / 6, vertexCount / 2));
+        if (Constants.VERBOSE_LOGGING)
+            Log.i("PerfLog", String.format("Loaded %d tris, %d verts, %d draw groups", indexCount / 3, vertexCount, groupTypes.length));
     }
 
     /** Must be executed in GL thread. */
-    private void loadToGL() {
-        GLES20.glGenBuffers(1, vbo, 0);
-        int bytes = vertexCount * 2 * Constants.BYTES_IN_FLOAT;
+    private void loadToGL(GLState glState) {
+        glState.bindVertexArray(0); // don't change the index buffer of any other tile's vertex array
+        glState.gl.glGenBuffers(1, vbo, 0);
+        int bytes = vertexCount * STRIDE;
         if (vbo[0] > 0) {
-            GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, vbo[0]);
-            GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, bytes, tmpVertexBuffer.buffer, GLES20.GL_STATIC_DRAW);
-            GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+            glState.bindArrayBuffer(vbo[0]);
+            glState.gl.glBufferData(GLES20.GL_ARRAY_BUFFER, bytes, tmpVertexBuffer.buffer, GLES20.GL_STATIC_DRAW);
         } else {
             throw new RuntimeException("Buffer error: "+vbo[0]);
         }
         tileGpuBytes = bytes;
         tmpVertexBuffer.claimed = false;
 
-        for (int t = 0; t < tmpIndexBuffers.length; ++t) {
-            GLES20.glGenBuffers(1, ibo, t);
-            bytes = indexCount[t] * Constants.BYTES_IN_SHORT;
-            if (ibo[t] > 0) {
-                GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, ibo[t]);
-                GLES20.glBufferData(GLES20.GL_ELEMENT_ARRAY_BUFFER, bytes, tmpIndexBuffers[t].buffer, GLES20.GL_STATIC_DRAW);
-                GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0);
-            } else {
-                throw new RuntimeException("Buffer error: " + ibo[t]);
-            }
-            tileGpuBytes += bytes;
-            tmpIndexBuffers[t].claimed = false;
+        glState.gl.glGenBuffers(1, ibo, 0);
+        bytes = indexCount * Constants.BYTES_IN_SHORT;
+        if (ibo[0] > 0) {
+            glState.bindElementArrayBuffer(ibo[0]);
+            glState.gl.glBufferData(GLES20.GL_ELEMENT_ARRAY_BUFFER, bytes, tmpIndexBuffer.buffer, GLES20.GL_STATIC_DRAW);
+        } else {
+            throw new RuntimeException("Buffer error: " + ibo[0]);
         }
+        tileGpuBytes += bytes;
+        tmpIndexBuffer.claimed = false;
 
         gpuBytes += tileGpuBytes;
 //        Log.d("TileCache", "LOAD TO GL: " + tileGpuBytes + " bytes");
@@ -181,54 +229,163 @@ public class Tile {
         loadedToGL = true;
     }
 
-    /** Release any memory held by this tile, either in buffer or in GL. Must be run in GL thread. */
-    public void delete() {
-        if (!loadedToGL) {
-            tmpVertexBuffer.claimed = false;
-            for (int t = 0; t < tmpIndexBuffers.length; ++t)
-                tmpIndexBuffers[t].claimed = false;
+    /**
+     * Queues any memory held by this tile, either in buffer or in GL, to be released by the retire
+     * queue being drained. Must be run in GL thread. Tiles in a merged mesh hold no memory of their own.
+     */
+    public void delete(RetireQueue retireQueue) {
+        if (mesh != null) {
+            return;
+        } else if (!loadedToGL) {
+            retireQueue.retireStaging(tmpVertexBuffer);
+            retireQueue.retireStaging(tmpIndexBuffer);
         } else {
-            gpuBytes -= tileGpuBytes;
-            GLES20.glDeleteBuffers(1, vbo, 0);
-            GLES20.glDeleteBuffers(ibo.length, ibo, 0);
+            retireQueue.retireGL(vbo[0], ibo[0], vao[0], tileGpuBytes);
         }
     }
 
+    /** @return True if drawing won't upload anything; tiles of a merged mesh count as loaded. */
+    public boolean isLoadedToGL() {
+        return loadedToGL || mesh != null;
+    }
+
     public static int trisDrawn = 0;
 
-    public void draw(int program, float blend) {
+    /**
+     * Draws the tile, skipping any chunks of it that are outside the given screen edges (x0, y0, x1, y1).
+     * Colors are taken from the program's palette uniform.
+     */
+    public void draw(GLState glState, ShaderProgram program, float blend, int[] screenEdges) {
+        if (mesh != null) {
+            // buffers are owned by the merged mesh
+            mesh.add(this, screenEdges);
+            mesh.flush(glState, program, blend);
+            return;
+        }
+
         if (!loadedToGL) {
-            loadToGL();
+            loadToGL(glState);
         }
 
-        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, vbo[0]);
+        boolean typePerVertex = isTypePerVertex();
+        if (glState.isGles3()) {
+            if (vao[0] == 0)
+                vao[0] = createVertexArray(glState, program, vbo[0], ibo[0], typePerVertex);
+            glState.bindVertexArray(vao[0]);
+        } else {
+            glState.bindArrayBuffer(vbo[0]);
+            glState.bindElementArrayBuffer(ibo[0]);
+            setVertexAttribs(glState, program, typePerVertex);
+        }
 
-        // prepare vertex data
-        int mPositionHandle = GLES20.glGetAttribLocation(program, "vPosition");
-        GLES20.glEnableVertexAttribArray(mPositionHandle);
-        GLES20.glVertexAttribPointer(mPositionHandle, COORDS_PER_VERTEX, GLES20.GL_FLOAT, false, 0, 0);
+        // with GLES3, the blend is part of the tile's uniform buffer range instead
+        int blendHandle = program.getUniformLocation("uBlend");
+        if (blendHandle != -1)
+            glState.gl.glUniform1f(blendHandle, blend);
 
-//        int mBlendHandle = GLES20.glGetUniformLocation(program, "blend");
-//        GLES20.glUniform1f(mBlendHandle, blend);
+        int mTypeHandle = program.getAttribLocation("aType");
+        for (int g = 0; g < groupTypes.length; ++g) {
+            if (!typePerVertex)
+                glState.gl.glVertexAttrib1f(mTypeHandle, groupTypes[g]);
 
-        GLHelper.checkGlError();
+            int rangeCount = getVisibleRanges(g, screenEdges, tmpRanges, 0);
+            drawRanges(glState.gl, tmpRanges, rangeCount, GLES20.GL_UNSIGNED_SHORT);
+        }
 
-        for (int t = 0; t < ibo.length; ++t) {
-            int mColorHandle = GLES20.glGetUniformLocation(program, "vColor");
-            color[t][3] = blend;
-            GLES20.glUniform4fv(mColorHandle, 1, color[t], 0);
+        // drawing vertices:
+//        glState.gl.glDrawElements(GLES20.GL_POINTS, indexCount, GLES20.GL_UNSIGNED_INT, 0);
+    }
+
+    /** True if each vertex carries its surface type, i.e. the tile is a single group of triangles. */
+    boolean isTypePerVertex() {
+        return groupTypes[0] == -1;
+    }
 
-            GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, ibo[t]);
-            GLES20.glDrawElements(GLES20.GL_TRIANGLES, indexCount[t], GLES20.GL_UNSIGNED_SHORT, 0);
-            trisDrawn += indexCount[t]/3;
+    /**
+     * Sets up the vertex attributes for the currently bound vertex buffer. If the surface type is not
+     * stored per vertex, the aType attribute array is disabled and must be set as a constant attribute.
+     */
+    static void setVertexAttribs(GLState glState, ShaderProgram program, boolean typePerVertex) {
+        int mPositionHandle = program.getAttribLocation("vPosition");
+        glState.enableVertexAttribArray(mPositionHandle);
+        glState.gl.glVertexAttribPointer(mPositionHandle, COORDS_PER_VERTEX, GLES20.GL_FLOAT, false, STRIDE, 0);
+
+        int mTypeHandle = program.getAttribLocation("aType");
+        if (typePerVertex) {
+            glState.enableVertexAttribArray(mTypeHandle);
+            glState.gl.glVertexAttribPointer(mTypeHandle, 1, GLES20.GL_FLOAT, false, STRIDE, COORDS_PER_VERTEX * Constants.BYTES_IN_FLOAT);
+        } else {
+            glState.disableVertexAttribArray(mTypeHandle);
         }
+    }
 
-        // drawing vertices:
-//        int mColorHandle = GLES20.glGetUniformLocation(program, "vColor");
-//        GLES20.glUniform4fv(mColorHandle, 1, new float[] {1, 0, 0, 0}, 0);
-//        GLES20.glDrawElements(GLES20.GL_POINTS, indexCount, GLES20.GL_UNSIGNED_INT, 0);
+    /**
+     * Creates a vertex array object with the given buffers and the vertex attribute setup of
+     * {@link #setVertexAttribs}. The attribute locations of all GLES3 tile programs are fixed, so
+     * the vertex array works with any of them. Leaves the new vertex array bound.
+     */
+    static int createVertexArray(GLState glState, ShaderProgram program, int vbo, int ibo, boolean typePerVertex) {
+        int[] vao = new int[1];
+        glState.gl.glGenVertexArrays(1, vao, 0);
+        glState.bindVertexArray(vao[0]);
+        glState.bindArrayBuffer(vbo);
+        glState.bindElementArrayBuffer(ibo);
+        setVertexAttribs(glState, program, typePerVertex);
+        return vao[0];
+    }
+
+    /** Index ranges (start, end) to draw, reused between calls. At most every other chunk starts a new range. */
+    private static final int[] tmpRanges = new int[NR_CHUNKS + 2];
+
+    /**
+     * Appends the index ranges (start, end) of the visible chunks of the given group, drawing each
+     * run of consecutive visible chunks as one range; empty chunks don't break a run. A range starting
+     * where the last range in the array ends is merged with it.
+     * @return New number of ranges.
+     */
+    int getVisibleRanges(int group, int[] screenEdges, int[] ranges, int rangeCount) {
+        // no need to test individual chunks if the whole tile is on screen
+        int tileSize = Constants.TILE_SIZES[size];
+        int x0 = tx * tileSize - Constants.GLOBAL_OFS_X, y0 = ty * tileSize - Constants.GLOBAL_OFS_Y;
+        boolean onScreen = x0 >= screenEdges[0] && y0 >= screenEdges[1] && x0 + tileSize <= screenEdges[2] && y0 + tileSize <= screenEdges[3];
+
+        int runStart = -1;
+        for (int c = group * NR_CHUNKS; c <= (group + 1) * NR_CHUNKS; ++c) {
+            boolean lastChunk = c == (group + 1) * NR_CHUNKS;
+            if (!lastChunk && chunkStart[c] == chunkStart[c + 1])
+                continue;
+            if (!lastChunk && (onScreen || chunkOnScreen(c, screenEdges))) {
+                if (runStart == -1)
+                    runStart = chunkStart[c];
+            } else if (runStart != -1) {
+                if (rangeCount > 0 && ranges[rangeCount*2 - 1] == runStart) {
+                    ranges[rangeCount*2 - 1] = chunkStart[c];
+                } else {
+                    ranges[rangeCount*2] = runStart;
+                    ranges[rangeCount*2 + 1] = chunkStart[c];
+                    ++rangeCount;
+                }
+                runStart = -1;
+            }
+        }
+        return rangeCount;
+    }
+
+    /**
+     * Draws the given index ranges (start, end) of the currently bound index buffer.
+     * @param indexType GL_UNSIGNED_SHORT, or GL_UNSIGNED_INT (GLES3 only).
+     */
+    static void drawRanges(GL gl, int[] ranges, int rangeCount, int indexType) {
+        int indexBytes = indexType == GLES20.GL_UNSIGNED_INT ? Constants.BYTES_IN_INT : Constants.BYTES_IN_SHORT;
+        for (int r = 0; r < rangeCount; ++r) {
+            int count = ranges[r*2 + 1] - ranges[r*2];
+            gl.glDrawElements(GLES20.GL_TRIANGLES, count, indexType, ranges[r*2] * indexBytes);
+            trisDrawn += count / 3;
+        }
+    }
 
-        GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0);
-        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+    private boolean chunkOnScreen(int chunk, int[] screenEdges) {
+        return chunkBounds[chunk*4] <= screenEdges[2] && chunkBounds[chunk*4+2] >= screenEdges[0] &&
+                chunkBounds[chunk*4+1] <= screenEdges[3] && chunkBounds[chunk*4+3] >= screenEdges[1];
     }
 }
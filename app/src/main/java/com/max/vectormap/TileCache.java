@@ -1,21 +1,21 @@
 package com.max.vectormap;
 
-import android.content.Context;
 import android.util.Log;
 
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
-import java.util.concurrent.BlockingQueue;
+import java.util.Queue;
+import java.util.concurrent.BlockingDeque;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -23,27 +23,89 @@ public class TileCache {
 
     Map<Integer, Tile> cache = new ConcurrentHashMap<>();
 
-    /** Contains all tile indices for which we have a tile on disk. */
-    Set<Integer> existingTiles = new HashSet<>();
+    /** Contains all tile indices for which we have a tile on disk. Not changed after construction, so may be read from any thread. */
+    final IntSet existingTiles = new IntSet(0);
 
-    private final Context context;
     private final TileLoader tileLoader;
 
-    private final TileDiskLoader tileDiskLoader;
+    final TileDiskLoader tileDiskLoader;
+    /** Merge the top layer using 32 bit indices; set by {@link #startLoading}. */
+    private boolean intIndices;
 
-    /** Creates a new tile cache and inventories all tiles available on disk. */
-    public TileCache(Context context) {
-        this.context = context;
-        tileLoader = new TileLoader(context);
+    private volatile Runnable tileLoadedListener;
+
+    /** True if any tile blend changed in the last call to getDrawOrder, so that more frames are needed. */
+    private boolean animating;
+
+    private volatile boolean topLayerPreloaded = false;
+
+    /**
+     * Tiles loaded into or evicted from the cache since the last getDrawOrder, whose tree nodes must
+     * update their loaded flag. Added to by the loading threads too.
+     */
+    private final Queue<Integer> loadEvents = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Creates a new tile cache and inventories all tiles available on disk. Tiles are only loaded
+     * after {@link #startLoading}.
+     */
+    public TileCache() {
+        tileLoader = new TileLoader();
         inventoryTris();
 
         tileDiskLoader = new TileDiskLoader();
+    }
+
+    /**
+     * Starts the loading thread, which first preloads the top layer. Call once, when the GL version
+     * is known, since it decides how the top layer is merged.
+     * @param intIndices True if the GL context supports 32 bit indices (GLES3).
+     */
+    public void startLoading(boolean intIndices) {
+        this.intIndices = intIndices;
         new Thread(tileDiskLoader).start();
     }
 
+    /**
+     * @return True if the top layer and all tiles wanted for the position of the last
+     * {@link #refreshForPosition} call are loaded. Lets benchmarks render deterministic frames.
+     */
+    public boolean isPositionLoaded() {
+        if (!topLayerPreloaded)
+            return false;
+        for (int layer = 0; layer < Constants.NR_LAYERS; ++layer) {
+            int[] rect = wantedRects[layer];
+            for (int ty = rect[1]; ty <= rect[3]; ++ty)
+                for (int tx = rect[0]; tx <= rect[2]; ++tx) {
+                    int tp = Common.getTilePos(layer, tx, ty);
+                    if (existingTiles.contains(tp) && !cache.containsKey(tp))
+                        return false;
+                }
+        }
+        return true;
+    }
+
+    /** Sets a listener called (in the loading thread) whenever tiles were loaded into the cache. */
+    public void setTileLoadedListener(Runnable listener) {
+        tileLoadedListener = listener;
+    }
+
+    private void notifyTileLoaded() {
+        Runnable listener = tileLoadedListener;
+        if (listener != null)
+            listener.run();
+    }
+
+    /** @return True if tiles are still blending in or out, as of the last call to getDrawOrder. */
+    public boolean isAnimating() {
+        return animating;
+    }
+
     /** Does not load anything from disk, only inventories what's there. */
     private void inventoryTris() {
         Pattern p = Pattern.compile("tri_(\\d+)_(\\d+)_(\\d+)\\.tri");
+        int[] tilePositions = new int[1024];
+        int count = 0;
 
         Log.d("TileCache", "Root = "+TileLoader.getTriRoot());
         for (File level0 : TileLoader.getTriRoot().listFiles()) {
@@ -61,12 +123,14 @@ public class TileCache {
                         }
                         int tx = Integer.valueOf(m.group(2));
                         int ty = Integer.valueOf(m.group(3));
-                        int tilePos = Common.getTilePos(layer, tx, ty);
-                        existingTiles.add(tilePos);
+                        if (count == tilePositions.length)
+                            tilePositions = Arrays.copyOf(tilePositions, count * 2);
+                        tilePositions[count++] = Common.getTilePos(layer, tx, ty);
                     }
                 }
             }
         }
+        existingTiles.set(tilePositions, count);
     }
 
     /**
@@ -82,42 +146,17 @@ public class TileCache {
             synchronized (this) {
                 if ((tile = cache.get(tilePos)) == null) { // test again in case another thread just populated it
                     cache.put(tilePos, tile = tileLoader.loadTile(tilePos));
-                    Log.d("TileCache", (logCacheMiss ? "CACHE MISS: " : "(no miss) ") + "Loaded tile " + Common.getTilePos(tile.size, tile.tx, tile.ty) +
-                            " (" + tile.size + ", " + tile.tx + ", " + tile.ty + ")");
+                    loadEvents.add(tilePos);
+                    if (Constants.VERBOSE_LOGGING)
+                        Log.d("TileCache", (logCacheMiss ? "CACHE MISS: " : "(no miss) ") + "Loaded tile " + Common.getTilePos(tile.size, tile.tx, tile.ty) +
+                                " (" + tile.size + ", " + tile.tx + ", " + tile.ty + ")");
+                    notifyTileLoaded();
                 }
             }
         }
         return tile;
     }
 
-    static class TileNode {
-        final int layer;
-        final int tx, ty;
-        final int tp;
-        float blend;
-        /** Blend as actually drawn. Differs from blend since parents whose children are all drawn get a draw blend of 0 although their actual blend might still be 1. */
-        float drawnBlend;
-        boolean fullyOverdrawn;
-        TileNode parent;
-        TileNode[] children;
-
-        private static TileNode[] NO_CHILDREN = new TileNode[0];
-
-        public TileNode(int layer, int tx, int ty, float blend, TileNode parent) {
-            this.layer = layer;
-            this.tx = tx;
-            this.ty = ty;
-            this.tp = Common.getTilePos(layer, tx, ty);
-            this.blend = blend;
-            this.parent = parent;
-            this.children = layer <= 0 ? NO_CHILDREN : new TileNode[1 << 2*Constants.TILE_SHIFT_DIFFS[layer-1]];
-        }
-
-        @Override public String toString() {
-            return String.format("%d,%d,%d:%.2f", layer, tx, ty, blend);
-        }
-    }
-
     public static void getTileEdges(int[] screenEdges, int layer, int[] tileEdges) {
         tileEdges[0] = Constants.GLOBAL_OFS_X + screenEdges[0] >> Constants.TILE_SHIFTS[layer];
         tileEdges[1] = Constants.GLOBAL_OFS_Y + screenEdges[1] >> Constants.TILE_SHIFTS[layer];
@@ -129,6 +168,11 @@ public class TileCache {
         return cache.containsKey(tp);
     }
 
+    /** @return The tile if it's in the cache, without loading it. May be called from any thread. */
+    public Tile getLoaded(int tp) {
+        return cache.get(tp);
+    }
+
     /** Top level extreme points (x0, y0, x1, y1). TODO don't hard code. */
     int[] rootEdges = {0, 23, 3, 29};
 
@@ -136,38 +180,149 @@ public class TileCache {
     { prevTileEdges[0][0] = Integer.MAX_VALUE; } // indicates no previous state (e.g. first time rendering)
     int[][] tileEdges = new int[Constants.NR_LAYERS][4];
 
-    private TileNode getRootNode() {
-        TileNode node = new TileNode(-1, -1, -1, 0, null);
-        node.children = new TileNode[(rootEdges[2] - rootEdges[0] + 1) * (rootEdges[3] - rootEdges[1] + 1)];
-        return node;
-    }
-
-    TileNode rootNode = getRootNode();
+    /** Nodes of the tile tree; accessed by the thread preparing frames only. */
+    private final TileNodePool nodes = new TileNodePool(1024);
+    private static final int NONE = TileNodePool.NONE;
+    /** Top layer nodes, indexed by position within rootEdges. */
+    private final int[] rootChildren = new int[(rootEdges[2] - rootEdges[0] + 1) * (rootEdges[3] - rootEdges[1] + 1)];
+    { Arrays.fill(rootChildren, NONE); }
+    /** Tiles in the cache, as far as the tree knows from the load events applied so far; lets new nodes look them up without boxing. */
+    private final IntMap<Tile> loadedTiles = new IntMap<>(1024);
+
+    /** Per layer state of the depth first tree traversals, top layer first. */
+    private final int[] stackNode = new int[Constants.NR_LAYERS];
+    private final int[] stackChild = new int[Constants.NR_LAYERS];
+    private final boolean[] stackForce = new boolean[Constants.NR_LAYERS];
+    private final boolean[] stackDirty = new boolean[Constants.NR_LAYERS];
+    private final boolean[] stackUnderBlended = new boolean[Constants.NR_LAYERS];
 
     int MAX_DRAWN_TILES = 256; // 80 were enough during a test run; use 256 for extra margin
     public int[] drawnTilePosArray = new int[MAX_DRAWN_TILES];
+    /** The drawn tiles themselves, so that building the render queue needs no cache lookups. */
+    public Tile[] drawnTileArray = new Tile[MAX_DRAWN_TILES];
     public float[] drawnBlendArray = new float[MAX_DRAWN_TILES];
+    /** True for tiles that have an ancestor drawn with a blend below 1. */
+    public boolean[] drawnUnderBlendedArray = new boolean[MAX_DRAWN_TILES];
     public int nrDrawnTiles = 0;
 
+    /** Quality settings of the current getDrawOrder call; see {@link QualityGovernor}. */
+    private float blendSpeed = Constants.LAYER_BLEND_SPEED;
+    private boolean holdCoarserLayer;
+    private int uploadsLeft;
+
     public void getDrawOrder(int[] screenEdges, float scaleFactor, float elapsedTime) {
-        for (int layer = Constants.TOP_LAYER; layer >= 0; --layer)
+        getDrawOrder(screenEdges, scaleFactor, elapsedTime, QualityGovernor.FULL_QUALITY);
+    }
+
+    /** Desired layer and quality of the previous getDrawOrder call; changing either affects all nodes. */
+    private int prevDesiredLayer = -1, prevQuality = -1;
+    /** True if all nodes are visited in the current getDrawOrder call. */
+    private boolean fullRefresh;
+    /** True if the screen edges of any layer changed since the previous getDrawOrder call. */
+    private boolean edgesChanged;
+    /** True if any node was visited in the current getDrawOrder call, so that the draw order may have changed. */
+    private boolean treeChanged;
+
+    /**
+     * Updates the tile tree and draw order. Only visits nodes that may have changed: nodes whose
+     * visibility changed, that are blending, or whose tile (or an ancestor's) was loaded or evicted.
+     * When the camera is still and nothing animates, the draw order is kept as is.
+     * @param quality One of the QualityGovernor levels.
+     */
+    public void getDrawOrder(int[] screenEdges, float scaleFactor, float elapsedTime, int quality) {
+        edgesChanged = false;
+        for (int layer = Constants.TOP_LAYER; layer >= 0; --layer) {
             getTileEdges(screenEdges, layer, tileEdges[layer]);
+            edgesChanged |= !Arrays.equals(tileEdges[layer], prevTileEdges[layer]);
+        }
 
         int desiredLayer = Common.getLayerForScaleFactor(scaleFactor);
-
+        fullRefresh = prevTileEdges[0][0] == Integer.MAX_VALUE || desiredLayer != prevDesiredLayer || quality != prevQuality;
+        prevDesiredLayer = desiredLayer;
+        prevQuality = quality;
+        applyLoadEvents();
+
+        blendSpeed = Constants.LAYER_BLEND_SPEED * QualityGovernor.getBlendSpeedFactor(quality);
+        holdCoarserLayer = QualityGovernor.holdsCoarserLayer(quality);
+        uploadsLeft = QualityGovernor.getMaxUploads(quality);
+        animating = false;
+        treeChanged = false;
         refreshTree(desiredLayer, elapsedTime);
 
-        getDrawOrderFromTree(rootNode);
+        if (treeChanged) {
+            getDrawOrderFromTree();
 
-        // TODO something smarter; this is needed so to not remove tiles currently drawn
-        drawnTilePos.clear();
-        for (int k = 0; k < nrDrawnTiles; ++k)
-            drawnTilePos.add(drawnTilePosArray[k]);
+            drawnTilePos.set(drawnTilePosArray, nrDrawnTiles); // needed to not remove tiles currently drawn
+        }
 
         // TODO don't copy; oscillate between two copies!
-        for (int layer = 0; layer <= Constants.TOP_LAYER; ++layer)
-            for (int k = 0; k < 4; ++k)
-                prevTileEdges[layer][k] = tileEdges[layer][k];
+        if (edgesChanged)
+            for (int layer = 0; layer <= Constants.TOP_LAYER; ++layer)
+                for (int k = 0; k < 4; ++k)
+                    prevTileEdges[layer][k] = tileEdges[layer][k];
+    }
+
+    /** Updates the tile of the nodes of all tiles loaded or evicted since the last call, and marks them for a visit. */
+    private void applyLoadEvents() {
+        for (Integer tp; (tp = loadEvents.poll()) != null; ) {
+            Tile tile = cache.get(tp);
+            if (tile != null) {
+                loadedTiles.put(tp, tile);
+                if (Common.getLayer(tp) != Constants.TOP_LAYER && !isWanted(tp))
+                    evictPending.add(tp); // was still loading when it became unwanted
+            } else {
+                loadedTiles.remove(tp);
+            }
+            int node = findNode(tp);
+            if (node == NONE)
+                continue; // not in the tree; nodes created later check loadedTiles
+            nodes.tile[node] = tile;
+            nodes.dirtySubtree[node] = true; // descendants may be waiting for this tile before blending out
+            for (; node != NONE; node = nodes.parent[node])
+                nodes.dirty[node] = true;
+        }
+    }
+
+    /** @return The tree node of the given tile, or NONE if there is none. */
+    private int findNode(int tp) {
+        int layer = Common.getLayer(tp);
+        int shift = Constants.TILE_SHIFTS[Constants.TOP_LAYER] - Constants.TILE_SHIFTS[layer];
+        int x = Common.getTX(tp) >> shift, y = Common.getTY(tp) >> shift;
+        if (x < rootEdges[0] || x > rootEdges[2] || y < rootEdges[1] || y > rootEdges[3])
+            return NONE;
+        int node = rootChildren[(y - rootEdges[1]) * (rootEdges[2] - rootEdges[0] + 1) + x - rootEdges[0]];
+        for (int l = Constants.TOP_LAYER - 1; node != NONE && l >= layer; --l) {
+            shift = Constants.TILE_SHIFTS[l] - Constants.TILE_SHIFTS[layer];
+            int childShift = Constants.TILE_SHIFT_DIFFS[l];
+            int cx = Common.getTX(tp) >> shift, cy = Common.getTY(tp) >> shift;
+            node = nodes.getChild(node, ((cy - (nodes.ty[node] << childShift)) << childShift) + cx - (nodes.tx[node] << childShift));
+        }
+        return node;
+    }
+
+    private int getChild(int parent, int idx) {
+        return parent == NONE ? rootChildren[idx] : nodes.getChild(parent, idx);
+    }
+
+    private void setChild(int parent, int idx, int child) {
+        if (parent == NONE)
+            rootChildren[idx] = child;
+        else
+            nodes.setChild(parent, idx, child);
+    }
+
+    /** Removes the given child and all its descendants from the tree, if there is one. */
+    private void removeChild(int parent, int idx) {
+        int child = getChild(parent, idx);
+        if (child != NONE) {
+            nodes.freeSubtree(child);
+            setChild(parent, idx, NONE);
+        }
+    }
+
+    /** @return True if the given tile is completely on screen, so that all its descendants are too. */
+    private static boolean isInterior(int[] edges, int tx, int ty) {
+        return tx > edges[0] && tx < edges[2] && ty > edges[1] && ty < edges[3];
     }
 
     /** compute new draw order given screen edges and scale factor, keeping all tiles that were on screen the previous round,
@@ -176,58 +331,102 @@ public class TileCache {
         for (int ty = rootEdges[1]; ty <= rootEdges[3]; ++ty) {
             for (int tx = rootEdges[0]; tx <= rootEdges[2]; ++tx) {
                 int idx = (ty - rootEdges[1]) * (rootEdges[2] - rootEdges[0] + 1) + tx - rootEdges[0];
-                refreshNode(rootNode, idx, Constants.TOP_LAYER, tx, ty, desiredLayer, elapsedTime);
+                refreshSubtree(idx, tx, ty, desiredLayer, elapsedTime);
             }
         }
     }
 
-    /** Refresh the given tile and all its children recursively, keeping all tiles that were on screen the previous round,
-     * and removing those that became off screen. */
-    private void refreshNode(TileNode parent, int idx, int layer, int tx, int ty, int desiredLayer, float elapsedTime) {
+    /**
+     * Refresh the given top layer tile and all its children, depth first, keeping all tiles that were
+     * on screen the previous round, and removing those that became off screen. Iterative, with the
+     * path from the top layer node kept in the stack arrays.
+     */
+    private void refreshSubtree(int idx, int tx, int ty, int desiredLayer, float elapsedTime) {
+        if (!enterNode(NONE, idx, Constants.TOP_LAYER, tx, ty, desiredLayer, elapsedTime, fullRefresh, 0))
+            return;
+        int depth = 0;
+        while (depth >= 0) {
+            int node = stackNode[depth];
+            int layer = nodes.layer[node];
+            if (stackChild[depth] < TileNodePool.getChildCount(layer)) {
+                int childIdx = stackChild[depth]++;
+                int shift = Constants.TILE_SHIFT_DIFFS[layer-1];
+                int x = (nodes.tx[node] << shift) + (childIdx & (1 << shift) - 1);
+                int y = (nodes.ty[node] << shift) + (childIdx >> shift);
+                if (enterNode(node, childIdx, layer-1, x, y, desiredLayer, elapsedTime, stackForce[depth], depth + 1))
+                    ++depth;
+                else
+                    childDone(depth, childIdx, x, y);
+            } else {
+                // Set drawnBlend. For any tile whose on-screen children all have a blend of 1, drawBlend is 0 since the tile is completely overdrawn.
+                if ((nodes.drawnBlend[node] = nodes.blend[node]) > 0 && nodes.fullyOverdrawn[node])
+                    nodes.drawnBlend[node] = 0;
+                nodes.dirty[node] = stackDirty[depth];
+                if (--depth >= 0)
+                    childDone(depth, stackChild[depth] - 1, nodes.tx[node], nodes.ty[node]);
+            }
+        }
+    }
+
+    /**
+     * Visits a node before its children: removes it if it's off screen, creates it if it should be
+     * visible, and updates its blend. Subtrees that can't have changed are skipped, unless forced.
+     * @return True if the node's children must be visited; the node is then pushed at the given depth.
+     */
+    private boolean enterNode(int parent, int idx, int layer, int tx, int ty, int desiredLayer, float elapsedTime, boolean force, int depth) {
         // if tile is outside screen, remove it and stop recursion
         if (tx < tileEdges[layer][0] || tx > tileEdges[layer][2] || ty < tileEdges[layer][1] || ty > tileEdges[layer][3]) {
-            parent.children[idx] = null;
-            return;
+            removeChild(parent, idx);
+            return false;
         }
         // if tile did not previously exist and should not be visible, stop recursion
-        TileNode node = parent.children[idx];
-        if (node == null && layer < desiredLayer)
-            return;
+        int node = getChild(parent, idx);
+        if (node == NONE && layer < desiredLayer)
+            return false;
+        // skip if nothing in the subtree changes: not blending, no load events, and visibility unchanged
+        if (node != NONE && !force && !nodes.dirty[node] &&
+                (!edgesChanged || isInterior(tileEdges[layer], tx, ty) && isInterior(prevTileEdges[layer], tx, ty)))
+            return false;
+        treeChanged = true;
 
-        if (node == null) {
+        if (node == NONE) {
             // tile does not currently exist; start blended out if it would have been visible (although not drawn) last frame
             // (to prevent "popping"), and start blended in if tile was panned into view
             float initialBlend = previouslyOnScreen(layer, tx, ty) ? 0 : 1;
-            parent.children[idx] = node = new TileNode(layer, tx, ty, initialBlend, parent);
+            node = nodes.alloc(layer, tx, ty, initialBlend, parent);
+            setChild(parent, idx, node);
+            nodes.tile[node] = loadedTiles.get(nodes.tp[node]);
         } else {
             // Tile already exists; keep blend from previously drawn tree. If the tile was fully overdrawn,
             // start blend at 1 and have children blend out, rather than blending the parent in from 0.
-            if (node.fullyOverdrawn)
-                node.blend = 1;
+            if (nodes.fullyOverdrawn[node])
+                nodes.blend[node] = 1;
         }
 
-        updateBlending(parent, idx, desiredLayer, elapsedTime);
+        boolean dirty = updateBlending(parent, idx, desiredLayer, elapsedTime);
+        animating |= dirty;
+        if (getChild(parent, idx) == NONE)
+            return false; // blended out completely
+
+        stackNode[depth] = node;
+        stackChild[depth] = 0;
+        stackForce[depth] = force || nodes.dirtySubtree[node];
+        stackDirty[depth] = dirty;
+        nodes.dirtySubtree[node] = false;
+        nodes.fullyOverdrawn[node] = layer > 0; // until a child turns out not to be fully drawn
+        return true;
+    }
 
-        // recursive call
-        if (node.fullyOverdrawn = layer > 0) {
-            int shift = Constants.TILE_SHIFT_DIFFS[layer-1];
-            for (int y = ty << shift; y < ty + 1 << shift; ++y) {
-                for (int x = tx << shift; x < tx + 1 << shift; ++x) {
-                    int childIdx = ((y - (ty << shift)) << shift) + x - (tx << shift);
-                    refreshNode(node, childIdx, layer-1, x, y, desiredLayer, elapsedTime);
+    /** Updates the node at the given depth after one of its children (at x, y) was visited or skipped. */
+    private void childDone(int depth, int childIdx, int x, int y) {
+        int node = stackNode[depth];
+        int childLayer = nodes.layer[node] - 1;
+        int child = nodes.getChild(node, childIdx);
+        stackDirty[depth] |= child != NONE && nodes.dirty[child];
 
-                    // if any on-screen child is not fully drawn, set this node to not fully drawn
-                    if (node.fullyOverdrawn && x >= tileEdges[layer-1][0] && x <= tileEdges[layer-1][2] && y >= tileEdges[layer-1][1] && y <= tileEdges[layer-1][3]) {
-                        TileNode child = node.children[childIdx];
-                        node.fullyOverdrawn = child != null && (child.blend == 1 || child.fullyOverdrawn);
-                    }
-                }
-            }
-        }
-
-        // Set drawnBlend. For any tile whose on-screen children all have a blend of 1, drawBlend is 0 since the tile is completely overdrawn.
-        if ((node.drawnBlend = node.blend) > 0 && node.fullyOverdrawn)
-            node.drawnBlend = 0;
+        // if any on-screen child is not fully drawn, set this node to not fully drawn
+        if (nodes.fullyOverdrawn[node] && x >= tileEdges[childLayer][0] && x <= tileEdges[childLayer][2] && y >= tileEdges[childLayer][1] && y <= tileEdges[childLayer][3])
+            nodes.fullyOverdrawn[node] = child != NONE && (nodes.blend[child] == 1 || nodes.fullyOverdrawn[child]);
     }
 
     private boolean previouslyOnScreen(int layer, int tx, int ty) {
@@ -237,61 +436,135 @@ public class TileCache {
     }
 
     /** Update blend values; blend in and out depending on if tile layer is within the desired range of layers.
-     * Remove tile if it blended completely out. */
-    private void updateBlending(TileNode parent, int idx, int desiredLayer, float elapsedTime) {
-        TileNode node = parent.children[idx];
-        if (node.parent == null) // exclude root node
-            return;
-
-        if (!isLoaded(node.tp)) {
-            node.blend = 0; // tiles not loaded always get blend 0
-        } else if (node.layer >= desiredLayer) {
-            node.blend = Math.min(1, node.blend + elapsedTime * Constants.LAYER_BLEND_SPEED);
+     * Remove tile if it blended completely out.
+     * @return True if the tile is blending, so that it must be updated again next frame. */
+    private boolean updateBlending(int parent, int idx, int desiredLayer, float elapsedTime) {
+        int node = getChild(parent, idx);
+        boolean blending = false;
+        if (nodes.tile[node] == null) {
+            nodes.blend[node] = 0; // tiles not loaded always get blend 0
+        } else if (nodes.layer[node] >= desiredLayer) {
+            blending = nodes.blend[node] < 1;
+            // degraded quality only ever keeps drawing a coarser parent that fully covers the tile
+            boolean parentCovers = parent != NONE && nodes.blend[parent] == 1;
+            if (parentCovers && nodes.drawnBlend[node] == 0 && !reserveUpload(nodes.tile[node])) {
+                nodes.blend[node] = 0; // not drawn yet, and no uploads left this frame; treat as not loaded
+            } else if (!(parentCovers && holdCoarserLayer && nodes.blend[node] < 1)) {
+                nodes.blend[node] = Math.min(1, nodes.blend[node] + elapsedTime * blendSpeed);
+            }
         } else {
             // don't start blending out until any parent up until the desired layer is loaded
-            for (TileNode parentAtDesiredLayer = node.parent; parentAtDesiredLayer.layer <= desiredLayer && parentAtDesiredLayer.layer != -1; parentAtDesiredLayer = parentAtDesiredLayer.parent) {
-                if (isLoaded(parentAtDesiredLayer.tp)) {
-                    if ((node.blend -= elapsedTime * Constants.LAYER_BLEND_SPEED) <= 0)
-                        parent.children[idx] = null; // remove if completely blended out
+            for (int parentAtDesiredLayer = parent; parentAtDesiredLayer != NONE && nodes.layer[parentAtDesiredLayer] <= desiredLayer; parentAtDesiredLayer = nodes.parent[parentAtDesiredLayer]) {
+                if (nodes.tile[parentAtDesiredLayer] != null) {
+                    blending = true;
+                    if ((nodes.blend[node] -= elapsedTime * blendSpeed) <= 0)
+                        removeChild(parent, idx); // remove if completely blended out
                     break;
                 }
             }
         }
+        return blending;
+    }
+
+    /**
+     * Counts the upload of the given loaded tile against the uploads left for this frame, if it's not
+     * in GL yet.
+     * @return False if it must not be drawn yet, for lack of uploads left.
+     */
+    private boolean reserveUpload(Tile tile) {
+        if (tile.isLoadedToGL())
+            return true;
+        if (uploadsLeft == 0)
+            return false;
+        --uploadsLeft;
+        return true;
+    }
+
+    /** Lists the drawn tiles in tree order (parents before children), depth first without recursion. */
+    private void getDrawOrderFromTree() {
+        nrDrawnTiles = 0;
+        for (int root : rootChildren) {
+            if (root == NONE)
+                continue;
+            addToDrawOrder(root, false, 0);
+            for (int depth = 0; depth >= 0; ) {
+                int node = stackNode[depth];
+                int child = NONE;
+                for (int childCount = TileNodePool.getChildCount(nodes.layer[node]); child == NONE && stackChild[depth] < childCount; )
+                    child = nodes.getChild(node, stackChild[depth]++);
+                if (child != NONE) {
+                    addToDrawOrder(child, stackUnderBlended[depth], depth + 1);
+                    ++depth;
+                } else {
+                    --depth;
+                }
+            }
+        }
+        Arrays.fill(drawnTileArray, nrDrawnTiles, drawnTileArray.length, null); // don't keep evicted tiles reachable
     }
 
-    private void getDrawOrderFromTree(TileNode node) {
-        if (node == rootNode) {
-            nrDrawnTiles = 0;
-        } else if (node.drawnBlend > 0) {
-            drawnTilePosArray[nrDrawnTiles] = node.tp;
-            drawnBlendArray[nrDrawnTiles] = node.drawnBlend;
+    /** Adds the given node to the draw order if drawn, and pushes it at the given depth. */
+    private void addToDrawOrder(int node, boolean underBlended, int depth) {
+        float drawnBlend = nodes.drawnBlend[node];
+        if (drawnBlend > 0) {
+            drawnTilePosArray[nrDrawnTiles] = nodes.tp[node];
+            drawnTileArray[nrDrawnTiles] = nodes.tile[node];
+            drawnBlendArray[nrDrawnTiles] = drawnBlend;
+            drawnUnderBlendedArray[nrDrawnTiles] = underBlended;
             ++nrDrawnTiles;
         }
-        for (TileNode child : node.children)
-            if (child != null)
-                getDrawOrderFromTree(child);
+        stackNode[depth] = node;
+        stackChild[depth] = 0;
+        stackUnderBlended[depth] = underBlended || drawnBlend > 0 && drawnBlend < 1;
     }
 
-    Set<Integer> drawnTilePos = new HashSet<>();
+    /** Tile positions in the draw order, for fast lookup. */
+    private final IntSet drawnTilePos = new IntSet(MAX_DRAWN_TILES);
 
     private boolean drawn(int tp) {
         return drawnTilePos.contains(tp);
     }
 
-    private int[] tilesToLoadSorted = new int[1024]; // 512 not enough for landscape mode
-    private int[] tilesToLoad = new int[1024];
-    int tilesToLoadCount = 0;
+    /**
+     * Wanted tiles per layer, as an inclusive rectangle of tile coordinates (x0, y0, x1, y1), empty
+     * if x0 > x1. Tiles entering a rectangle are queued for loading, tiles leaving it are evicted.
+     */
+    private int[][] wantedRects = new int[Constants.NR_LAYERS][4];
+    private int[][] newWantedRects = new int[Constants.NR_LAYERS][4];
+    {
+        for (int[] rect : wantedRects)
+            setRect(rect, 0, 0, -1, -1);
+    }
+    /** Tiles on screen at the wanted layer, loaded before all others. */
+    private int onScreenLayer;
+    private final int[] onScreenRect = new int[4];
+    /** Cached tiles that are no longer wanted, evicted on the first frame they are not drawn. */
+    private final IntSet evictPending = new IntSet(256);
 
     private int layerOld = -1;
     private int m1x0Old, m1y0Old, m1x1Old, m1y1Old;
 
+    private static void setRect(int[] rect, int x0, int y0, int x1, int y1) {
+        rect[0] = x0; rect[1] = y0; rect[2] = x1; rect[3] = y1;
+    }
+
+    private static boolean inRect(int[] rect, int tx, int ty) {
+        return tx >= rect[0] && tx <= rect[2] && ty >= rect[1] && ty <= rect[3];
+    }
+
+    private boolean isWanted(int tp) {
+        return inRect(wantedRects[Common.getLayer(tp)], Common.getTX(tp), Common.getTY(tp));
+    }
+
     /**
      * Based on camera position and potentially other factors, figure out which tiles are either
-     * needed right away or could be needed within short (e.g. if user pans or zooms).
+     * needed right away or could be needed within short (e.g. if user pans or zooms). The wanted
+     * tiles are a rectangle per layer; only the tiles entering and leaving these rectangles are
+     * handled, so the cost follows how far the camera moved rather than the screen area.
      * TODO: In landscape mode, this frequently ends up wanting to load >512 tiles, is that
      * TODO: really needed?
      */
-    public void refreshForPosition(int[] screenEdges, float scaleFactor, int layer) {
+    public void refreshForPosition(int[] screenEdges, float scaleFactor, int layer, RetireQueue retireQueue) {
         // first figure out if potential set of tiles to load changed from previous frame
         boolean setChanged = true;
 
@@ -310,59 +583,163 @@ public class TileCache {
             m1x0Old = m1x0; m1y0Old = m1y0; m1x1Old = m1x1; m1y1Old = m1y1;
         }
 
-        if (!setChanged)
+        if (!setChanged) {
+            // tiles that finished loading after becoming unwanted, or were still drawn, are evicted once possible
+            if (evictPending.size() > 0)
+                evictUnwanted(retireQueue);
             return;
+        }
 
-        Log.d(ChoreographerActivity.TAG, "Tile set changed: "+m1x0+","+m1y0+","+m1x1+","+m1y1);
+        if (Constants.VERBOSE_LOGGING)
+            Log.d("TileCache", "Tile set changed: "+m1x0+","+m1y0+","+m1x1+","+m1y1);
 
-        tilesToLoadCount = 0;
+        for (int[] rect : newWantedRects)
+            setRect(rect, 0, 0, -1, -1);
 
         // prio 1: tiles on screen
         int tx0, ty0, tx1, ty1;
         if (layer == 0) { tx0 = m1x0; ty0 = m1y0; tx1 = m1x1; ty1 = m1y1; }
         else { tx0 = m1x0>>Constants.TILE_SHIFT_DIFFS[lm1]; ty0 = m1y0>>Constants.TILE_SHIFT_DIFFS[lm1]; tx1 = m1x1>>Constants.TILE_SHIFT_DIFFS[lm1]; ty1 = m1y1>>Constants.TILE_SHIFT_DIFFS[lm1]; }
-
-        for (int ty = ty0; ty <= ty1; ++ty)
-            for (int tx = tx0; tx <= tx1; ++tx)
-                tilesToLoad[tilesToLoadCount++] = Common.getTilePos(layer, tx, ty);
+        onScreenLayer = layer;
+        setRect(onScreenRect, tx0, ty0, tx1, ty1);
 
         // prio 2: regular zoom level, just outside screen
-        int tc = tilesToLoadCount;
-        for (int tx = tx0-1; tx <= tx1+1; ++tx) {
-            tilesToLoad[tilesToLoadCount++] = Common.getTilePos(layer, tx, ty0 - 1);
-            tilesToLoad[tilesToLoadCount++] = Common.getTilePos(layer, tx, ty1 + 1);
-        }
-        for (int ty = ty0; ty <= ty1; ++ty) {
-            tilesToLoad[tilesToLoadCount++] = Common.getTilePos(layer, tx0 - 1, ty);
-            tilesToLoad[tilesToLoadCount++] = Common.getTilePos(layer, tx1 + 1, ty);
-        }
+        setRect(newWantedRects[layer], tx0 - 1, ty0 - 1, tx1 + 1, ty1 + 1);
 
         // prio 3: one level zoomed out (plus surroundings) TODO prio 2, and show if zoomed in not loaded?
         if (layer+1 < Constants.NR_LAYERS) {
-            for (int ty = (ty0>>Constants.TILE_SHIFT_DIFFS[layer])-1; ty <= (ty1>>Constants.TILE_SHIFT_DIFFS[layer])+1; ++ty)
-                for (int tx = (tx0>>Constants.TILE_SHIFT_DIFFS[layer])-1; tx <= (tx1>>Constants.TILE_SHIFT_DIFFS[layer])+1; ++tx)
-                    tilesToLoad[tilesToLoadCount++] = Common.getTilePos(layer + 1, tx, ty);
+            int shift = Constants.TILE_SHIFT_DIFFS[layer];
+            setRect(newWantedRects[layer + 1], (tx0 >> shift) - 1, (ty0 >> shift) - 1, (tx1 >> shift) + 1, (ty1 >> shift) + 1);
         }
 
         // prio 4: one level zoomed in
-        if (layer-1 >= 0) {
-            for (int ty = m1y0; ty <= m1y1; ++ty)
-                for (int tx = m1x0; tx <= m1x1; ++tx)
-                    tilesToLoad[tilesToLoadCount++] = Common.getTilePos(layer - 1, tx, ty);
+        if (layer-1 >= 0)
+            setRect(newWantedRects[layer - 1], m1x0, m1y0, m1x1, m1y1);
+
+        // removed tiles first, so that the loader doesn't spend time on them
+        for (int l = 0; l < Constants.NR_LAYERS; ++l)
+            forEachDifference(wantedRects[l], newWantedRects[l], l, false);
+        forEachDifference(newWantedRects[layer], wantedRects[layer], layer, true);
+        if (layer+1 < Constants.NR_LAYERS)
+            forEachDifference(newWantedRects[layer + 1], wantedRects[layer + 1], layer + 1, true);
+        if (layer-1 >= 0)
+            forEachDifference(newWantedRects[layer - 1], wantedRects[layer - 1], layer - 1, true);
+        loadOnScreenFirst();
+
+        int[][] swap = wantedRects;
+        wantedRects = newWantedRects;
+        newWantedRects = swap;
+
+        evictUnwanted(retireQueue);
+    }
+
+    /**
+     * Calls {@link #tileWanted} or {@link #tileUnwanted} for each tile in rectangle a but not in b,
+     * skipping the overlap row by row.
+     */
+    private void forEachDifference(int[] a, int[] b, int layer, boolean wanted) {
+        for (int ty = a[1]; ty <= a[3]; ++ty) {
+            boolean rowOverlaps = ty >= b[1] && ty <= b[3];
+            for (int tx = a[0]; tx <= a[2]; ++tx) {
+                if (rowOverlaps && tx >= b[0] && tx <= b[2]) {
+                    tx = b[2];
+                    continue;
+                }
+                int tp = Common.getTilePos(layer, tx, ty);
+                if (wanted)
+                    tileWanted(tp);
+                else
+                    tileUnwanted(tp);
+            }
+        }
+    }
+
+    /** Queues the given tile for loading if it's not in the cache; see {@link #loadOnScreenFirst}. */
+    private void tileWanted(int tp) {
+        evictPending.remove(tp);
+        if (!existingTiles.contains(tp) || loadedTiles.get(tp) != null) // may be stale, but then the loader finds it cached
+            return;
+        tileDiskLoader.tilesToLoad.addLast(tp);
+    }
+
+    /**
+     * Moves the queued tiles on screen to the front of the load queue, in row order. Also those queued
+     * before they came on screen, e.g. the tiles of the zoomed in layer when zooming in, or those
+     * just outside the screen when panning.
+     */
+    private void loadOnScreenFirst() {
+        for (int ty = onScreenRect[3]; ty >= onScreenRect[1]; --ty) {
+            for (int tx = onScreenRect[2]; tx >= onScreenRect[0]; --tx) {
+                int tp = Common.getTilePos(onScreenLayer, tx, ty);
+                if (loadedTiles.get(tp) == null && tileDiskLoader.tilesToLoad.remove(tp))
+                    tileDiskLoader.tilesToLoad.addFirst(tp);
+            }
         }
+    }
+
+    /** Stops loading the given tile, and marks it for eviction. */
+    private void tileUnwanted(int tp) {
+        tileDiskLoader.tilesToLoad.remove(tp);
+        if (Common.getLayer(tp) != Constants.TOP_LAYER) // never delete most zoomed out layer
+            evictPending.add(tp);
+    }
 
-//        Log.d("TileCache", "(miss) " + String.format("layer %d: %d,%d-%d,%d, layer %d: %d,%d-%d,%d", layer, tx0, ty0, tx1, ty1, lm1, m1x0, m1y0, m1x1, m1y1));
-//        StringBuilder sb = new StringBuilder();
-//        for (int k : tilesToLoad) sb.append(k+", ");
-//        Log.d("TileCache", "(miss) tiles to load for layer " + layer + ": "+sb);
+    /** Max number of threads loading top layer tiles at startup; each thread needs its own tile loader. */
+    private static final int MAX_PRELOAD_THREADS = 4;
 
-        refresh(layer);
+    /**
+     * Loads all top layer tiles in parallel and merges them into a few static meshes, so that the
+     * whole map can be drawn in a few calls when zoomed out. Tiles are added to the cache when all
+     * are merged, since merging must happen before a tile is loaded to GL.
+     */
+    private void preloadTopLayer() {
+        long startTime = System.currentTimeMillis();
+
+        final List<Integer> topLayerTiles = new ArrayList<>();
+        for (int k = 0; k < existingTiles.size(); ++k) // in tile position order, so that neighbouring tiles merge into contiguous ranges
+            if (Common.getLayer(existingTiles.get(k)) == Constants.TOP_LAYER)
+                topLayerTiles.add(existingTiles.get(k));
+
+        final Tile[] tiles = new Tile[topLayerTiles.size()];
+        final AtomicInteger next = new AtomicInteger();
+        int nrThreads = Math.min(MAX_PRELOAD_THREADS, Runtime.getRuntime().availableProcessors());
+        Thread[] threads = new Thread[nrThreads];
+        for (int t = 0; t < nrThreads; ++t) {
+            final TileLoader loader = t == 0 ? tileLoader : new TileLoader();
+            threads[t] = new Thread(new Runnable() {
+                @Override public void run() {
+                    for (int k; (k = next.getAndIncrement()) < tiles.length; )
+                        tiles[k] = loader.loadTile(topLayerTiles.get(k));
+                }
+            });
+            threads[t].start();
+        }
+        try {
+            for (Thread thread : threads)
+                thread.join();
+        } catch (InterruptedException ex) {
+            throw new RuntimeException("Unexpected interruption", ex);
+        }
+
+        List<MergedMesh> topLayerMeshes = MergedMesh.merge(Arrays.asList(tiles), intIndices);
+        // each tile claimed staging buffers of its own, most now copied into the merged meshes
+        Tile.trimStagingBuffers();
+        for (int k = 0; k < tiles.length; ++k) {
+            cache.put(topLayerTiles.get(k), tiles[k]);
+            loadEvents.add(topLayerTiles.get(k));
+        }
+        topLayerPreloaded = true;
+        notifyTileLoaded();
+
+        Log.i("PerfLog", "Preloaded " + tiles.length + " top layer tiles into " + topLayerMeshes.size() + " merged meshes using " +
+                nrThreads + " threads in " + (System.currentTimeMillis() - startTime) + " ms");
     }
 
     class TileDiskLoader implements Runnable {
-        BlockingQueue<Integer> tilesToLoad = new LinkedBlockingDeque<>();
+        BlockingDeque<Integer> tilesToLoad = new LinkedBlockingDeque<>();
 
         @Override public void run() {
+            preloadTopLayer();
             try {
                 while (true)
                     get(tilesToLoad.take(), false);
@@ -372,30 +749,24 @@ public class TileCache {
         }
     }
     
-    /** Delete unused tiles and start loading new ones into cache (asynchronously). */
-    private void refresh(int layer) {
-        tileDiskLoader.tilesToLoad.clear();
-
-        // delete unused tiles from cache, memory and GPU
-        for (int k = 0; k < tilesToLoadCount; ++k)
-            tilesToLoadSorted[k] = tilesToLoad[k];
-        Arrays.sort(tilesToLoadSorted, 0, tilesToLoadCount);
-        for (Map.Entry<Integer, Tile> entry : cache.entrySet()) {
-            Tile tile = entry.getValue();
-            if (tile.size != Constants.TOP_LAYER && // never delete most zoomed out layer
-                    Arrays.binarySearch(tilesToLoadSorted, 0, tilesToLoadCount, entry.getKey()) < 0 && // not present among tiles to load
-                    !drawn(entry.getKey())) { // don't remove tiles currently being drawn
-                Log.d("TileCache", "Deleting (miss) tile " + entry.getKey() + " (" + Common.getTilePosStr(entry.getKey()) + ")");
-                tile.delete();
-                cache.remove(entry.getKey());
+    /**
+     * Deletes tiles pending eviction from the cache, memory and GPU, except those currently drawn,
+     * which are tried again on the next frame. Resources of deleted tiles are
+     * freed when the retire queue is drained at the end of the frame.
+     */
+    private void evictUnwanted(RetireQueue retireQueue) {
+        for (int k = evictPending.size() - 1; k >= 0; --k) {
+            int tp = evictPending.get(k);
+            if (drawn(tp)) // don't remove tiles currently being drawn
+                continue;
+            evictPending.remove(tp);
+            Tile tile = cache.remove(tp);
+            if (tile != null) {
+                if (Constants.VERBOSE_LOGGING)
+                    Log.d("TileCache", "Deleting (miss) tile " + tp + " (" + Common.getTilePosStr(tp) + ")");
+                retireQueue.retire(tile);
+                loadEvents.add(tp);
             }
         }
-
-        // start loading new tiles
-        for (int k = 0; k < tilesToLoadCount; ++k) {
-            final int tp = tilesToLoad[k];
-            if (existingTiles.contains(tp))
-                tileDiskLoader.tilesToLoad.add(tp);
-        }
     }
 }
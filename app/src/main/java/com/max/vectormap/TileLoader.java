@@ -1,23 +1,20 @@
 package com.max.vectormap;
 
-import android.content.Context;
-import android.os.Environment;
 import android.util.Log;
-import android.util.Pair;
 
-import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
 import java.util.Arrays;
-import java.util.LinkedHashMap;
-import java.util.Map;
 
 /** This class deals with loading tiles from disk. Instances of this class are NOT thread safe. */
 public class TileLoader {
-    private final Context context;
+    /** Directory with the tile files, in subdirectories by the last two digits of ty. */
+    private static volatile File triRoot;
 
     private final static int HASH_SIZE = 16384;
     private final static int BUCKET_BITS = 5;
@@ -30,13 +27,37 @@ public class TileLoader {
     public final static int MAX_VERTEX_COUNT = 65534;
     int[] intVerts = new int[MAX_VERTEX_COUNT];
     int[] newOrder = new int[MAX_VERTEX_COUNT];
-    float[] verts = new float[MAX_VERTEX_COUNT*2];
+    /** Index in newOrder of each vertex as stored in the file, or -1 if not used by any triangle yet. */
+    int[] vertexMap = new int[MAX_VERTEX_COUNT];
 
+    /** Indices as stored in the file, into intVerts; mapped to the new vertex order when sorted into chunks. */
     short[][] tris = new short[Constants.NR_SURFACE_TYPES][0];
-
-    public TileLoader(Context context) {
-        this.context = context;
-    }
+    int[] triIdxCount = new int[Constants.NR_SURFACE_TYPES];
+
+    /** Per surface type header data of the tile being loaded. */
+    int[] triCount = new int[Constants.NR_SURFACE_TYPES];
+    int[] stripCount = new int[Constants.NR_SURFACE_TYPES];
+    int[] stripTriCount = new int[Constants.NR_SURFACE_TYPES];
+    int[] fanCount = new int[Constants.NR_SURFACE_TYPES];
+    int[] fanTriCount = new int[Constants.NR_SURFACE_TYPES];
+    int[] primitiveCountBits = new int[Constants.NR_SURFACE_TYPES];
+
+    /** Vertices can be duplicated when storing the surface type per vertex, up to the limit of short indices. */
+    public final static int MAX_PALETTE_VERTEX_COUNT = 65536;
+    /** First palette vertex of each surface type. */
+    int[] paletteStart = new int[Constants.NR_SURFACE_TYPES];
+    int[] paletteSrc = new int[MAX_PALETTE_VERTEX_COUNT];
+    int[] paletteType = new int[MAX_PALETTE_VERTEX_COUNT];
+    int paletteVertexCount;
+    int[] remapStamp = new int[MAX_VERTEX_COUNT];
+    int[] remapIdx = new int[MAX_VERTEX_COUNT];
+    int stamp = 0;
+
+    int[] chunkPos = new int[0];
+    /** Quantized x0, y0, x1, y1 of the vertices of each chunk; un-quantized into the tile's chunk bounds. */
+    int[] chunkQuantBounds = new int[0];
+
+    private final static int QUANT_BITS = 12;
 
     private static final int hash(int x) {
         x = ((x >>> 16) ^ x) * 0x45d9f3b;
@@ -86,17 +107,172 @@ public class TileLoader {
         }
     }
 
-    private static byte[] assetBuffer = new byte[65536];
+    /** @return Chunk (0 to Tile.NR_CHUNKS-1) of the triangle with the given quantized vertices, based on its centroid. */
+    private static int getChunk(int q0, int q1, int q2) {
+        int qx = (q0 & ((1<<QUANT_BITS)-1)) + (q1 & ((1<<QUANT_BITS)-1)) + (q2 & ((1<<QUANT_BITS)-1));
+        int qy = (q0 >> QUANT_BITS) + (q1 >> QUANT_BITS) + (q2 >> QUANT_BITS);
+        int shift = QUANT_BITS - Tile.CHUNK_GRID_SHIFT;
+        return ((qy / 3) >> shift << Tile.CHUNK_GRID_SHIFT) + ((qx / 3) >> shift);
+    }
+
+    /** @return Chunk of the triangle starting at the given index of the given file indices. */
+    private int getChunk(short[] tris, int idx) {
+        return getChunk(intVerts[tris[idx]&0xffff], intVerts[tris[idx+1]&0xffff], intVerts[tris[idx+2]&0xffff]);
+    }
 
-    static class CustomBufferInputStream extends BufferedInputStream {
-        public CustomBufferInputStream(InputStream in, byte[] buffer) {
-            super(in, 1); // allocate the minimum buffer possible (somewhat of a hack)
+    /** @return Utm coordinate relative to GLOBAL_OFS of the given quantized coordinate in a tile at the given offset. */
+    private static float unquantize(int q, int size, int ofs, int globalOfs) {
+        // TODO could be solved by shifting and adding to speed things up
+        int p = (int)((double)q / ((1<<QUANT_BITS)-1) * size + 0.5);
+        return p + ofs - globalOfs;
+    }
+
+    /**
+     * Gives each surface type its own copy of any vertices it shares with other surface types, and
+     * stores the surface type per vertex, so that the whole tile can be drawn with one draw call.
+     * The source vertex and type of each new vertex are written to paletteSrc / paletteType; the
+     * indices are mapped when sorted into chunks. Must be called after vertices are reordered.
+     * @return False if the tile would need more vertices than can be indexed with shorts, in which
+     * case nothing is changed and the tile must be drawn one surface type at a time.
+     */
+    private boolean encodeSurfaceTypePerVertex(int vertexCount) {
+        paletteVertexCount = 0;
+        for (int t = 0; t < Constants.NR_SURFACE_TYPES; ++t) {
+            if (triIdxCount[t] == 0)
+                continue;
+            paletteStart[t] = paletteVertexCount;
+
+            // stamp identifies the current tile and surface type, to avoid clearing remapStamp
+            ++stamp;
+            for (int n = 0; n < triIdxCount[t]; ++n) {
+                int v = vertexMap[tris[t][n]&0xffff];
+                if (remapStamp[v] != stamp) {
+                    if (paletteVertexCount == MAX_PALETTE_VERTEX_COUNT) {
+                        Log.d("VertexCount", "Too many vertices for one draw call per tile, " + vertexCount + " -> >" + paletteVertexCount);
+                        return false;
+                    }
+                    remapStamp[v] = stamp;
+                    paletteSrc[paletteVertexCount] = v;
+                    paletteType[paletteVertexCount++] = t;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes the index lists of all surface types into a claimed staging buffer, mapped to the new
+     * vertex order (and palette vertices if palette encoded), ordered by group (one group per surface
+     * type, or a single group if palette encoded) and then by spatial chunk, keeping the relative order
+     * of triangles. Computes the start index and vertex bounding box (x0, y0, x1, y1) of each chunk of
+     * each group, for a tile of the given size and offset.
+     * @return Staging buffer claimed for the indices; the total number of indices is the last chunk start.
+     */
+    private Tile.ClaimableBuffer<ShortBuffer> sortIntoChunks(boolean paletteEncoded, int[] chunkStart, float[] chunkBounds,
+                                                             int size, int ofsx, int ofsy) {
+        int group = 0;
+        for (int t = 0; t < Constants.NR_SURFACE_TYPES; ++t) {
+            if (triIdxCount[t] == 0)
+                continue;
+            for (int idx = 0; idx < triIdxCount[t]; idx += 3)
+                chunkStart[group * Tile.NR_CHUNKS + getChunk(tris[t], idx) + 1] += 3;
+            if (!paletteEncoded)
+                ++group;
+        }
+        for (int c = 0; c < chunkStart.length - 1; ++c)
+            chunkStart[c + 1] += chunkStart[c];
+        Tile.ClaimableBuffer<ShortBuffer> indexBuffer = Tile.getFreeIndexBuffer(chunkStart[chunkStart.length - 1]);
+        ShortBuffer tileTris = indexBuffer.buffer;
+
+        int nrChunks = chunkStart.length - 1;
+        if (chunkQuantBounds.length < nrChunks * 4)
+            chunkQuantBounds = new int[nrChunks * 4];
+        for (int c = 0; c < nrChunks; ++c) {
+            chunkQuantBounds[c*4] = chunkQuantBounds[c*4+1] = Integer.MAX_VALUE;
+            chunkQuantBounds[c*4+2] = chunkQuantBounds[c*4+3] = Integer.MIN_VALUE;
+        }
+
+        if (chunkPos.length < chunkStart.length)
+            chunkPos = new int[chunkStart.length];
+        System.arraycopy(chunkStart, 0, chunkPos, 0, chunkStart.length);
+        group = 0;
+        for (int t = 0; t < Constants.NR_SURFACE_TYPES; ++t) {
+            if (triIdxCount[t] == 0)
+                continue;
+            // palette vertices are numbered in order of first use, as in encodeSurfaceTypePerVertex
+            int paletteVertex = paletteStart[t];
+            ++stamp;
+            short[] typeTris = tris[t];
+            for (int idx = 0; idx < triIdxCount[t]; idx += 3) {
+                int v0 = vertexMap[typeTris[idx]&0xffff], v1 = vertexMap[typeTris[idx+1]&0xffff], v2 = vertexMap[typeTris[idx+2]&0xffff];
+                int c = group * Tile.NR_CHUNKS + getChunk(newOrder[v0], newOrder[v1], newOrder[v2]);
+                for (int k = 0; k < 3; ++k) {
+                    int v = k == 0 ? v0 : k == 1 ? v1 : v2;
+                    int qx = newOrder[v] & ((1<<QUANT_BITS)-1), qy = newOrder[v] >> QUANT_BITS;
+                    chunkQuantBounds[c*4] = Math.min(chunkQuantBounds[c*4], qx);
+                    chunkQuantBounds[c*4+1] = Math.min(chunkQuantBounds[c*4+1], qy);
+                    chunkQuantBounds[c*4+2] = Math.max(chunkQuantBounds[c*4+2], qx);
+                    chunkQuantBounds[c*4+3] = Math.max(chunkQuantBounds[c*4+3], qy);
+                    if (paletteEncoded) {
+                        if (remapStamp[v] != stamp) {
+                            remapStamp[v] = stamp;
+                            remapIdx[v] = paletteVertex++;
+                        }
+                        v = remapIdx[v];
+                    }
+                    tileTris.put(chunkPos[c]++, (short)v);
+                }
+            }
+            if (!paletteEncoded)
+                ++group;
+        }
+
+        // un-quantizing is monotonic, so the bounds of the quantized vertices give those of the vertices
+        for (int c = 0; c < nrChunks; ++c) {
+            if (chunkQuantBounds[c*4] > chunkQuantBounds[c*4+2]) {
+                chunkBounds[c*4] = chunkBounds[c*4+1] = Float.POSITIVE_INFINITY;
+                chunkBounds[c*4+2] = chunkBounds[c*4+3] = Float.NEGATIVE_INFINITY;
+                continue;
+            }
+            chunkBounds[c*4] = unquantize(chunkQuantBounds[c*4], size, ofsx, Constants.GLOBAL_OFS_X);
+            chunkBounds[c*4+1] = unquantize(chunkQuantBounds[c*4+1], size, ofsy, Constants.GLOBAL_OFS_Y);
+            chunkBounds[c*4+2] = unquantize(chunkQuantBounds[c*4+2], size, ofsx, Constants.GLOBAL_OFS_X);
+            chunkBounds[c*4+3] = unquantize(chunkQuantBounds[c*4+3], size, ofsy, Constants.GLOBAL_OFS_Y);
+        }
+
+        return indexBuffer;
+    }
+
+    /** Contents of the tile file being loaded, read with a single read; grown as needed. */
+    private byte[] fileBuffer = new byte[65536];
+
+    static class ReusableByteArrayInputStream extends ByteArrayInputStream {
+        public ReusableByteArrayInputStream(byte[] buffer) {
+            super(buffer, 0, 0);
+        }
+
+        /** Reads the first length bytes of the given buffer from now on. */
+        void setInput(byte[] buffer, int length) {
             buf = buffer;
+            pos = mark = 0;
+            count = length;
         }
     }
 
+    /** Readers of the tile being loaded, kept across tiles so that loading a tile doesn't allocate them again. */
+    private final ReusableByteArrayInputStream fileInput = new ReusableByteArrayInputStream(fileBuffer);
+    private final DataInputStream dis = new DataInputStream(fileInput);
+    private final BitReader br = new BitReader(dis);
+    /** Path of the tile file being loaded. */
+    private final StringBuilder tilePath = new StringBuilder(256);
+
+    /** Must be called once before any tile cache is created; on Android, with the "tris" directory on external storage. */
+    public static void setTriRoot(File root) {
+        triRoot = root;
+    }
+
     public static File getTriRoot() {
-        return new File(Environment.getExternalStorageDirectory().getAbsolutePath(), "tris");
+        return triRoot;
     }
 
     /** Never returns null. */
@@ -106,30 +282,38 @@ public class TileLoader {
         int size = Constants.TILE_SIZES[layer];
 
         int level0 = ty%10, level1 = (ty/10)%10;
-        String tileName = "tri_" + size + "_" + tx + "_" + ty + ".tri";
-        File tileFile = new File(getTriRoot(), level0 + File.separator + level1 + File.separator + tileName);
+        tilePath.setLength(0);
+        tilePath.append(getTriRoot().getPath()).append(File.separatorChar).append(level0).append(File.separatorChar).append(level1)
+                .append(File.separatorChar).append("tri_").append(size).append('_').append(tx).append('_').append(ty).append(".tri");
+
+        try {
+            // the whole file at once into the reused buffer, rather than through a buffered stream per tile
+            try (RandomAccessFile file = new RandomAccessFile(tilePath.toString(), "r")) {
+                int length = (int) file.length();
+                if (fileBuffer.length < length) {
+                    Log.d("Memory", "Reallocate tile file buffer: " + fileBuffer.length/1024 + " KB -> " + length/1024 + " KB");
+                    fileBuffer = new byte[length];
+                }
+                file.readFully(fileBuffer, 0, length);
+                fileInput.setInput(fileBuffer, length);
+            }
+            br.reset();
 
-        try (DataInputStream dis = new DataInputStream(new CustomBufferInputStream(new FileInputStream(tileFile), assetBuffer))) {
             // per tile header data
             int vertexCount = dis.readInt();
             if (vertexCount > MAX_VERTEX_COUNT)
-                throw new IllegalStateException("Max vertex count is " + MAX_VERTEX_COUNT + ", got " + vertexCount + " for " + tileName);
+                throw new IllegalStateException("Max vertex count is " + MAX_VERTEX_COUNT + ", got " + vertexCount + " for " + tilePath);
 
             tx = dis.readInt();
             ty = dis.readInt();
             size = dis.readInt();
 
             // per surface type header data
-            int[] triCount = new int[Constants.NR_SURFACE_TYPES];
-            int[] stripCount = new int[Constants.NR_SURFACE_TYPES];
-            int[] stripTriCount = new int[Constants.NR_SURFACE_TYPES];
-            int[] fanCount = new int[Constants.NR_SURFACE_TYPES];
-            int[] fanTriCount = new int[Constants.NR_SURFACE_TYPES];
-            int[] primitiveCountBits = new int[Constants.NR_SURFACE_TYPES];
             for (int t = 0; t < Constants.NR_SURFACE_TYPES; ++t) {
                 triCount[t] = dis.readInt();
                 stripCount[t] = dis.readInt();
                 fanCount[t] = dis.readInt();
+                stripTriCount[t] = fanTriCount[t] = primitiveCountBits[t] = 0;
                 if (triCount[t] == 0 && stripCount[t] == 0 && fanCount[t] == 0)
                     continue;
 
@@ -138,27 +322,22 @@ public class TileLoader {
                 primitiveCountBits[t] = dis.readInt();
             }
 
-            BitReader br = new BitReader(dis);
-
             readBinaryPackedVertices(dis, br, vertexCount);
 
-            Map<Integer, Pair<short[], Integer>> trisByType = new LinkedHashMap<>();
-
             // per surface type index data
             for (int t = 0; t < Constants.NR_SURFACE_TYPES; ++t) {
+                triIdxCount[t] = 0;
                 if (triCount[t] == 0 && stripCount[t] == 0 && fanCount[t] == 0)
                     continue;
-                int triIdxCount = (triCount[t] + stripTriCount[t] + fanTriCount[t]) * 3;
-                if (tris[t].length < triIdxCount) {
-                    Log.d("Memory", "Reallocate tri index " + t + ": " + tris[t].length*2/1024 + " KB -> " + triIdxCount*2/1024 + " KB");
-                    tris[t] = new short[triIdxCount];
+                triIdxCount[t] = (triCount[t] + stripTriCount[t] + fanTriCount[t]) * 3;
+                if (tris[t].length < triIdxCount[t]) {
+                    Log.d("Memory", "Reallocate tri index " + t + ": " + tris[t].length*2/1024 + " KB -> " + triIdxCount[t]*2/1024 + " KB");
+                    tris[t] = new short[triIdxCount[t]];
                 }
                 int idxBits = Common.log2(vertexCount);
                 readBinaryPackedTriIndices(br, idxBits, triCount[t], tris[t]);
                 readBinaryPackedStripIndices(br, idxBits, stripCount[t], tris[t], triCount[t]*3, primitiveCountBits[t]);
                 readBinaryPackedFanIndices(br, idxBits, fanCount[t], tris[t], (triCount[t] + stripTriCount[t])*3, primitiveCountBits[t]);
-
-                trisByType.put(t, Pair.create(tris[t], triIdxCount));
             }
 
             // delta-decode vertices
@@ -166,15 +345,20 @@ public class TileLoader {
             for (int k = 0; k < vertexCount; ++k)
                 prevCoord = intVerts[k] += prevCoord + 1;
 
-            // reorder vertices by draw order and reindex index lists
+            // reorder vertices by draw order, into vertexMap; the index lists are mapped when sorted into chunks
             // using a custom hash map implementation (3 times faster than default java version)
             int newVertexCount = 0;
             Arrays.fill(bucketLen, (byte) 0);
-            Log.d("VertexCount", "" + vertexCount);
+            Arrays.fill(vertexMap, 0, vertexCount, -1);
+            if (Constants.VERBOSE_LOGGING)
+                Log.d("VertexCount", "" + vertexCount);
 
-            for (Map.Entry<Integer, Pair<short[], Integer>> tris : trisByType.entrySet()) {
-                for (int n = 0; n < tris.getValue().second; ++n) {
-                    int vi = intVerts[tris.getValue().first[n]&0xffff];
+            for (int t = 0; t < Constants.NR_SURFACE_TYPES; ++t) {
+                for (int n = 0; n < triIdxCount[t]; ++n) {
+                    int v = tris[t][n]&0xffff;
+                    if (vertexMap[v] != -1)
+                        continue;
+                    int vi = intVerts[v];
                     int hash = hash(vi) & (HASH_SIZE-1);
                     int bucket = hash << BUCKET_BITS;
                     int found = -1;
@@ -187,28 +371,47 @@ public class TileLoader {
                     }
                     if (found == -1) {
                         newOrder[newVertexCount] = vi;
-                        found = hashMap[bucket + bucketLen[hash]] = (short)newVertexCount++;
+                        hashMap[bucket + bucketLen[hash]] = (short)newVertexCount;
+                        found = newVertexCount++;
                         if (++bucketLen[hash] >= BUCKET_SIZE)
                             throw new IllegalStateException("Length " + bucketLen[hash] + " for vertex count " + newVertexCount + "/" + vertexCount);
                     }
-                    tris.getValue().first[n] = (short)found; // reindex
+                    vertexMap[v] = found;
                 }
             }
 
-            // un-quantize vertices
+            boolean paletteEncoded = encodeSurfaceTypePerVertex(vertexCount);
+            int tileVertexCount = paletteEncoded ? paletteVertexCount : vertexCount;
+            // un-quantized straight into the staging buffer the tile uploads from
             int ofsx = tx*size, ofsy = ty*size;
-            int QUANT_BITS = 12;
-            for (int k = 0; k < vertexCount; ++k) {
-                // TODO could be solved by shifting and adding to speed things up
-                double qpx = newOrder[k] & ((1<<QUANT_BITS)-1);
-                double qpy = newOrder[k] >> QUANT_BITS;
-                int px = (int)(qpx / ((1<<QUANT_BITS)-1) * size + 0.5);
-                int py = (int)(qpy / ((1<<QUANT_BITS)-1) * size + 0.5);
-                verts[k*2] = px + ofsx - Constants.GLOBAL_OFS_X;
-                verts[k*2+1] = py + ofsy - Constants.GLOBAL_OFS_Y;
+            Tile.ClaimableBuffer<FloatBuffer> vertexBuffer = Tile.getFreeVertexBuffer(tileVertexCount * Tile.FLOATS_PER_VERTEX);
+            FloatBuffer tileVerts = vertexBuffer.buffer;
+            for (int k = 0; k < tileVertexCount; ++k) {
+                int q = newOrder[paletteEncoded ? paletteSrc[k] : k];
+                tileVerts.put(k*Tile.FLOATS_PER_VERTEX, unquantize(q & ((1<<QUANT_BITS)-1), size, ofsx, Constants.GLOBAL_OFS_X));
+                tileVerts.put(k*Tile.FLOATS_PER_VERTEX+1, unquantize(q >> QUANT_BITS, size, ofsy, Constants.GLOBAL_OFS_Y));
+                tileVerts.put(k*Tile.FLOATS_PER_VERTEX+2, paletteEncoded ? paletteType[k] : 0);
+            }
+
+            // concatenate all index lists into one, split into spatial chunks so that parts of the
+            // tile outside the screen can be culled
+            int nrTypes = 0;
+            for (int t = 0; t < Constants.NR_SURFACE_TYPES; ++t)
+                if (triIdxCount[t] > 0)
+                    ++nrTypes;
+            int[] groupTypes = new int[paletteEncoded ? 1 : nrTypes];
+            if (paletteEncoded) {
+                groupTypes[0] = -1;
+            } else {
+                for (int t = 0, g = 0; t < Constants.NR_SURFACE_TYPES; ++t)
+                    if (triIdxCount[t] > 0)
+                        groupTypes[g++] = t;
             }
+            int[] chunkStart = new int[groupTypes.length * Tile.NR_CHUNKS + 1];
+            float[] chunkBounds = new float[groupTypes.length * Tile.NR_CHUNKS * 4];
+            Tile.ClaimableBuffer<ShortBuffer> indexBuffer = sortIntoChunks(paletteEncoded, chunkStart, chunkBounds, size, ofsx, ofsy);
 
-            return new Tile(layer, tx, ty, verts, vertexCount, trisByType);
+            return new Tile(layer, tx, ty, vertexBuffer, tileVertexCount, indexBuffer, chunkStart[chunkStart.length - 1], groupTypes, chunkStart, chunkBounds);
         } catch (IOException ioe) {
             throw new RuntimeException("Error loading triangles", ioe);
         }
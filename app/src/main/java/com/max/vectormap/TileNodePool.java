@@ -0,0 +1,159 @@
+package com.max.vectormap;
+
+import android.util.Log;
+
+/**
+ * Nodes of the tile tree, stored as parallel arrays indexed by node, with freed slots reused for
+ * new nodes. Tiles panning into and out of view thus don't produce garbage, and traversal reads
+ * arrays instead of chasing object pointers. Each node has a fixed block of {@link #MAX_CHILDREN}
+ * child slots, indexed the same way as the tile's children. The arrays only grow (and allocate)
+ * when more nodes are needed at once than ever before.
+ * <p>
+ * Not thread safe; used by the thread updating the tile tree.
+ */
+class TileNodePool {
+    /** Index of no node, for empty child slots and the parent of top layer nodes. */
+    static final int NONE = -1;
+    static final int MAX_CHILDREN;
+    static {
+        int maxChildren = 0;
+        for (int layer = 1; layer < Constants.NR_LAYERS; ++layer)
+            maxChildren = Math.max(maxChildren, getChildCount(layer));
+        MAX_CHILDREN = maxChildren;
+    }
+
+    int[] layer, tx, ty, tp, parent;
+    float[] blend;
+    /** Blend as actually drawn. Differs from blend since parents whose children are all drawn get a draw blend of 0 although their actual blend might still be 1. */
+    float[] drawnBlend;
+    boolean[] fullyOverdrawn;
+    /** The node's tile if it's in the cache, otherwise null; updated from load and evict events. */
+    Tile[] tile;
+    /** True if this node or any descendant is still changing, so that it must be visited next frame. */
+    boolean[] dirty;
+    /** True if the whole subtree must be visited next frame, since this tile was loaded or evicted. */
+    boolean[] dirtySubtree;
+    /** MAX_CHILDREN slots per node, NONE where there is no child. */
+    int[] children;
+
+    private int capacity;
+    /** Stack of free node indices. */
+    private int[] free;
+    private int freeCount;
+    /** Nodes still to free in freeSubtree. */
+    private int[] freeStack;
+
+    TileNodePool(int capacity) {
+        allocate(capacity);
+        freeCount = 0;
+        for (int node = capacity - 1; node >= 0; --node)
+            free[freeCount++] = node;
+    }
+
+    /** @return Number of children of a tile in the given layer. */
+    static int getChildCount(int layer) {
+        return layer <= 0 ? 0 : 1 << 2 * Constants.TILE_SHIFT_DIFFS[layer - 1];
+    }
+
+    /** @return Number of nodes in use. */
+    int size() {
+        return capacity - freeCount;
+    }
+
+    int getChild(int node, int idx) {
+        return children[node * MAX_CHILDREN + idx];
+    }
+
+    void setChild(int node, int idx, int child) {
+        children[node * MAX_CHILDREN + idx] = child;
+    }
+
+    /** @return A new node without children, marked dirty. */
+    int alloc(int layer, int tx, int ty, float blend, int parent) {
+        if (freeCount == 0)
+            grow();
+        int node = free[--freeCount];
+        this.layer[node] = layer;
+        this.tx[node] = tx;
+        this.ty[node] = ty;
+        this.tp[node] = Common.getTilePos(layer, tx, ty);
+        this.parent[node] = parent;
+        this.blend[node] = blend;
+        drawnBlend[node] = 0;
+        fullyOverdrawn[node] = dirtySubtree[node] = false;
+        tile[node] = null;
+        dirty[node] = true;
+        for (int k = node * MAX_CHILDREN; k < (node + 1) * MAX_CHILDREN; ++k)
+            children[k] = NONE;
+        return node;
+    }
+
+    /** Frees the given node and all its descendants. The caller must clear its slot in the parent. */
+    void freeSubtree(int node) {
+        int top = 0;
+        freeStack[top++] = node;
+        while (top > 0) {
+            int n = freeStack[--top];
+            for (int k = n * MAX_CHILDREN; k < (n + 1) * MAX_CHILDREN; ++k)
+                if (children[k] != NONE)
+                    freeStack[top++] = children[k];
+            tile[n] = null; // don't keep evicted tiles reachable
+            free[freeCount++] = n;
+        }
+    }
+
+    private void grow() {
+        int oldCapacity = capacity;
+        allocate(capacity * 2);
+        for (int node = capacity - 1; node >= oldCapacity; --node)
+            free[freeCount++] = node;
+        Log.i("PerfLog", "Tile tree grown to " + capacity + " nodes");
+    }
+
+    private void allocate(int newCapacity) {
+        layer = copyOf(layer, newCapacity);
+        tx = copyOf(tx, newCapacity);
+        ty = copyOf(ty, newCapacity);
+        tp = copyOf(tp, newCapacity);
+        parent = copyOf(parent, newCapacity);
+        blend = copyOf(blend, newCapacity);
+        drawnBlend = copyOf(drawnBlend, newCapacity);
+        fullyOverdrawn = copyOf(fullyOverdrawn, newCapacity);
+        tile = copyOf(tile, newCapacity);
+        dirty = copyOf(dirty, newCapacity);
+        dirtySubtree = copyOf(dirtySubtree, newCapacity);
+        children = copyOf(children, newCapacity * MAX_CHILDREN);
+        free = copyOf(free, newCapacity);
+        freeStack = new int[newCapacity];
+        capacity = newCapacity;
+    }
+
+    // like Arrays.copyOf, but also for the initial allocation
+    private static int[] copyOf(int[] a, int length) {
+        int[] b = new int[length];
+        if (a != null)
+            System.arraycopy(a, 0, b, 0, a.length);
+        return b;
+    }
+
+    private static float[] copyOf(float[] a, int length) {
+        float[] b = new float[length];
+        if (a != null)
+            System.arraycopy(a, 0, b, 0, a.length);
+        return b;
+    }
+
+    private static Tile[] copyOf(Tile[] a, int length) {
+        Tile[] b = new Tile[length];
+        if (a != null)
+            System.arraycopy(a, 0, b, 0, a.length);
+        return b;
+    }
+
+    private static boolean[] copyOf(boolean[] a, int length) {
+        boolean[] b = new boolean[length];
+        if (a != null)
+            System.arraycopy(a, 0, b, 0, a.length);
+        return b;
+    }
+}
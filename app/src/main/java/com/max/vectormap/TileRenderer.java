@@ -0,0 +1,147 @@
+package com.max.vectormap;
+
+/**
+ * Submits the tiles of a {@link RenderQueue} to GL: uploads the per tile uniforms, switches to
+ * blending or the dithered program at the blended pass, sets per layer depth values, and batches
+ * consecutive tiles of the same {@link MergedMesh} into as few draw calls as possible. Shared by
+ * the render thread and the desktop benchmark and tests, so that they draw frames the same way.
+ */
+public class TileRenderer {
+    /** Draws a tile some other way than its triangles, e.g. as a cached impostor texture. */
+    public interface TileSubstitute {
+        /**
+         * Draws a substitute for the tile at the given position, if there is one. Must call
+         * {@link #flushMergedTiles} before drawing, so that tiles queued before it stay below it.
+         * @return True if the substitute was drawn instead of the tile.
+         */
+        boolean draw(TileRenderer renderer, int tilePos, float depth, float blend);
+    }
+
+    private final GLState glState;
+    /** Per tile blend and depth of the frame's render queue; only with GLES3, null otherwise. */
+    private final TileUniforms tileUniforms;
+    /** TileUniforms slot of each render queue entry. */
+    private final int[] tileSlots;
+
+    /** Projection and view of the frame's camera, see {@link #setCamera}. */
+    public final float[] mvpMatrix = new float[16];
+    /** RGBA color for each surface type. */
+    private float[] palette = Common.palette(Constants.COLORS_NEW);
+    /** Program last made current with {@link #useTileProgram}. */
+    private ShaderProgram program;
+
+    /** Merged mesh with tiles added but not yet drawn, and the blend and TileUniforms slot to draw them with. */
+    private MergedMesh pendingMesh;
+    private float pendingBlend;
+    private int pendingSlot;
+
+    /**
+     * @param tileUniforms Uniform buffer for per tile data, attached to all tile programs; null with GLES2.
+     * @param capacity Max number of tiles per frame.
+     */
+    public TileRenderer(GLState glState, TileUniforms tileUniforms, int capacity) {
+        this.glState = glState;
+        this.tileUniforms = tileUniforms;
+        tileSlots = new int[capacity];
+    }
+
+    public void setPalette(float[] palette) {
+        this.palette = palette;
+    }
+
+    /** Sets the MVP matrix for the given camera; applied by the next {@link #useTileProgram}. */
+    public void setCamera(float centerUtmX, float centerUtmY, float scaleFactor, float screenRatio) {
+        CameraState.getMVPMatrix(mvpMatrix, centerUtmX, centerUtmY, scaleFactor, screenRatio);
+    }
+
+    /** Makes the given tile program current, with blending disabled and the current MVP matrix and palette. */
+    public void useTileProgram(ShaderProgram program) {
+        this.program = program;
+        glState.useProgram(program);
+        glState.setBlend(false);
+        glState.gl.glUniformMatrix4fv(program.getUniformLocation("uMVPMatrix"), 1, false, mvpMatrix, 0);
+        glState.gl.glUniform4fv(program.getUniformLocation("uPalette"), Constants.NR_SURFACE_TYPES, palette, 0);
+    }
+
+    /** Depth value for tiles of the given layer when drawing with depth testing; finer layers are closer. */
+    public static float getLayerDepth(int layer) {
+        return (layer + 0.5f) / Constants.NR_LAYERS * 2 - 1;
+    }
+
+    /** Draws the tiles added to the pending merged mesh, if any. */
+    public void flushMergedTiles() {
+        if (pendingMesh != null) {
+            glState.useProgram(program);
+            if (tileUniforms != null)
+                tileUniforms.bind(pendingSlot);
+            pendingMesh.flush(glState, program, pendingBlend);
+            pendingMesh = null;
+        }
+    }
+
+    /**
+     * Draws the given render queue with the program last made current with {@link #useTileProgram}.
+     * @param screenEdges x0, y0, x1, y1 (utm coordinates) the render queue was built for.
+     * @param ditherProgram Program to draw the blended tiles with, opaque but dithered; null to alpha
+     *                      blend them with the current program instead.
+     * @param depthRejection True if the queue was built front to back, to draw it with per layer depth
+     *                       values and depth testing.
+     * @param substitute Draws tiles some other way, except dithered ones; may be null.
+     */
+    public void draw(RenderQueue renderQueue, int[] screenEdges, ShaderProgram ditherProgram, boolean depthRejection,
+                     TileSubstitute substitute) {
+        Tile.trisDrawn = 0;
+        glState.setDepthTest(depthRejection);
+        if (tileUniforms != null) {
+            // upload blend and depth of all tiles at once; drawing a tile then only binds its range
+            tileUniforms.clear();
+            for (int k = 0; k < renderQueue.size; ++k) {
+                int tileLayer = Common.getLayer(renderQueue.tilePos[k]);
+                tileSlots[k] = tileUniforms.add(renderQueue.blend[k], depthRejection ? getLayerDepth(tileLayer) : 0);
+            }
+            tileUniforms.upload();
+        }
+        int depthLayer = -1;
+        for (int k = 0; k < renderQueue.size; ++k) {
+            if (k == renderQueue.firstBlended) {
+                flushMergedTiles();
+                if (ditherProgram != null) {
+                    // blended tiles are drawn opaque but dithered; uniforms are per program so set them again
+                    useTileProgram(ditherProgram);
+                    depthLayer = -1;
+                } else {
+                    glState.setBlend(true);
+                }
+            }
+            int tileLayer = Common.getLayer(renderQueue.tilePos[k]);
+            if (depthRejection && tileLayer != depthLayer && tileUniforms == null) {
+                flushMergedTiles();
+                glState.useProgram(program); // a substitute may have been drawn with another program
+                glState.gl.glUniform1f(program.getUniformLocation("uDepth"), getLayerDepth(depthLayer = tileLayer));
+            }
+            Tile tile = renderQueue.tiles[k];
+            float blend = renderQueue.blend[k];
+            if (substitute != null && !(ditherProgram != null && k >= renderQueue.firstBlended) &&
+                    substitute.draw(this, renderQueue.tilePos[k], depthRejection ? getLayerDepth(tileLayer) : 0, blend))
+                continue;
+            if (tile.mesh != null) {
+                // collect consecutive tiles of the same merged mesh, to draw them with as few calls as possible
+                if (tile.mesh != pendingMesh || blend != pendingBlend)
+                    flushMergedTiles();
+                if (pendingMesh == null)
+                    pendingSlot = tileSlots[k];
+                pendingMesh = tile.mesh;
+                pendingBlend = blend;
+                tile.mesh.add(tile, screenEdges);
+            } else {
+                flushMergedTiles();
+                glState.useProgram(program);
+                if (tileUniforms != null)
+                    tileUniforms.bind(tileSlots[k]);
+                tile.draw(glState, program, blend, screenEdges);
+            }
+        }
+        flushMergedTiles();
+        glState.setDepthTest(false);
+    }
+}
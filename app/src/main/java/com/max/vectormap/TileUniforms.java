@@ -0,0 +1,83 @@
+package com.max.vectormap;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * Uniform buffer with the per tile data (the TileData block of the GLES3 tile shaders) of all
+ * tiles drawn in a frame. The data of all tiles is uploaded with one call per frame, after which
+ * drawing a tile only rebinds a range of the buffer instead of setting uniforms.
+ * <p>
+ * Slot 0 always holds an opaque tile at depth 0, for drawing outside the frame's render queue.
+ * Only available with a GLES3 context. Must only be used from the GL thread.
+ */
+public class TileUniforms {
+    /** Uniform buffer binding point of the TileData block. */
+    private static final int BINDING = 0;
+    /** std140 size of TileData: blend and depth, padded to a vec4. */
+    private static final int DATA_BYTES = 4 * Constants.BYTES_IN_FLOAT;
+
+    private final GL gl;
+    private final int[] ubo = new int[1];
+    /** Bytes between slots; ranges bound to a uniform block must be aligned to the GL's offset alignment. */
+    private final int slotBytes;
+    private final FloatBuffer data;
+    private final int capacity;
+    private int count;
+
+    /** @param capacity Max number of tiles per frame. */
+    public TileUniforms(GL gl, int capacity) {
+        this.gl = gl;
+        this.capacity = capacity + 1;
+
+        int[] alignment = new int[1];
+        gl.glGetIntegerv(GLES30.GL_UNIFORM_BUFFER_OFFSET_ALIGNMENT, alignment, 0);
+        slotBytes = (DATA_BYTES + alignment[0] - 1) / alignment[0] * alignment[0];
+        data = ByteBuffer.allocateDirect(this.capacity * slotBytes).order(ByteOrder.nativeOrder()).asFloatBuffer();
+
+        gl.glGenBuffers(1, ubo, 0);
+        gl.glBindBuffer(GLES30.GL_UNIFORM_BUFFER, ubo[0]);
+        gl.glBufferData(GLES30.GL_UNIFORM_BUFFER, data.capacity() * Constants.BYTES_IN_FLOAT, null, GLES20.GL_DYNAMIC_DRAW);
+        clear();
+        upload();
+    }
+
+    /** Connects the TileData block of the given program to this buffer. Call once after linking. */
+    public static void attach(GL gl, ShaderProgram program) {
+        int blockIndex = gl.glGetUniformBlockIndex(program.handle, "TileData");
+        if (blockIndex != GLES30.GL_INVALID_INDEX)
+            gl.glUniformBlockBinding(program.handle, blockIndex, BINDING);
+    }
+
+    /** Removes all slots except slot 0. */
+    public void clear() {
+        count = 0;
+        add(1, 0);
+    }
+
+    /** Adds the data of one tile. @return Slot to pass to {@link #bind}. */
+    public int add(float blend, float depth) {
+        if (count == capacity)
+            throw new IllegalStateException("Max " + (capacity - 1) + " tiles per frame");
+        int position = count * slotBytes / Constants.BYTES_IN_FLOAT;
+        data.put(position, blend);
+        data.put(position + 1, depth);
+        return count++;
+    }
+
+    /** Uploads all slots added since the last clear. */
+    public void upload() {
+        data.position(0);
+        gl.glBindBuffer(GLES30.GL_UNIFORM_BUFFER, ubo[0]);
+        gl.glBufferSubData(GLES30.GL_UNIFORM_BUFFER, 0, count * slotBytes, data);
+    }
+
+    /** Makes the given slot the TileData of the following draw calls. */
+    public void bind(int slot) {
+        gl.glBindBufferRange(GLES30.GL_UNIFORM_BUFFER, BINDING, ubo[0], slot * slotBytes, DATA_BYTES);
+    }
+}
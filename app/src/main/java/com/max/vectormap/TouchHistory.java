@@ -0,0 +1,79 @@
+package com.max.vectormap;
+
+/**
+ * Recent camera positions caused by touch input, with the times of their touch events, to estimate
+ * how fast the camera moves. Fed with every historical sample of a MotionEvent rather than only the
+ * latest one, so that the estimate is based on the real finger movement instead of on how input
+ * happened to be batched per frame.
+ * <p>
+ * The velocity is the least squares slope over the samples of a short time window, which is less
+ * noisy than the difference of the last two samples while still following changes within a few
+ * frames. Zoom is tracked as log scale factor, so that a steady pinch has a constant velocity.
+ * Only used from the UI thread.
+ */
+public class TouchHistory {
+    private static final int CAPACITY = 32;
+    /** Samples older than this, relative to the latest one, don't count. */
+    private static final long WINDOW_NANOS = 80000000;
+
+    private final long[] times = new long[CAPACITY];
+    private final float[] xs = new float[CAPACITY];
+    private final float[] ys = new float[CAPACITY];
+    private final float[] logScales = new float[CAPACITY];
+    /** Index of the latest sample, and number of samples. */
+    private int last = -1, count = 0;
+
+    /** Forgets all samples, e.g. when a new gesture starts. */
+    public void clear() {
+        last = -1;
+        count = 0;
+    }
+
+    public void add(long timeNanos, float centerUtmX, float centerUtmY, float scaleFactor) {
+        last = (last + 1) % CAPACITY;
+        count = Math.min(count + 1, CAPACITY);
+        times[last] = timeNanos;
+        xs[last] = centerUtmX;
+        ys[last] = centerUtmY;
+        logScales[last] = (float) Math.log(scaleFactor);
+    }
+
+    /**
+     * Estimates the current velocity.
+     * @param velocity Receives utm per second in x and y, and log scale factor per second.
+     */
+    public void getVelocity(float[] velocity) {
+        velocity[0] = velocity[1] = velocity[2] = 0;
+        // means over the window, with times relative to the latest sample (in seconds) for precision
+        int n = 0;
+        double st = 0, sx = 0, sy = 0, ss = 0;
+        for (int k = 0; k < count; ++k) {
+            int i = (last - k + CAPACITY) % CAPACITY;
+            long age = times[last] - times[i];
+            if (age > WINDOW_NANOS)
+                break;
+            st -= age / 1e9;
+            sx += xs[i];
+            sy += ys[i];
+            ss += logScales[i];
+            ++n;
+        }
+        if (n < 2)
+            return;
+        double mt = st / n, mx = sx / n, my = sy / n, ms = ss / n;
+        double tt = 0, tx = 0, ty = 0, ts = 0;
+        for (int k = 0; k < n; ++k) {
+            int i = (last - k + CAPACITY) % CAPACITY;
+            double dt = -(times[last] - times[i]) / 1e9 - mt;
+            tt += dt * dt;
+            tx += dt * (xs[i] - mx);
+            ty += dt * (ys[i] - my);
+            ts += dt * (logScales[i] - ms);
+        }
+        if (tt == 0)
+            return; // all samples at the same time
+        velocity[0] = (float) (tx / tt);
+        velocity[1] = (float) (ty / tt);
+        velocity[2] = (float) (ts / tt);
+    }
+}
@@ -47,6 +47,11 @@ public final class EglCore {
      */
     public static final int FLAG_TRY_GLES3 = 0x02;
 
+    /**
+     * Constructor flag: surface must have a (16 bit) depth buffer.
+     */
+    public static final int FLAG_DEPTH_BUFFER = 0x04;
+
     // Android-specific extension.
     private static final int EGL_RECORDABLE_ANDROID = 0x3142;
 
@@ -155,12 +160,15 @@ public final class EglCore {
                 EGL14.EGL_GREEN_SIZE, 8,
                 EGL14.EGL_BLUE_SIZE, 8,
                 EGL14.EGL_ALPHA_SIZE, 8,
-                //EGL14.EGL_DEPTH_SIZE, 16,
                 //EGL14.EGL_STENCIL_SIZE, 8,
                 EGL14.EGL_RENDERABLE_TYPE, renderableType,
+                EGL14.EGL_DEPTH_SIZE, 0,    // depth size, 0 is the EGL default [@-4]
                 EGL14.EGL_NONE, 0,      // placeholder for recordable [@-3]
                 EGL14.EGL_NONE
         };
+        if ((flags & FLAG_DEPTH_BUFFER) != 0) {
+            attribList[attribList.length - 4] = 16;
+        }
         if ((flags & FLAG_RECORDABLE) != 0) {
             attribList[attribList.length - 3] = EGL_RECORDABLE_ANDROID;
             attribList[attribList.length - 2] = 1;
@@ -1,7 +1,28 @@
 precision lowp float;
 
-uniform vec4 vColor;
+varying vec4 vColor;
+
+#ifdef DITHERED_FADE
+// 2x2 and 4x4 ordered dither (Bayer) thresholds in [0, 1), computed without lookup tables. Takes the
+// pixel position within its 4x4 block (0 to 3), and squares it, so mediump rather than lowp, whose
+// range is only guaranteed to be +-2; the pattern repeats every 4 pixels anyway.
+mediump float bayer2(mediump vec2 a) {
+  a = floor(a);
+  return fract(dot(a, vec2(0.5, a.y * 0.75)));
+}
+
+mediump float bayer4(mediump vec2 a) {
+  return bayer2(0.5 * a) * 0.25 + bayer2(a);
+}
+#endif
 
 void main() {
+#ifdef DITHERED_FADE
+  // screen-door transparency: keep a fraction of the fragments equal to alpha, and draw them opaque
+  if (vColor.a <= bayer4(mod(floor(gl_FragCoord.xy), 4.0)))
+    discard;
+  gl_FragColor = vec4(vColor.rgb, 1.0);
+#else
   gl_FragColor = vColor;
+#endif
 }
@@ -0,0 +1,31 @@
+// GLES3 version of fragment_shader.glsl; #version is prepended by the code loading this shader
+precision lowp float;
+
+in vec4 vColor;
+
+out vec4 fragColor;
+
+#ifdef DITHERED_FADE
+// 2x2 and 4x4 ordered dither (Bayer) thresholds in [0, 1), computed without lookup tables. Takes the
+// pixel position within its 4x4 block (0 to 3), and squares it, so mediump rather than lowp, whose
+// range is only guaranteed to be +-2; the pattern repeats every 4 pixels anyway.
+mediump float bayer2(mediump vec2 a) {
+  a = floor(a);
+  return fract(dot(a, vec2(0.5, a.y * 0.75)));
+}
+
+mediump float bayer4(mediump vec2 a) {
+  return bayer2(0.5 * a) * 0.25 + bayer2(a);
+}
+#endif
+
+void main() {
+#ifdef DITHERED_FADE
+  // screen-door transparency: keep a fraction of the fragments equal to alpha, and draw them opaque
+  if (vColor.a <= bayer4(mod(floor(gl_FragCoord.xy), 4.0)))
+    discard;
+  fragColor = vec4(vColor.rgb, 1.0);
+#else
+  fragColor = vColor;
+#endif
+}
@@ -0,0 +1,14 @@
+// #version is prepended by the code loading this shader
+precision mediump float;
+
+uniform sampler2D uTexture;
+
+uniform vec4 vColor;
+
+in vec2 vTexCoordinate;
+
+out vec4 fragColor;
+
+void main() {
+  fragColor = vColor * texture(uTexture, vTexCoordinate);
+}
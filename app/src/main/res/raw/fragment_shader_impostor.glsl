@@ -0,0 +1,10 @@
+precision mediump float;
+
+uniform sampler2D uTexture;
+uniform float uBlend;
+
+varying vec2 vTexCoordinate;
+
+void main() {
+  gl_FragColor = vec4(texture2D(uTexture, vTexCoordinate).rgb, uBlend);
+}
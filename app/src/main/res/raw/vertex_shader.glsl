@@ -1,8 +1,17 @@
+// NR_SURFACE_TYPES is defined by the code loading this shader
 uniform mat4 uMVPMatrix;
+uniform float uDepth; // per layer depth, only used when rendering with depth test
+uniform vec4 uPalette[NR_SURFACE_TYPES];
+uniform float uBlend;
 
 attribute vec4 vPosition;
+attribute float aType; // surface type, index into uPalette
+
+varying vec4 vColor;
 
 void main() {
+  vColor = vec4(uPalette[int(aType)].rgb, uBlend);
   gl_Position = uMVPMatrix * vPosition;
+  gl_Position.z = uDepth * gl_Position.w;
   //gl_PointSize = 16.; // for rendering vertices
 }
@@ -0,0 +1,21 @@
+// GLES3 version of vertex_shader.glsl; #version and NR_SURFACE_TYPES are prepended by the code loading this shader
+uniform mat4 uMVPMatrix;
+uniform vec4 uPalette[NR_SURFACE_TYPES];
+
+// per tile data, one range of a uniform buffer per tile
+layout(std140) uniform TileData {
+  float uBlend;
+  float uDepth; // per layer depth, only used when rendering with depth test
+};
+
+// fixed locations, so that the vertex array objects work with every tile program
+layout(location = 0) in vec4 vPosition;
+layout(location = 1) in float aType; // surface type, index into uPalette
+
+out vec4 vColor;
+
+void main() {
+  vColor = vec4(uPalette[int(aType)].rgb, uBlend);
+  gl_Position = uMVPMatrix * vPosition;
+  gl_Position.z = uDepth * gl_Position.w;
+}
@@ -0,0 +1,11 @@
+// #version is prepended by the code loading this shader
+layout(location = 0) in vec2 aCorner;      // corner of the unit square, (0, 0) is top left
+layout(location = 1) in vec4 aGlyphRect;   // per glyph: x, y of the top left corner, width, height
+layout(location = 2) in vec4 aGlyphTexRect; // per glyph: texture coordinates of the top left and bottom right corners
+
+out vec2 vTexCoordinate;
+
+void main() {
+  vTexCoordinate = mix(aGlyphTexRect.xy, aGlyphTexRect.zw, aCorner);
+  gl_Position = vec4(aGlyphRect.xy + vec2(aGlyphRect.z, -aGlyphRect.w) * aCorner, 0.0, 1.0);
+}
@@ -0,0 +1,13 @@
+uniform mat4 uMVPMatrix;
+uniform float uDepth; // per layer depth, only used when rendering with depth test
+uniform vec3 uTileRect; // x0, y0 and size of the tile
+
+attribute vec2 aCorner; // corner of the unit square
+
+varying vec2 vTexCoordinate;
+
+void main() {
+  vTexCoordinate = aCorner;
+  gl_Position = uMVPMatrix * vec4(uTileRect.xy + aCorner * uTileRect.z, 0.0, 1.0);
+  gl_Position.z = uDepth * gl_Position.w;
+}
@@ -0,0 +1,42 @@
+package android.opengl;
+
+/**
+ * Desktop stand-in for the constants of android.opengl.GLES20 used by the renderer core. Calls
+ * go through com.max.vectormap.GL, so no methods are needed. Values are from the GLES 2.0 spec.
+ */
+public final class GLES20 {
+    private GLES20() { }
+
+    public static final int GL_NO_ERROR = 0;
+    public static final int GL_TRUE = 1;
+    public static final int GL_POINTS = 0x0000;
+    public static final int GL_TRIANGLES = 0x0004;
+    public static final int GL_TRIANGLE_STRIP = 0x0005;
+    public static final int GL_SRC_ALPHA = 0x0302;
+    public static final int GL_ONE_MINUS_SRC_ALPHA = 0x0303;
+    public static final int GL_CULL_FACE = 0x0B44;
+    public static final int GL_DEPTH_TEST = 0x0B71;
+    public static final int GL_BLEND = 0x0BE2;
+    public static final int GL_TEXTURE_2D = 0x0DE1;
+    public static final int GL_UNSIGNED_BYTE = 0x1401;
+    public static final int GL_UNSIGNED_SHORT = 0x1403;
+    public static final int GL_UNSIGNED_INT = 0x1405;
+    public static final int GL_FLOAT = 0x1406;
+    public static final int GL_RGBA = 0x1908;
+    public static final int GL_RENDERER = 0x1F01;
+    public static final int GL_VERSION = 0x1F02;
+    public static final int GL_DEPTH_BUFFER_BIT = 0x00000100;
+    public static final int GL_COLOR_BUFFER_BIT = 0x00004000;
+    public static final int GL_ARRAY_BUFFER = 0x8892;
+    public static final int GL_ELEMENT_ARRAY_BUFFER = 0x8893;
+    public static final int GL_STREAM_DRAW = 0x88E0;
+    public static final int GL_STATIC_DRAW = 0x88E4;
+    public static final int GL_DYNAMIC_DRAW = 0x88E8;
+    public static final int GL_FRAGMENT_SHADER = 0x8B30;
+    public static final int GL_VERTEX_SHADER = 0x8B31;
+    public static final int GL_COMPILE_STATUS = 0x8B81;
+    public static final int GL_LINK_STATUS = 0x8B82;
+    public static final int GL_ACTIVE_UNIFORMS = 0x8B86;
+    public static final int GL_ACTIVE_ATTRIBUTES = 0x8B89;
+    public static final int GL_FRAMEBUFFER_COMPLETE = 0x8CD5;
+}
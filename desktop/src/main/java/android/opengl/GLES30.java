@@ -0,0 +1,12 @@
+package android.opengl;
+
+/** Desktop stand-in for the constants of android.opengl.GLES30 used by the renderer core, see {@link GLES20}. */
+public final class GLES30 {
+    private GLES30() { }
+
+    public static final int GL_INVALID_INDEX = 0xFFFFFFFF;
+    public static final int GL_PROGRAM_BINARY_RETRIEVABLE_HINT = 0x8257;
+    public static final int GL_PROGRAM_BINARY_LENGTH = 0x8741;
+    public static final int GL_UNIFORM_BUFFER = 0x8A11;
+    public static final int GL_UNIFORM_BUFFER_OFFSET_ALIGNMENT = 0x8A34;
+}
@@ -0,0 +1,26 @@
+package android.util;
+
+/**
+ * Desktop stand-in for android.util.Log, so that the renderer core of the app compiles and runs
+ * unchanged. Verbose and debug messages are only printed with -Dvectormap.verbose=true.
+ */
+public final class Log {
+    private static final boolean VERBOSE = Boolean.getBoolean("vectormap.verbose");
+
+    private Log() { }
+
+    private static int print(String level, String tag, String msg, Throwable tr) {
+        System.err.println(level + "/" + tag + ": " + msg);
+        if (tr != null)
+            tr.printStackTrace();
+        return 0;
+    }
+
+    public static int v(String tag, String msg) { return VERBOSE ? print("V", tag, msg, null) : 0; }
+    public static int d(String tag, String msg) { return VERBOSE ? print("D", tag, msg, null) : 0; }
+    public static int i(String tag, String msg) { return print("I", tag, msg, null); }
+    public static int w(String tag, String msg) { return print("W", tag, msg, null); }
+    public static int w(String tag, String msg, Throwable tr) { return print("W", tag, msg, tr); }
+    public static int e(String tag, String msg) { return print("E", tag, msg, null); }
+    public static int e(String tag, String msg, Throwable tr) { return print("E", tag, msg, tr); }
+}
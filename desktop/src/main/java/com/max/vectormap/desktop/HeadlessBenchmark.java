@@ -0,0 +1,176 @@
+package com.max.vectormap.desktop;
+
+import android.opengl.GLES20;
+
+import com.max.vectormap.CameraState;
+import com.max.vectormap.Common;
+import com.max.vectormap.Constants;
+import com.max.vectormap.GLState;
+import com.max.vectormap.RenderQueue;
+import com.max.vectormap.RetireQueue;
+import com.max.vectormap.ShaderHelper;
+import com.max.vectormap.ShaderProgram;
+import com.max.vectormap.Tile;
+import com.max.vectormap.TileCache;
+import com.max.vectormap.TileLoader;
+import com.max.vectormap.TileRenderer;
+import com.max.vectormap.TileUniforms;
+
+import java.io.File;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Renders a scripted flight over the map off-screen, with the same tile cache, render queue and
+ * {@link TileRenderer} as the app on GLES3, and prints the CPU time, triangles and a checksum of the
+ * image of every frame. Tile loading is excluded from the timings: each frame waits until all tiles of its
+ * position are in the cache, so that runs are repeatable and the checksums comparable.
+ * <p>
+ * Not included: impostors, dithered fade, dynamic resolution and text.
+ * <p>
+ * Usage: HeadlessBenchmark &lt;tri root&gt; [frames] [width] [height]
+ */
+public class HeadlessBenchmark {
+    /** Frames are advanced with a fixed time step, so that blending animations are repeatable too. */
+    private static final float FRAME_SECONDS = 1 / 60f;
+
+    private final int width, height;
+    private final float screenRatio;
+    private final GLState glState = new GLState(new LwjglGL());
+    private final TileCache tileCache = new TileCache();
+    private final RetireQueue retireQueue = new RetireQueue();
+    private final RenderQueue renderQueue;
+    private final int[] screenEdges = new int[4];
+    private final ByteBuffer pixels;
+    private ShaderProgram program;
+    private TileRenderer tileRenderer;
+
+    public HeadlessBenchmark(int width, int height) {
+        this.width = width;
+        this.height = height;
+        screenRatio = (float) width / height;
+        renderQueue = new RenderQueue(tileCache.drawnTilePosArray.length);
+        pixels = ByteBuffer.allocateDirect(width * height * 4).order(ByteOrder.nativeOrder());
+    }
+
+    private static String readResource(String name) {
+        InputStream is = HeadlessBenchmark.class.getResourceAsStream("/" + name);
+        if (is == null)
+            throw new IllegalStateException("Missing resource " + name);
+        return Common.readInputStream(is);
+    }
+
+    /** Must be called with a current GLES3 context. */
+    public void prepareGL() {
+        glState.setGlVersion(3);
+        String vertexShader = ShaderHelper.GLES3_VERSION + "#define NR_SURFACE_TYPES " + Constants.NR_SURFACE_TYPES + "\n" +
+                readResource("vertex_shader_es3.glsl");
+        program = ShaderHelper.buildProgram(glState.gl, vertexShader, ShaderHelper.GLES3_VERSION + readResource("fragment_shader_es3.glsl"));
+        TileUniforms tileUniforms = new TileUniforms(glState.gl, tileCache.drawnTilePosArray.length);
+        TileUniforms.attach(glState.gl, program);
+        tileRenderer = new TileRenderer(glState, tileUniforms, tileCache.drawnTilePosArray.length);
+
+        float[] water = Common.rgb(Constants.COLORS_NEW[0]);
+        glState.gl.glClearColor(water[0], water[1], water[2], 1.0f);
+        glState.gl.glDisable(GLES20.GL_CULL_FACE);
+        glState.gl.glViewport(0, 0, width, height);
+        glState.setDepthTest(false);
+        glState.setBlend(false);
+
+        tileCache.startLoading(true);
+    }
+
+    /** Loads the tiles for the given position, without drawing. */
+    public void load(float centerX, float centerY, float scaleFactor) throws InterruptedException {
+        tileRenderer.setCamera(centerX, centerY, scaleFactor, screenRatio);
+        CameraState.getScreenEdges(screenEdges, centerX, centerY, scaleFactor, screenRatio);
+        int layer = Common.getLayerForScaleFactor(scaleFactor);
+        tileCache.getDrawOrder(screenEdges, scaleFactor, 0);
+        tileCache.refreshForPosition(screenEdges, scaleFactor, layer, retireQueue);
+        while (!tileCache.isPositionLoaded())
+            Thread.sleep(1);
+    }
+
+    /** Draws the frame for the position last passed to {@link #load}, like the app does with depth rejection. */
+    public void draw(float scaleFactor) {
+        tileRenderer.useTileProgram(program);
+        glState.gl.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
+
+        tileCache.getDrawOrder(screenEdges, scaleFactor, FRAME_SECONDS);
+        renderQueue.build(tileCache, true);
+        tileRenderer.draw(renderQueue, screenEdges, null, true, null);
+        glState.endFrame();
+        org.lwjgl.opengles.GLES20.glFinish(); // include the GPU (llvmpipe) work in the wall time
+        retireQueue.drain(glState);
+    }
+
+    /** @return CRC32 of the rendered image. */
+    public long checksum() {
+        pixels.clear();
+        org.lwjgl.opengles.GLES20.glReadPixels(0, 0, width, height, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, pixels);
+        CRC32 crc = new CRC32();
+        crc.update(pixels);
+        return crc.getValue();
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        return sorted[Math.min(sorted.length - 1, (int) (p * sorted.length))] / 1e6;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        if (args.length < 1) {
+            System.err.println("Usage: HeadlessBenchmark <tri root> [frames] [width] [height]");
+            System.exit(1);
+        }
+        TileLoader.setTriRoot(new File(args[0]));
+        int frames = args.length > 1 ? Integer.parseInt(args[1]) : 600;
+        int width = args.length > 2 ? Integer.parseInt(args[2]) : 1080;
+        int height = args.length > 3 ? Integer.parseInt(args[3]) : 1920;
+
+        HeadlessContext context = new HeadlessContext(width, height);
+        HeadlessBenchmark benchmark = new HeadlessBenchmark(width, height);
+        benchmark.prepareGL();
+        System.out.println("GL_RENDERER " + benchmark.glState.gl.glGetString(GLES20.GL_RENDERER));
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long[] cpuNanos = new long[frames];
+        long[] wallNanos = new long[frames];
+        long totalTris = 0;
+        System.out.println("frame\tscale\tcpu_ms\twall_ms\ttris\tcrc");
+        for (int frame = 0; frame < frames; ++frame) {
+            // zoom in from the app's start position and back out, panning east
+            float t = (float) frame / frames;
+            float scaleFactor = (float) (4096 * Math.pow(2, 6 * Math.sin(Math.PI * t)));
+            float centerX = 400000 - Constants.GLOBAL_OFS_X + 20000 * t;
+            float centerY = 6170000 - Constants.GLOBAL_OFS_Y + 5000 * (float) Math.sin(2 * Math.PI * t);
+            benchmark.load(centerX, centerY, scaleFactor);
+
+            long cpuStart = threads.getCurrentThreadCpuTime();
+            long wallStart = System.nanoTime();
+            benchmark.draw(scaleFactor);
+            cpuNanos[frame] = threads.getCurrentThreadCpuTime() - cpuStart;
+            wallNanos[frame] = System.nanoTime() - wallStart;
+            totalTris += Tile.trisDrawn;
+
+            System.out.println(String.format("%d\t%.0f\t%.3f\t%.3f\t%d\t%08x", frame, scaleFactor,
+                    cpuNanos[frame] / 1e6, wallNanos[frame] / 1e6, Tile.trisDrawn, benchmark.checksum()));
+        }
+
+        Arrays.sort(cpuNanos);
+        Arrays.sort(wallNanos);
+        long cpuTotal = 0;
+        for (long nanos : cpuNanos)
+            cpuTotal += nanos;
+        System.out.println(String.format("cpu ms: avg %.3f, median %.3f, p95 %.3f; wall ms: median %.3f, p95 %.3f; tris/frame: %d",
+                cpuTotal / 1e6 / frames, percentile(cpuNanos, 0.5), percentile(cpuNanos, 0.95),
+                percentile(wallNanos, 0.5), percentile(wallNanos, 0.95), totalTris / frames));
+
+        context.release();
+        System.exit(0); // the tile loader thread doesn't stop by itself
+    }
+}
@@ -0,0 +1,71 @@
+package com.max.vectormap.desktop;
+
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.egl.EGL;
+import org.lwjgl.opengles.GLES;
+import org.lwjgl.system.MemoryStack;
+
+import java.nio.IntBuffer;
+
+import static org.lwjgl.egl.EGL10.*;
+import static org.lwjgl.egl.EGL12.EGL_OPENGL_ES_API;
+import static org.lwjgl.egl.EGL12.EGL_RENDERABLE_TYPE;
+import static org.lwjgl.egl.EGL12.eglBindAPI;
+import static org.lwjgl.egl.EGL13.EGL_CONTEXT_CLIENT_VERSION;
+import static org.lwjgl.egl.EGL15.EGL_OPENGL_ES3_BIT;
+
+/**
+ * Off-screen GLES3 context with a pbuffer surface of a fixed size, created through EGL without any
+ * window system. On a machine without GPU, run with EGL_PLATFORM=surfaceless and
+ * LIBGL_ALWAYS_SOFTWARE=1 to get Mesa's software rasterizer (llvmpipe).
+ */
+public class HeadlessContext {
+    private final long display;
+    private final long surface;
+    private final long context;
+
+    /** Creates the context and makes it current in the calling thread. */
+    public HeadlessContext(int width, int height) {
+        display = eglGetDisplay(EGL_DEFAULT_DISPLAY);
+        if (display == EGL_NO_DISPLAY)
+            throw new IllegalStateException("No EGL display");
+
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            IntBuffer major = stack.mallocInt(1), minor = stack.mallocInt(1);
+            if (!eglInitialize(display, major, minor))
+                throw new IllegalStateException("eglInitialize failed: " + eglGetError());
+            EGL.createDisplayCapabilities(display, major.get(0), minor.get(0));
+            eglBindAPI(EGL_OPENGL_ES_API);
+
+            IntBuffer configAttribs = stack.ints(
+                    EGL_SURFACE_TYPE, EGL_PBUFFER_BIT,
+                    EGL_RENDERABLE_TYPE, EGL_OPENGL_ES3_BIT,
+                    EGL_RED_SIZE, 8, EGL_GREEN_SIZE, 8, EGL_BLUE_SIZE, 8, EGL_ALPHA_SIZE, 8,
+                    EGL_DEPTH_SIZE, 16, // per layer depth rejection, like the app's EGL config
+                    EGL_NONE);
+            PointerBuffer configs = stack.mallocPointer(1);
+            IntBuffer configCount = stack.mallocInt(1);
+            if (!eglChooseConfig(display, configAttribs, configs, configCount) || configCount.get(0) == 0)
+                throw new IllegalStateException("No EGL config for GLES3 with pbuffer: " + eglGetError());
+            long config = configs.get(0);
+
+            surface = eglCreatePbufferSurface(display, config, stack.ints(EGL_WIDTH, width, EGL_HEIGHT, height, EGL_NONE));
+            if (surface == EGL_NO_SURFACE)
+                throw new IllegalStateException("eglCreatePbufferSurface failed: " + eglGetError());
+            context = eglCreateContext(display, config, EGL_NO_CONTEXT, stack.ints(EGL_CONTEXT_CLIENT_VERSION, 3, EGL_NONE));
+            if (context == EGL_NO_CONTEXT)
+                throw new IllegalStateException("eglCreateContext failed: " + eglGetError());
+        }
+
+        if (!eglMakeCurrent(display, surface, surface, context))
+            throw new IllegalStateException("eglMakeCurrent failed: " + eglGetError());
+        GLES.createCapabilities();
+    }
+
+    public void release() {
+        eglMakeCurrent(display, EGL_NO_SURFACE, EGL_NO_SURFACE, EGL_NO_CONTEXT);
+        eglDestroyContext(display, context);
+        eglDestroySurface(display, surface);
+        eglTerminate(display);
+    }
+}
@@ -0,0 +1,185 @@
+package com.max.vectormap.desktop;
+
+import com.max.vectormap.GL;
+
+import org.lwjgl.BufferUtils;
+import org.lwjgl.opengles.GLES20;
+import org.lwjgl.opengles.GLES30;
+import org.lwjgl.system.MemoryUtil;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+
+/**
+ * {@link GL} on top of the LWJGL GLES bindings, for a context made current by {@link HeadlessContext}.
+ * Translates the Android style array and Buffer parameters; all Buffers passed in must be direct,
+ * as they are on Android.
+ */
+public class LwjglGL implements GL {
+    private final IntBuffer intScratch = BufferUtils.createIntBuffer(2);
+    private FloatBuffer floatScratch = BufferUtils.createFloatBuffer(64);
+
+    /** Address of the buffer's position, or 0 for null, like the Android bindings use it. */
+    private static long address(Buffer buffer) {
+        if (buffer == null)
+            return 0;
+        if (buffer instanceof ByteBuffer)
+            return MemoryUtil.memAddress((ByteBuffer) buffer);
+        if (buffer instanceof ShortBuffer)
+            return MemoryUtil.memAddress((ShortBuffer) buffer);
+        if (buffer instanceof IntBuffer)
+            return MemoryUtil.memAddress((IntBuffer) buffer);
+        if (buffer instanceof FloatBuffer)
+            return MemoryUtil.memAddress((FloatBuffer) buffer);
+        throw new IllegalArgumentException("Unsupported buffer type " + buffer.getClass());
+    }
+
+    private FloatBuffer floats(float[] values, int offset, int count) {
+        if (floatScratch.capacity() < count)
+            floatScratch = BufferUtils.createFloatBuffer(count);
+        floatScratch.clear();
+        floatScratch.put(values, offset, count).flip();
+        return floatScratch;
+    }
+
+    @Override public void glAttachShader(int program, int shader) { GLES20.glAttachShader(program, shader); }
+    @Override public void glBindBuffer(int target, int buffer) { GLES20.glBindBuffer(target, buffer); }
+    @Override public void glBindFramebuffer(int target, int framebuffer) { GLES20.glBindFramebuffer(target, framebuffer); }
+    @Override public void glBindRenderbuffer(int target, int renderbuffer) { GLES20.glBindRenderbuffer(target, renderbuffer); }
+    @Override public void glBindTexture(int target, int texture) { GLES20.glBindTexture(target, texture); }
+    @Override public void glBlendFunc(int sfactor, int dfactor) { GLES20.glBlendFunc(sfactor, dfactor); }
+    @Override public void glBufferData(int target, int size, Buffer data, int usage) { GLES20.nglBufferData(target, size, address(data), usage); }
+    @Override public void glBufferSubData(int target, int offset, int size, Buffer data) { GLES20.nglBufferSubData(target, offset, size, address(data)); }
+    @Override public int glCheckFramebufferStatus(int target) { return GLES20.glCheckFramebufferStatus(target); }
+    @Override public void glClear(int mask) { GLES20.glClear(mask); }
+    @Override public void glClearColor(float red, float green, float blue, float alpha) { GLES20.glClearColor(red, green, blue, alpha); }
+    @Override public void glCompileShader(int shader) { GLES20.glCompileShader(shader); }
+    @Override public int glCreateProgram() { return GLES20.glCreateProgram(); }
+    @Override public int glCreateShader(int type) { return GLES20.glCreateShader(type); }
+    @Override public void glDeleteBuffers(int n, int[] buffers, int offset) {
+        for (int k = offset; k < offset + n; ++k)
+            GLES20.glDeleteBuffers(buffers[k]);
+    }
+    @Override public void glDeleteFramebuffers(int n, int[] framebuffers, int offset) {
+        for (int k = offset; k < offset + n; ++k)
+            GLES20.glDeleteFramebuffers(framebuffers[k]);
+    }
+    @Override public void glDeleteProgram(int program) { GLES20.glDeleteProgram(program); }
+    @Override public void glDeleteRenderbuffers(int n, int[] renderbuffers, int offset) {
+        for (int k = offset; k < offset + n; ++k)
+            GLES20.glDeleteRenderbuffers(renderbuffers[k]);
+    }
+    @Override public void glDeleteShader(int shader) { GLES20.glDeleteShader(shader); }
+    @Override public void glDeleteTextures(int n, int[] textures, int offset) {
+        for (int k = offset; k < offset + n; ++k)
+            GLES20.glDeleteTextures(textures[k]);
+    }
+    @Override public void glDisable(int cap) { GLES20.glDisable(cap); }
+    @Override public void glDisableVertexAttribArray(int index) { GLES20.glDisableVertexAttribArray(index); }
+    @Override public void glDrawArrays(int mode, int first, int count) { GLES20.glDrawArrays(mode, first, count); }
+    @Override public void glDrawElements(int mode, int count, int type, int offset) { GLES20.glDrawElements(mode, count, type, (long) offset); }
+    @Override public void glDrawElements(int mode, int count, int type, Buffer indices) { GLES20.nglDrawElements(mode, count, type, address(indices)); }
+    @Override public void glEnable(int cap) { GLES20.glEnable(cap); }
+    @Override public void glEnableVertexAttribArray(int index) { GLES20.glEnableVertexAttribArray(index); }
+    @Override public void glFramebufferRenderbuffer(int target, int attachment, int renderbuffertarget, int renderbuffer) {
+        GLES20.glFramebufferRenderbuffer(target, attachment, renderbuffertarget, renderbuffer);
+    }
+    @Override public void glFramebufferTexture2D(int target, int attachment, int textarget, int texture, int level) {
+        GLES20.glFramebufferTexture2D(target, attachment, textarget, texture, level);
+    }
+    @Override public void glGenBuffers(int n, int[] buffers, int offset) {
+        for (int k = offset; k < offset + n; ++k)
+            buffers[k] = GLES20.glGenBuffers();
+    }
+    @Override public void glGenFramebuffers(int n, int[] framebuffers, int offset) {
+        for (int k = offset; k < offset + n; ++k)
+            framebuffers[k] = GLES20.glGenFramebuffers();
+    }
+    @Override public void glGenRenderbuffers(int n, int[] renderbuffers, int offset) {
+        for (int k = offset; k < offset + n; ++k)
+            renderbuffers[k] = GLES20.glGenRenderbuffers();
+    }
+    @Override public void glGenTextures(int n, int[] textures, int offset) {
+        for (int k = offset; k < offset + n; ++k)
+            textures[k] = GLES20.glGenTextures();
+    }
+    @Override public void glGenerateMipmap(int target) { GLES20.glGenerateMipmap(target); }
+    @Override public String glGetActiveAttrib(int program, int index, int[] size, int sizeOffset, int[] type, int typeOffset) {
+        IntBuffer sizeBuffer = BufferUtils.createIntBuffer(1), typeBuffer = BufferUtils.createIntBuffer(1);
+        String name = GLES20.glGetActiveAttrib(program, index, sizeBuffer, typeBuffer);
+        size[sizeOffset] = sizeBuffer.get(0);
+        type[typeOffset] = typeBuffer.get(0);
+        return name;
+    }
+    @Override public String glGetActiveUniform(int program, int index, int[] size, int sizeOffset, int[] type, int typeOffset) {
+        IntBuffer sizeBuffer = BufferUtils.createIntBuffer(1), typeBuffer = BufferUtils.createIntBuffer(1);
+        String name = GLES20.glGetActiveUniform(program, index, sizeBuffer, typeBuffer);
+        size[sizeOffset] = sizeBuffer.get(0);
+        type[typeOffset] = typeBuffer.get(0);
+        return name;
+    }
+    @Override public int glGetAttribLocation(int program, String name) { return GLES20.glGetAttribLocation(program, name); }
+    @Override public int glGetError() { return GLES20.glGetError(); }
+    @Override public void glGetIntegerv(int pname, int[] params, int offset) { params[offset] = GLES20.glGetInteger(pname); }
+    @Override public String glGetProgramInfoLog(int program) { return GLES20.glGetProgramInfoLog(program); }
+    @Override public void glGetProgramiv(int program, int pname, int[] params, int offset) { params[offset] = GLES20.glGetProgrami(program, pname); }
+    @Override public String glGetShaderInfoLog(int shader) { return GLES20.glGetShaderInfoLog(shader); }
+    @Override public void glGetShaderiv(int shader, int pname, int[] params, int offset) { params[offset] = GLES20.glGetShaderi(shader, pname); }
+    @Override public String glGetString(int name) { return GLES20.glGetString(name); }
+    @Override public int glGetUniformLocation(int program, String name) { return GLES20.glGetUniformLocation(program, name); }
+    @Override public void glLinkProgram(int program) { GLES20.glLinkProgram(program); }
+    @Override public void glRenderbufferStorage(int target, int internalformat, int width, int height) {
+        GLES20.glRenderbufferStorage(target, internalformat, width, height);
+    }
+    @Override public void glShaderSource(int shader, String string) { GLES20.glShaderSource(shader, string); }
+    @Override public void glTexImage2D(int target, int level, int internalformat, int width, int height, int border, int format, int type, Buffer pixels) {
+        GLES20.nglTexImage2D(target, level, internalformat, width, height, border, format, type, address(pixels));
+    }
+    @Override public void glTexParameteri(int target, int pname, int param) { GLES20.glTexParameteri(target, pname, param); }
+    @Override public void glUniform1f(int location, float x) { GLES20.glUniform1f(location, x); }
+    @Override public void glUniform1i(int location, int x) { GLES20.glUniform1i(location, x); }
+    @Override public void glUniform3f(int location, float x, float y, float z) { GLES20.glUniform3f(location, x, y, z); }
+    @Override public void glUniform4fv(int location, int count, float[] v, int offset) { GLES20.glUniform4fv(location, floats(v, offset, count * 4)); }
+    @Override public void glUniformMatrix4fv(int location, int count, boolean transpose, float[] value, int offset) {
+        GLES20.glUniformMatrix4fv(location, transpose, floats(value, offset, count * 16));
+    }
+    @Override public void glUseProgram(int program) { GLES20.glUseProgram(program); }
+    @Override public void glVertexAttrib1f(int index, float x) { GLES20.glVertexAttrib1f(index, x); }
+    @Override public void glVertexAttribPointer(int index, int size, int type, boolean normalized, int stride, int offset) {
+        GLES20.glVertexAttribPointer(index, size, type, normalized, stride, (long) offset);
+    }
+    @Override public void glVertexAttribPointer(int index, int size, int type, boolean normalized, int stride, Buffer ptr) {
+        GLES20.nglVertexAttribPointer(index, size, type, normalized, stride, address(ptr));
+    }
+    @Override public void glViewport(int x, int y, int width, int height) { GLES20.glViewport(x, y, width, height); }
+
+    // GLES3 only
+
+    @Override public void glBindBufferRange(int target, int index, int buffer, int offset, int size) { GLES30.glBindBufferRange(target, index, buffer, offset, size); }
+    @Override public void glBindVertexArray(int array) { GLES30.glBindVertexArray(array); }
+    @Override public void glDeleteVertexArrays(int n, int[] arrays, int offset) {
+        for (int k = offset; k < offset + n; ++k)
+            GLES30.glDeleteVertexArrays(arrays[k]);
+    }
+    @Override public void glDrawArraysInstanced(int mode, int first, int count, int instanceCount) { GLES30.glDrawArraysInstanced(mode, first, count, instanceCount); }
+    @Override public void glGenVertexArrays(int n, int[] arrays, int offset) {
+        for (int k = offset; k < offset + n; ++k)
+            arrays[k] = GLES30.glGenVertexArrays();
+    }
+    @Override public void glGetProgramBinary(int program, int bufSize, int[] length, int lengthOffset, int[] binaryFormat, int binaryFormatOffset, Buffer binary) {
+        intScratch.clear();
+        GLES30.nglGetProgramBinary(program, bufSize, MemoryUtil.memAddress(intScratch), MemoryUtil.memAddress(intScratch) + 4, address(binary));
+        length[lengthOffset] = intScratch.get(0);
+        binaryFormat[binaryFormatOffset] = intScratch.get(1);
+    }
+    @Override public int glGetUniformBlockIndex(int program, String uniformBlockName) { return GLES30.glGetUniformBlockIndex(program, uniformBlockName); }
+    @Override public void glProgramBinary(int program, int binaryFormat, Buffer binary, int length) { GLES30.nglProgramBinary(program, binaryFormat, address(binary), length); }
+    @Override public void glProgramParameteri(int program, int pname, int value) { GLES30.glProgramParameteri(program, pname, value); }
+    @Override public void glUniformBlockBinding(int program, int uniformBlockIndex, int uniformBlockBinding) {
+        GLES30.glUniformBlockBinding(program, uniformBlockIndex, uniformBlockBinding);
+    }
+    @Override public void glVertexAttribDivisor(int index, int divisor) { GLES30.glVertexAttribDivisor(index, divisor); }
+}
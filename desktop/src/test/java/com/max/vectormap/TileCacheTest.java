@@ -0,0 +1,94 @@
+package com.max.vectormap;
+
+import com.max.vectormap.desktop.TestTiles;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks which tiles the cache keeps, on {@link TestTiles}. The loading thread is not started;
+ * tests load tiles themselves with {@link TileCache#get}, the way the loading thread does.
+ */
+public class TileCacheTest {
+    private static final float CENTER_X = 0, CENTER_Y = -30000, SCALE_FACTOR = 4096;
+    private static final float SCREEN_RATIO = 1080 / 1920f;
+    /** Area around the center covered by generated tiles, in utm. */
+    private static final int AREA = 60000;
+
+    private File triRoot;
+    private TileCache tileCache;
+    private final int[] screenEdges = new int[4];
+    private final RetireQueue retireQueue = new RetireQueue();
+    private final GLState glState = new GLState(new RecordingGL(false));
+
+    @Before
+    public void setUp() throws IOException {
+        triRoot = TestTiles.write(CENTER_X, CENTER_Y, AREA);
+        TileLoader.setTriRoot(triRoot);
+        tileCache = new TileCache();
+    }
+
+    @After
+    public void tearDown() {
+        TestTiles.delete(triRoot);
+    }
+
+    /** Prepares a frame for the given camera, in the order of the FramePreparer. */
+    private void frame(float centerX, float centerY, float scaleFactor) {
+        CameraState.getScreenEdges(screenEdges, centerX, centerY, scaleFactor, SCREEN_RATIO);
+        tileCache.getDrawOrder(screenEdges, scaleFactor, 1 / 60f);
+        tileCache.refreshForPosition(screenEdges, scaleFactor, Common.getLayerForScaleFactor(scaleFactor), retireQueue);
+        retireQueue.drain(glState);
+    }
+
+    private void frame(float centerX, float centerY) {
+        frame(centerX, centerY, SCALE_FACTOR);
+    }
+
+    @Test
+    public void testTileLoadedAfterBecomingUnwantedIsEvicted() {
+        int layer = Common.getLayerForScaleFactor(SCALE_FACTOR);
+        int shift = Constants.TILE_SHIFTS[layer];
+        int tp = Common.getTilePos(layer, (int) (Constants.GLOBAL_OFS_X + CENTER_X) >> shift, (int) (Constants.GLOBAL_OFS_Y + CENTER_Y) >> shift);
+
+        frame(CENTER_X, CENTER_Y); // queues the tile for loading
+        float awayX = CENTER_X + 10 * AREA;
+        frame(awayX, CENTER_Y); // no longer wanted before it was loaded
+        assertNotNull(tileCache.get(tp, false)); // the loading thread had already started on it
+        assertTrue(tileCache.cache.containsKey(tp));
+
+        // the camera stays put, so the wanted tiles don't change
+        frame(awayX, CENTER_Y);
+        assertFalse(tileCache.cache.containsKey(tp));
+    }
+
+    @Test
+    public void testTilesQueuedBeforeComingOnScreenLoadFirst() {
+        // the zoomed in layer is queued after the tiles on screen and around them
+        frame(CENTER_X, CENTER_Y);
+        float zoomedIn = 16000;
+        assertEquals(0, Common.getLayerForScaleFactor(zoomedIn));
+        frame(CENTER_X, CENTER_Y, zoomedIn);
+
+        int shift = Constants.TILE_SHIFTS[0];
+        Set<Integer> onScreen = new HashSet<>();
+        for (int ty = Constants.GLOBAL_OFS_Y + screenEdges[1] >> shift; ty <= Constants.GLOBAL_OFS_Y + screenEdges[3] >> shift; ++ty)
+            for (int tx = Constants.GLOBAL_OFS_X + screenEdges[0] >> shift; tx <= Constants.GLOBAL_OFS_X + screenEdges[2] >> shift; ++tx)
+                onScreen.add(Common.getTilePos(0, tx, ty));
+        Iterator<Integer> queued = tileCache.tileDiskLoader.tilesToLoad.iterator();
+        for (int k = 0; k < onScreen.size(); ++k)
+            assertTrue("Tile " + k + " of the queue on screen", onScreen.contains(queued.next()));
+    }
+}
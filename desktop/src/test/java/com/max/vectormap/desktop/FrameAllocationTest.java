@@ -0,0 +1,217 @@
+package com.max.vectormap.desktop;
+
+import android.opengl.GLES20;
+
+import com.max.vectormap.CameraState;
+import com.max.vectormap.Common;
+import com.max.vectormap.Constants;
+import com.max.vectormap.FramePreparer;
+import com.max.vectormap.GLState;
+import com.max.vectormap.QualityGovernor;
+import com.max.vectormap.RecordingGL;
+import com.max.vectormap.RenderQueue;
+import com.max.vectormap.ShaderHelper;
+import com.max.vectormap.ShaderProgram;
+import com.max.vectormap.TextLayer;
+import com.max.vectormap.TextRenderer;
+import com.max.vectormap.TileCache;
+import com.max.vectormap.TileLoader;
+import com.max.vectormap.TileRenderer;
+import com.max.vectormap.TileUniforms;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives scripted frames through the {@link FramePreparer}, {@link TileRenderer} and
+ * {@link TextRenderer} the way the render thread does, with a {@link RecordingGL} instead of a real
+ * GL, and fails if any frame allocates on the GL thread or the frame preparer once the tiles of the
+ * script are loaded and uploaded. Each script pans and zooms a little around one position, without
+ * changing the wanted tiles, since loading and evicting tiles does allocate.
+ * <p>
+ * Runs on {@link TestTiles}. Must run with the C1 compiler only, see desktop/build.gradle.
+ */
+public class FrameAllocationTest {
+    private static final int FRAMES = 300;
+    private static final float CENTER_X = 0, CENTER_Y = -30000;
+    private static final float SCREEN_RATIO = 1080 / 1920f;
+    /** Area around the center covered by generated tiles, in utm. */
+    private static final int AREA = 60000;
+
+    private File triRoot;
+    private final int[] screenEdges = new int[4];
+    private float centerX, centerY, scaleFactor;
+
+    private TileCache tileCache;
+    private FramePreparer framePreparer;
+    private GLState glState;
+    private ShaderProgram program;
+    private TileRenderer tileRenderer;
+    private TextRenderer textRenderer;
+    private TextLayer textLayer;
+
+    /** Frames drawn so far with tiles of merged meshes. */
+    private int mergedFrames;
+    /** True if tiles of the last frame drawn were still blending. */
+    private boolean animating;
+
+    @Before
+    public void setUp() throws IOException {
+        triRoot = TestTiles.write(CENTER_X, CENTER_Y, AREA);
+        TileLoader.setTriRoot(triRoot);
+
+        tileCache = new TileCache();
+        framePreparer = new FramePreparer(tileCache);
+        glState = new GLState(new RecordingGL(false));
+        glState.setGlVersion(3);
+        String vertexShader = ShaderHelper.GLES3_VERSION + "#define NR_SURFACE_TYPES " + Constants.NR_SURFACE_TYPES + "\n" +
+                readResource("vertex_shader_es3.glsl");
+        program = ShaderHelper.buildProgram(glState.gl, vertexShader, ShaderHelper.GLES3_VERSION + readResource("fragment_shader_es3.glsl"));
+        int capacity = tileCache.drawnTilePosArray.length;
+        TileUniforms tileUniforms = new TileUniforms(glState.gl, capacity);
+        TileUniforms.attach(glState.gl, program);
+        tileRenderer = new TileRenderer(glState, tileUniforms, capacity);
+
+        int[] fontTexture = new int[1];
+        glState.gl.glGenTextures(1, fontTexture, 0);
+        textRenderer = new TextRenderer(glState, fontTexture[0], 512, 256,
+                readResource("vertex_shader_font_2d.glsl"), readResource("fragment_shader_font.glsl"),
+                readResource("vertex_shader_font_instanced.glsl"), readResource("fragment_shader_font_es3.glsl"));
+        textRenderer.adjustForScreenSize(1080, 1920);
+        // labels around the center, of a category shown at all zoom levels and one shown when zoomed in
+        StringBuilder labels = new StringBuilder();
+        for (int k = 0; k < 20; ++k)
+            labels.append("Label ").append(k)
+                    .append('|').append(Constants.GLOBAL_OFS_X + (int) CENTER_X + (k - 10) * 200)
+                    .append('|').append(Constants.GLOBAL_OFS_Y + (int) CENTER_Y + (k % 5 - 2) * 400)
+                    .append('|').append(k % 2 == 0 ? 9 : 8).append("|0|0|0\n");
+        textLayer = new TextLayer(labels.toString());
+
+        tileCache.startLoading(true);
+        framePreparer.start();
+    }
+
+    @After
+    public void tearDown() {
+        framePreparer.quit();
+        framePreparer.drainAll(glState);
+        TestTiles.delete(triRoot);
+    }
+
+    private static String readResource(String name) {
+        InputStream is = FrameAllocationTest.class.getResourceAsStream("/" + name);
+        if (is == null)
+            throw new IllegalStateException("Missing resource " + name);
+        return Common.readInputStream(is);
+    }
+
+    /** Looked up once, since looking it up allocates. */
+    private static final com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private final long threadId = Thread.currentThread().getId();
+
+    private static long allocatedBytes(long threadId) {
+        return threadBean.getThreadAllocatedBytes(threadId);
+    }
+
+    private static long getThreadId(String name) {
+        for (Thread thread : Thread.getAllStackTraces().keySet())
+            if (thread.getName().equals(name))
+                return thread.getId();
+        throw new IllegalStateException("No thread " + name);
+    }
+
+    /** Camera of the given frame of the script around the given scale factor. */
+    private void setCamera(int frame, float baseScaleFactor) {
+        double t = 2 * Math.PI * frame / FRAMES;
+        centerX = CENTER_X + (float) (100 * Math.sin(t));
+        centerY = CENTER_Y + (float) (100 * Math.cos(3 * t));
+        scaleFactor = baseScaleFactor * (float) (1 + 0.003 * Math.sin(2 * t));
+        CameraState.getScreenEdges(screenEdges, centerX, centerY, scaleFactor, SCREEN_RATIO);
+    }
+
+    /**
+     * Draws the frame prepared during the previous one and starts preparing this one, in the order
+     * of the render thread; prepares the frame first if none is pending.
+     */
+    private void frame(int frame, float baseScaleFactor) {
+        setCamera(frame, baseScaleFactor);
+        FramePreparer.DrawList drawList = framePreparer.take();
+        if (drawList == null) {
+            framePreparer.prepare(centerX, centerY, scaleFactor, screenEdges, 0, 1 / 60f, true, QualityGovernor.FULL_QUALITY);
+            drawList = framePreparer.take();
+        }
+        framePreparer.prepare(centerX, centerY, scaleFactor, screenEdges, 0, 1 / 60f, true, QualityGovernor.FULL_QUALITY);
+
+        tileRenderer.setCamera(drawList.centerUtmX, drawList.centerUtmY, drawList.scaleFactor, SCREEN_RATIO);
+        tileRenderer.useTileProgram(program);
+        glState.gl.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
+        tileRenderer.draw(drawList.renderQueue, drawList.screenEdges, null, true, null);
+        textRenderer.drawLabels(textLayer, drawList.centerUtmX, drawList.centerUtmY, drawList.scaleFactor, SCREEN_RATIO);
+        glState.endFrame();
+        drawList.retireQueue.drain(glState);
+
+        RenderQueue renderQueue = drawList.renderQueue;
+        for (int k = 0; k < renderQueue.size; ++k) {
+            if (renderQueue.tiles[k].mesh != null) {
+                ++mergedFrames;
+                break;
+            }
+        }
+        animating = drawList.animating;
+    }
+
+    /** Takes the frame being prepared, if any, without drawing it, so that the frame preparer is idle. */
+    private void stopPreparing() {
+        FramePreparer.DrawList drawList = framePreparer.take();
+        if (drawList != null)
+            drawList.retireQueue.drain(glState);
+    }
+
+    private void checkFramesDoNotAllocate(float baseScaleFactor) throws InterruptedException {
+        // load and upload all tiles of the script, and let blending settle
+        for (int frame = 0; frame < FRAMES; ++frame) {
+            frame(frame, baseScaleFactor);
+            stopPreparing();
+            while (!tileCache.isPositionLoaded())
+                Thread.sleep(1);
+        }
+        for (int frame = 0; frame < FRAMES || animating; ++frame)
+            frame(frame % FRAMES, baseScaleFactor);
+        stopPreparing();
+
+        long preparerId = getThreadId("FramePreparer");
+        long preparerStart = allocatedBytes(preparerId);
+        long start = allocatedBytes(threadId);
+        long overhead = allocatedBytes(threadId) - start; // of reading the counter itself
+        for (int frame = 0; frame < FRAMES; ++frame) {
+            long before = allocatedBytes(threadId);
+            frame(frame, baseScaleFactor);
+            long bytes = allocatedBytes(threadId) - before - overhead;
+            assertEquals("Bytes allocated in frame " + frame, 0, bytes);
+        }
+        stopPreparing();
+        assertEquals("Bytes allocated preparing frames", 0, allocatedBytes(preparerId) - preparerStart);
+    }
+
+    /** Street level: tiles with buffers of their own, and labels. */
+    @Test
+    public void testFramesDoNotAllocate() throws InterruptedException {
+        checkFramesDoNotAllocate(4096);
+    }
+
+    /** Zoomed out, to the merged meshes of the top layer. */
+    @Test
+    public void testZoomedOutFramesDoNotAllocate() throws InterruptedException {
+        checkFramesDoNotAllocate(280);
+        assertTrue("Merged tiles drawn", mergedFrames > 0);
+    }
+}
@@ -0,0 +1,50 @@
+package com.max.vectormap.desktop;
+
+import com.max.vectormap.QualityGovernor;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Feeds phase times of simulated 60 Hz frames to a {@link QualityGovernor}, in the order the render
+ * thread reports them.
+ */
+public class QualityGovernorTest {
+    private static final float FRAME_INTERVAL_NANOS = 16666667;
+    private static final long MS = 1000000;
+
+    private final QualityGovernor governor = new QualityGovernor();
+
+    /** Runs frames with the given times, 1 ms for the others. @return Level of the last frame. */
+    private int frames(int count, long tilesNanos, long swapNanos) {
+        int level = governor.getLevel();
+        for (int frame = 0; frame < count; ++frame) {
+            level = governor.update(MS, FRAME_INTERVAL_NANOS);
+            governor.phaseDone(QualityGovernor.PHASE_PREPARE, MS);
+            governor.phaseDone(QualityGovernor.PHASE_TILES, tilesNanos);
+            if (QualityGovernor.drawsText(level))
+                governor.phaseDone(QualityGovernor.PHASE_TEXT, MS);
+            governor.phaseDone(QualityGovernor.PHASE_SWAP, swapNanos);
+        }
+        return level;
+    }
+
+    @Test
+    public void testLongSwapKeepsFullQuality() {
+        // a device keeping up easily: the swap blocks on vsync for the rest of the frame interval
+        assertEquals(QualityGovernor.FULL_QUALITY, frames(300, 3 * MS, 11 * MS));
+    }
+
+    @Test
+    public void testSlowTilesLowerQuality() {
+        assertTrue(frames(60, 14 * MS, MS) > QualityGovernor.FULL_QUALITY);
+    }
+
+    @Test
+    public void testLongSwapDoesNotHoldBackRestore() {
+        frames(60, 14 * MS, MS);
+        assertEquals(QualityGovernor.FULL_QUALITY, frames(300, 3 * MS, 11 * MS));
+    }
+}
@@ -0,0 +1,112 @@
+package com.max.vectormap.desktop;
+
+import com.max.vectormap.Common;
+import com.max.vectormap.Constants;
+import com.max.vectormap.TileLoader;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Generated tiles for tests, in a temporary directory: each tile covers its whole area with two
+ * triangles of the first surface type, in the format read by {@link TileLoader}.
+ */
+public class TestTiles {
+    private TestTiles() { }
+
+    /**
+     * Writes the tiles of all layers covering the given area around the given center, in utm.
+     * @return The tri root of the tiles, to pass to {@link TileLoader#setTriRoot}.
+     */
+    public static File write(float centerX, float centerY, int area) throws IOException {
+        File triRoot = File.createTempFile("tris", "");
+        if (!triRoot.delete() || !triRoot.mkdir())
+            throw new IOException("Can't create " + triRoot);
+        for (int layer = 0; layer < Constants.NR_LAYERS; ++layer) {
+            int shift = Constants.TILE_SHIFTS[layer];
+            for (int ty = (int) (Constants.GLOBAL_OFS_Y + centerY - area) >> shift; ty <= (int) (Constants.GLOBAL_OFS_Y + centerY + area) >> shift; ++ty)
+                for (int tx = (int) (Constants.GLOBAL_OFS_X + centerX - area) >> shift; tx <= (int) (Constants.GLOBAL_OFS_X + centerX + area) >> shift; ++tx)
+                    writeTile(triRoot, layer, tx, ty);
+        }
+        return triRoot;
+    }
+
+    /** Deletes the given tri root and all tiles in it. */
+    public static void delete(File triRoot) {
+        for (File level0 : triRoot.listFiles()) {
+            for (File level1 : level0.listFiles()) {
+                for (File tile : level1.listFiles())
+                    tile.delete();
+                level1.delete();
+            }
+            level0.delete();
+        }
+        triRoot.delete();
+    }
+
+    private static void writeTile(File triRoot, int layer, int tx, int ty) throws IOException {
+        int size = Constants.TILE_SIZES[layer];
+        File dir = new File(triRoot, ty % 10 + File.separator + (ty / 10) % 10);
+        dir.mkdirs();
+        try (DataOutputStream dos = new DataOutputStream(new FileOutputStream(new File(dir, "tri_" + size + "_" + tx + "_" + ty + ".tri")))) {
+            dos.writeInt(4); // vertices
+            dos.writeInt(tx);
+            dos.writeInt(ty);
+            dos.writeInt(size);
+            for (int t = 0; t < Constants.NR_SURFACE_TYPES; ++t) {
+                dos.writeInt(t == 0 ? 2 : 0); // triangles
+                dos.writeInt(0); // strips
+                dos.writeInt(0); // fans
+                if (t == 0) {
+                    dos.writeInt(0); // strip triangles
+                    dos.writeInt(0); // fan triangles
+                    dos.writeInt(0); // primitive count bits
+                }
+            }
+            // bit lengths of the vertex deltas: 2 bit selector + delta - 1 of the quantized corners
+            // (qy << 12 | qx) in ascending order: (0, 0), (4095, 0), (0, 4095), (4095, 4095)
+            int[] bits = {0, 12, 24, 24};
+            for (int b : bits)
+                dos.writeByte(b);
+            BitWriter bw = new BitWriter(dos);
+            int[] deltas = {0, 4094, 16769024, 4094};
+            int[] selectors = {0, 1, 2, 1};
+            for (int k = 0; k < deltas.length; ++k) {
+                bw.write(selectors[k], 2);
+                bw.write(deltas[k], bits[selectors[k]]);
+            }
+            int idxBits = Common.log2(4);
+            for (int idx : new int[] {0, 1, 3, 0, 3, 2})
+                bw.write(idx, idxBits);
+            bw.flush();
+        }
+    }
+
+    /** Writes bits most significant first, in big endian ints, as read by BitReader. */
+    private static class BitWriter {
+        private final DataOutputStream dos;
+        private long scratch;
+        private int bits;
+
+        BitWriter(DataOutputStream dos) {
+            this.dos = dos;
+        }
+
+        void write(int value, int count) throws IOException {
+            scratch = scratch << count | value & (1L << count) - 1;
+            bits += count;
+            if (bits >= 32) {
+                dos.writeInt((int) (scratch >>> bits - 32));
+                bits -= 32;
+            }
+        }
+
+        void flush() throws IOException {
+            if (bits > 0)
+                dos.writeInt((int) (scratch << 32 - bits));
+            bits = 0;
+        }
+    }
+}